@@ -0,0 +1,180 @@
+import java.util.Arrays;
+
+/*************************************************************************
+ *  Compilation:  javac AhoCorasick.java
+ *  Dependencies: LongIntHashST.java
+ *
+ *  Aho-Corasick automaton over a set of ideas, used to find ideas that
+ *  contain one of the others, such as "great idea: <original tweet> via
+ *  @x". The automaton is built once in time linear in the total length
+ *  of the ideas, and then every idea is scanned in time linear in its
+ *  length (plus the matches it looks at), instead of calling contains()
+ *  on every pair of ideas.
+ *
+ *  Only matches that start and end at word boundaries count, so a short
+ *  idea isn't found inside an unrelated longer word.
+ *
+ *************************************************************************/
+
+public class AhoCorasick {
+
+    private static final int ROOT = 0;
+
+    //  (node, character) -> child node
+    private LongIntHashST children = new LongIntHashST();
+
+    //  For each node: the character on the edge into it, its first child
+    //  and next sibling (to visit the trie breadth first), the node its
+    //  failure link points to, the length of the idea ending at the node
+    //  (0 if none), and the nearest node along the failure links at which
+    //  an idea ends (-1 if none)
+    private char[] label = new char[16];
+    private int[] firstChild = new int[16];
+    private int[] nextSibling = new int[16];
+    private int[] fail = new int[16];
+    private int[] length = new int[16];
+    private int[] output = new int[16];
+    private int nodes = 1;
+
+    private boolean built = false;
+
+    public AhoCorasick()
+    {
+        firstChild[ROOT] = -1;
+        nextSibling[ROOT] = -1;
+    }
+
+    //  Adds an idea to look for. All ideas must be added before the first
+    //  call to containsOther().
+    public void add(String idea)
+    {
+        if (built)
+            throw new IllegalStateException("Automaton is already built");
+
+        int node = ROOT;
+        for (int i = 0; i < idea.length(); i++)
+        {
+            char c = idea.charAt(i);
+            int child = children.get(key(node, c));
+            if (child < 0)
+            {
+                child = newNode();
+                children.put(key(node, c), child);
+                label[child] = c;
+                nextSibling[child] = firstChild[node];
+                firstChild[node] = child;
+            }
+            node = child;
+        }
+        length[node] = idea.length();
+    }
+
+    private static long key(int node, char c)
+    {
+        return ((long) node << 16) | c;
+    }
+
+    private int newNode()
+    {
+        if (nodes == fail.length)
+        {
+            int capacity = 2 * nodes;
+            label = Arrays.copyOf(label, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            fail = Arrays.copyOf(fail, capacity);
+            length = Arrays.copyOf(length, capacity);
+            output = Arrays.copyOf(output, capacity);
+        }
+        firstChild[nodes] = -1;
+        return nodes++;
+    }
+
+    //  Computes the failure and output links, breadth first
+    private void build()
+    {
+        int[] queue = new int[nodes];
+        int head = 0, tail = 0;
+
+        fail[ROOT] = ROOT;
+        output[ROOT] = -1;
+        for (int child = firstChild[ROOT]; child >= 0;
+                child = nextSibling[child])
+        {
+            fail[child] = ROOT;
+            output[child] = -1;
+            queue[tail++] = child;
+        }
+
+        while (head < tail)
+        {
+            int node = queue[head++];
+            for (int child = firstChild[node]; child >= 0;
+                    child = nextSibling[child])
+            {
+                char c = label[child];
+                int f = fail[node];
+                int next = children.get(key(f, c));
+                while (next < 0 && f != ROOT)
+                {
+                    f = fail[f];
+                    next = children.get(key(f, c));
+                }
+                fail[child] = next < 0 || next == child ? ROOT : next;
+                output[child] = length[fail[child]] > 0 ? fail[child]
+                    : output[fail[child]];
+                queue[tail++] = child;
+            }
+        }
+        built = true;
+    }
+
+    //  Does text contain, at word boundaries, an added idea other than
+    //  itself (one that is shorter than text)?
+    public boolean containsOther(String text)
+    {
+        return containedOther(text) != null;
+    }
+
+    //  The first such idea in text, or null if there isn't one
+    public String containedOther(String text)
+    {
+        if (!built)
+            build();
+
+        int node = ROOT;
+        for (int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            int next = children.get(key(node, c));
+            while (next < 0 && node != ROOT)
+            {
+                node = fail[node];
+                next = children.get(key(node, c));
+            }
+            node = next < 0 ? ROOT : next;
+
+            //  Every idea ending at position i
+            int match = length[node] > 0 ? node : output[node];
+            for (; match >= 0; match = output[match])
+            {
+                int n = length[match];
+                int start = i + 1 - n;
+                if (n < text.length() && isBoundary(text, start)
+                        && isBoundary(text, i + 1))
+                    return text.substring(start, i + 1);
+            }
+        }
+        return null;
+    }
+
+    //  Is position i of the text (between characters i - 1 and i) at the
+    //  start or end of a word?
+    private static boolean isBoundary(String text, int i)
+    {
+        if (i == 0 || i == text.length())
+            return true;
+        return !Character.isLetterOrDigit(text.charAt(i - 1))
+            || !Character.isLetterOrDigit(text.charAt(i));
+    }
+}
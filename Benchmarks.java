@@ -0,0 +1,461 @@
+import au.com.bytecode.opencsv.CSVReader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/*************************************************************************
+ *  Compilation:  javac Benchmarks.java
+ *  Execution:    java Benchmarks [-rows=1000,10000] [-warmup=N]
+ *                    [-iterations=N] [-forks=N] [-scaling=R] [benchmark ...]
+ *  Dependencies: Deduplicater.java, CorpusGenerator.java, Fingerprint.java,
+ *                LinearProbingHashST.java, ST.java, opencsv-2.1.jar
+ *
+ *  Times the stages of a run on made-up inputs of different sizes: reading
+ *  the input, each remove method on its own, applyAllRemoves() with and
+ *  without removeUselessTweets(), collapsing duplicates when most or few
+ *  of the changed ideas become duplicates, writing the output, and the
+ *  symbol tables the idea index could use.
+ *
+ *  Works the way JMH does: each benchmark and input size runs in a new
+ *  JVM (a fork), a few warmup iterations are run and thrown away so the
+ *  JIT has compiled the code, and the mean and standard deviation of the
+ *  measured iterations are reported. Each iteration's setup (reading the
+ *  input for a remove method, say) isn't timed, and every result is put
+ *  somewhere the JIT can't prove is unused.
+ *
+ *  The inputs are made by CorpusGenerator, with its default settings.
+ *  They're written to the temporary directory and reused by later forks
+ *  (and later runs, as long as the generator's version and settings are
+ *  the same, since those are part of the file's name).
+ *  The largest sizes need a larger heap: 10000000 rows takes about
+ *  -Xmx8g.
+ *
+ *  With -scaling=R, each benchmark's time per row at its largest size is
+ *  compared with that at its smallest, and the exit status is 1 if any
+ *  is more than R times as much: a rule that is quadratic in the number
+ *  of ideas, say, shows up as a large ratio.
+ *
+ *  % java -cp .:classpath/opencsv-2.1.jar Benchmarks -rows=1000,100000
+ *        remove-rts write-output
+ *
+ *************************************************************************/
+
+public class Benchmarks {
+
+    //  Somewhere to put results so they aren't optimized away
+    private static volatile Object sink;
+
+    private static final Map<String, Benchmark> BENCHMARKS =
+        new LinkedHashMap<String, Benchmark>();
+
+    //  What one iteration of a benchmark does. setUp() is called before
+    //  every iteration and isn't timed.
+    private abstract static class Benchmark
+    {
+        //  The input file to use for the given number of rows
+        String input(int rows) throws IOException
+        {
+            return mixedInput(rows);
+        }
+
+        void setUp(String inputFile) throws IOException { }
+
+        abstract Object run() throws IOException;
+    }
+
+    //  Runs one remove method on an input that's been read in
+    private abstract static class RemoveBenchmark extends Benchmark
+    {
+        Deduplicater d;
+
+        void setUp(String inputFile)
+        {
+            d = new Deduplicater(inputFile);
+        }
+
+        Object run()
+        {
+            remove(d);
+            return d;
+        }
+
+        abstract void remove(Deduplicater d);
+    }
+
+    //  Puts every idea into a symbol table and then looks each one up
+    private abstract static class TableBenchmark extends Benchmark
+    {
+        String[] ideas;
+
+        void setUp(String inputFile) throws IOException
+        {
+            List<String> read = new ArrayList<String>();
+            CSVReader reader = new CSVReader(new FileReader(inputFile));
+            String[] line;
+            while ((line = reader.readNext()) != null)
+                read.add(line[2]);
+            reader.close();
+            ideas = read.toArray(new String[read.size()]);
+        }
+    }
+
+    static
+    {
+        BENCHMARKS.put("ingest", new Benchmark() {
+            Object run()
+            {
+                return new Deduplicater(inputFile);
+            }
+        });
+        BENCHMARKS.put("remove-hashtags", new RemoveBenchmark() {
+            void remove(Deduplicater d) { d.removeHashTags(); }
+        });
+        BENCHMARKS.put("remove-rts", new RemoveBenchmark() {
+            void remove(Deduplicater d) { d.removeRTs(); }
+        });
+        BENCHMARKS.put("remove-rt-text", new RemoveBenchmark() {
+            void remove(Deduplicater d) { d.removeRTtext(); }
+        });
+        BENCHMARKS.put("remove-whitehouses", new RemoveBenchmark() {
+            void remove(Deduplicater d) { d.removeWhitehouses(); }
+        });
+        BENCHMARKS.put("remove-at-text", new RemoveBenchmark() {
+            void remove(Deduplicater d) { d.removeAtText(); }
+        });
+        BENCHMARKS.put("remove-initial-non-alphanumeric",
+                new RemoveBenchmark() {
+            void remove(Deduplicater d)
+            {
+                d.removeInitialNonAlphanumericEntries();
+            }
+        });
+        BENCHMARKS.put("remove-useless", new RemoveBenchmark() {
+            void remove(Deduplicater d) { d.removeUselessTweets(); }
+        });
+        BENCHMARKS.put("apply-all-removes", new RemoveBenchmark() {
+            void remove(Deduplicater d) { d.applyAllRemoves(false); }
+        });
+        BENCHMARKS.put("apply-all-removes-useless", new RemoveBenchmark() {
+            void remove(Deduplicater d) { d.applyAllRemoves(true); }
+        });
+
+        //  Every idea is changed by removeHashTags(); with many duplicates,
+        //  most changed ideas are then found in the index and deleted, with
+        //  few, most are put back in
+        BENCHMARKS.put("update-duplicates-high", new RemoveBenchmark() {
+            String input(int rows) throws IOException
+            {
+                return taggedInput(rows, 0.9);
+            }
+
+            void remove(Deduplicater d) { d.removeHashTags(); }
+        });
+        BENCHMARKS.put("update-duplicates-low", new RemoveBenchmark() {
+            String input(int rows) throws IOException
+            {
+                return taggedInput(rows, 0.01);
+            }
+
+            void remove(Deduplicater d) { d.removeHashTags(); }
+        });
+
+        BENCHMARKS.put("write-output", new Benchmark() {
+            Deduplicater d;
+            File output;
+
+            void setUp(String inputFile) throws IOException
+            {
+                if (d == null)
+                {
+                    d = new Deduplicater(inputFile);
+                    d.applyAllRemoves(true);
+                    output = File.createTempFile("bench", ".csv");
+                    output.deleteOnExit();
+                }
+            }
+
+            Object run() throws IOException
+            {
+                d.writeOutput(output.getPath());
+                return output;
+            }
+        });
+
+        BENCHMARKS.put("st-tree", new TableBenchmark() {
+            Object run()
+            {
+                ST<String, Integer> st = new ST<String, Integer>();
+                for (int i = 0; i < ideas.length; i++)
+                    if (!st.contains(ideas[i]))
+                        st.put(ideas[i], i);
+                int found = 0;
+                for (String idea : ideas)
+                    found += st.get(idea);
+                return found;
+            }
+        });
+        BENCHMARKS.put("st-linear-probing", new TableBenchmark() {
+            Object run()
+            {
+                LinearProbingHashST<String, Integer> st =
+                    new LinearProbingHashST<String, Integer>(ideas.length);
+                for (int i = 0; i < ideas.length; i++)
+                    if (!st.contains(ideas[i]))
+                        st.put(ideas[i], i);
+                int found = 0;
+                for (String idea : ideas)
+                    found += st.get(idea);
+                return found;
+            }
+        });
+        BENCHMARKS.put("st-hashmap", new TableBenchmark() {
+            Object run()
+            {
+                HashMap<String, Integer> st = new HashMap<String, Integer>(
+                        2 * ideas.length);
+                for (int i = 0; i < ideas.length; i++)
+                    if (!st.containsKey(ideas[i]))
+                        st.put(ideas[i], i);
+                int found = 0;
+                for (String idea : ideas)
+                    found += st.get(idea);
+                return found;
+            }
+        });
+    }
+
+    //  The input file of the iteration being run
+    private static String inputFile;
+
+    public static void main(String[] args) throws Exception
+    {
+        String rows = "1000,10000,100000,1000000";
+        int warmup = 3, iterations = 5, forks = 1;
+        double scaling = 0;
+        boolean inProcess = false;
+        List<String> names = new ArrayList<String>();
+        for (String arg : args)
+        {
+            if (arg.startsWith("-rows="))
+                rows = value(arg);
+            else if (arg.startsWith("-warmup="))
+                warmup = Integer.parseInt(value(arg));
+            else if (arg.startsWith("-iterations="))
+                iterations = Integer.parseInt(value(arg));
+            else if (arg.startsWith("-forks="))
+                forks = Integer.parseInt(value(arg));
+            else if (arg.startsWith("-scaling="))
+                scaling = Double.parseDouble(value(arg));
+            else if (arg.equals("-inProcess"))
+                inProcess = true;
+            else if (BENCHMARKS.containsKey(arg))
+                names.add(arg);
+            else
+                throw new IllegalArgumentException("Unknown benchmark or "
+                        + "option " + arg + "; benchmarks are "
+                        + BENCHMARKS.keySet());
+        }
+        if (names.isEmpty())
+            names.addAll(BENCHMARKS.keySet());
+
+        if (!inProcess)
+            System.out.printf("%-32s %10s %12s %10s %10s%n", "benchmark",
+                    "rows", "ms/op", "+-", "ns/row");
+        boolean scaled = true;
+        for (String name : names)
+        {
+            //  Time per row at the smallest and largest sizes
+            double smallest = 0, largest = 0;
+            int smallestRows = Integer.MAX_VALUE, largestRows = 0;
+            for (String size : rows.split(","))
+            {
+                int n = Integer.parseInt(size.trim());
+                if (inProcess)
+                {
+                    //  Report each measured iteration for the parent
+                    for (double ms : measure(name, n, warmup, iterations))
+                        System.out.println("ms " + ms);
+                    continue;
+                }
+
+                List<Double> times = new ArrayList<Double>();
+                for (int fork = 0; fork < Math.max(1, forks); fork++)
+                {
+                    if (forks == 0)
+                        times.addAll(measure(name, n, warmup, iterations));
+                    else
+                        times.addAll(fork(name, n, warmup, iterations));
+                }
+                double perRow = report(name, n, times) / n;
+                if (n < smallestRows)
+                {
+                    smallestRows = n;
+                    smallest = perRow;
+                }
+                if (n > largestRows)
+                {
+                    largestRows = n;
+                    largest = perRow;
+                }
+            }
+
+            if (scaling > 0 && largestRows > smallestRows)
+            {
+                double ratio = largest / smallest;
+                System.out.printf("%-32s per row, %d rows against %d: "
+                        + "%.2fx%s%n", name, largestRows, smallestRows, ratio,
+                        ratio > scaling ? " (over " + scaling + "x)" : "");
+                if (ratio > scaling)
+                    scaled = false;
+            }
+        }
+        if (!scaled)
+            System.exit(1);
+    }
+
+    //  Runs the benchmark and returns the measured iterations' times in ms
+    static List<Double> measure(String name, int rows, int warmup,
+            int iterations) throws IOException
+    {
+        Benchmark benchmark = BENCHMARKS.get(name);
+        inputFile = benchmark.input(rows);
+        List<Double> times = new ArrayList<Double>();
+        for (int i = 0; i < warmup + iterations; i++)
+        {
+            benchmark.setUp(inputFile);
+            System.gc();
+            long start = System.nanoTime();
+            sink = benchmark.run();
+            long elapsed = System.nanoTime() - start;
+            if (i >= warmup)
+                times.add(elapsed / 1e6);
+        }
+        return times;
+    }
+
+    //  Runs the benchmark in a new JVM with the same class path and heap
+    private static List<Double> fork(String name, int rows, int warmup,
+            int iterations) throws IOException, InterruptedException
+    {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "java");
+        command.add("-Xmx" + Runtime.getRuntime().maxMemory() / (1 << 20)
+                + "m");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("Benchmarks");
+        command.add("-inProcess");
+        command.add("-rows=" + rows);
+        command.add("-warmup=" + warmup);
+        command.add("-iterations=" + iterations);
+        command.add(name);
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true)
+            .start();
+        List<Double> times = new ArrayList<Double>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    process.getInputStream()));
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            if (line.startsWith("ms "))
+                times.add(Double.parseDouble(line.substring(3)));
+            else
+                System.out.println(line);
+        }
+        reader.close();
+        if (process.waitFor() != 0)
+            throw new IOException(name + " failed in its fork");
+        return times;
+    }
+
+    //  Prints the mean and deviation of the times, and returns the mean
+    private static double report(String name, int rows, List<Double> times)
+    {
+        double mean = 0;
+        for (double t : times)
+            mean += t;
+        mean /= times.size();
+        double variance = 0;
+        for (double t : times)
+            variance += (t - mean) * (t - mean);
+        double deviation = times.size() < 2 ? 0
+            : Math.sqrt(variance / (times.size() - 1));
+        System.out.printf("%-32s %10d %12.3f %10.3f %10.1f%n", name, rows,
+                mean, deviation, mean * 1e6 / rows);
+        return mean;
+    }
+
+    //  Rows from CorpusGenerator with its default settings
+    static String mixedInput(int rows) throws IOException
+    {
+        CorpusGenerator generator = new CorpusGenerator();
+        File file = new File(System.getProperty("java.io.tmpdir"),
+                "bench-mixed-" + rows + "-" + Long.toHexString(
+                    Fingerprint.of(generator.settings())) + ".csv");
+        if (file.exists())
+            return file.getPath();
+
+        File partial = new File(file.getPath() + ".tmp");
+        generator.write(partial.getPath(), rows);
+        partial.renameTo(file);
+        return file.getPath();
+    }
+
+    //  Changed whenever a change to taggedInput() means it no longer
+    //  writes the same file for the same rows and share of duplicates
+    private static final int TAGGED_VERSION = 1;
+
+    //  Rows whose ideas all start with a hash tag of their own; once the
+    //  tags are removed, about the given share of them are duplicates
+    static String taggedInput(int rows, double duplicates) throws IOException
+    {
+        File file = new File(System.getProperty("java.io.tmpdir"),
+                "bench-tagged-" + rows + "-" + duplicates + "-v"
+                + TAGGED_VERSION + ".csv");
+        if (file.exists())
+            return file.getPath();
+
+        int distinct = Math.max(1, (int) (rows * (1 - duplicates)));
+        Random random = new Random(rows);
+        File partial = new File(file.getPath() + ".tmp");
+        FileWriter writer = new FileWriter(partial);
+        for (int i = 0; i < rows; i++)
+        {
+            int idea = i < distinct ? i : random.nextInt(distinct);
+            writeRow(writer, "twitter", "user" + i, "#tag" + i
+                    + " an idea about grand challenges number " + idea);
+        }
+        writer.close();
+        partial.renameTo(file);
+        return file.getPath();
+    }
+
+    private static void writeRow(FileWriter writer, String network,
+            String username, String idea) throws IOException
+    {
+        writer.write(quote(network) + "," + quote(username) + ","
+                + quote(idea) + "\n");
+    }
+
+    private static String quote(String field)
+    {
+        return "\"" + field.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String value(String arg)
+    {
+        return arg.substring(arg.indexOf('=') + 1);
+    }
+}
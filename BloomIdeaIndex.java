@@ -0,0 +1,157 @@
+/*************************************************************************
+ *  Compilation:  javac BloomIdeaIndex.java
+ *  Dependencies: IdeaIndex.java, Fingerprint.java
+ *
+ *  Puts a Bloom filter in front of another idea index. Most lookups are
+ *  for ideas that aren't in the index, and for almost all of those the
+ *  filter answers "no" from a single 64-byte block of bits, without
+ *  touching the index's table or comparing any strings. Only when the
+ *  filter says "maybe" is the index itself asked.
+ *
+ *  The filter is blocked: an idea's bits all fall in one block of 512
+ *  bits, chosen by its hash, so a lookup reads one cache line. It is sized
+ *  for an expected number of ideas at about 10 bits each, which gives a
+ *  false positive rate of about 1%.
+ *
+ *  A Bloom filter can't remove an idea, so a deleted idea's bits stay set.
+ *  That never makes a lookup wrong, it only makes the filter answer
+ *  "maybe" more often as ideas are replaced by simpler ones; stats() gives
+ *  the rates actually seen.
+ *
+ *************************************************************************/
+
+public class BloomIdeaIndex implements IdeaIndex {
+
+    private static final int BITS_PER_IDEA = 10;
+
+    //  Longs per block, and bits set per idea
+    private static final int BLOCK_LONGS = 8;
+    private static final int HASHES = 7;
+
+    private final IdeaIndex index;
+    private final long[] bits;
+    private final int blockMask;
+
+    //  Lookups, the ones the filter answered by itself, and the ones it
+    //  passed on that the index didn't have
+    private long lookups = 0;
+    private long definiteMisses = 0;
+    private long falsePositives = 0;
+
+    public BloomIdeaIndex(IdeaIndex index, int expectedIdeas)
+    {
+        this.index = index;
+        long wanted = Math.max(1, (long) expectedIdeas * BITS_PER_IDEA
+                / (64 * BLOCK_LONGS));
+        int blocks = 1;
+        while (blocks < wanted && blocks < (1 << 24))
+            blocks *= 2;
+        bits = new long[blocks * BLOCK_LONGS];
+        blockMask = blocks - 1;
+    }
+
+    public int get(String idea)
+    {
+        lookups++;
+        if (!mightContain(idea))
+        {
+            definiteMisses++;
+            return -1;
+        }
+        int id = index.get(idea);
+        if (id < 0)
+            falsePositives++;
+        return id;
+    }
+
+    public boolean contains(String idea)
+    {
+        return get(idea) >= 0;
+    }
+
+    public void put(String idea, int id)
+    {
+        long h = Fingerprint.mix(idea.hashCode());
+        int block = block(h);
+        for (int i = 0; i < HASHES; i++)
+        {
+            int bit = (int) (h >>> (9 * i)) & 511;
+            bits[block + (bit >>> 6)] |= 1L << bit;
+        }
+        index.put(idea, id);
+    }
+
+    //  The idea's bits are left set; see above
+    public void delete(String idea)
+    {
+        index.delete(idea);
+    }
+
+    public int size()
+    {
+        return index.size();
+    }
+
+    //  false if the idea is certainly not in the index
+    private boolean mightContain(String idea)
+    {
+        //  String caches its hash code, so this doesn't read the idea again
+        long h = Fingerprint.mix(idea.hashCode());
+        int block = block(h);
+        for (int i = 0; i < HASHES; i++)
+        {
+            int bit = (int) (h >>> (9 * i)) & 511;
+            if ((bits[block + (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    //  Index of the first long of the idea's block, from bits of the hash
+    //  that don't pick bits within the block
+    private int block(long h)
+    {
+        return ((int) Fingerprint.mix(h ^ 0x9E3779B97F4A7C15L) & blockMask)
+            * BLOCK_LONGS;
+    }
+
+    public long lookups()
+    {
+        return lookups;
+    }
+
+    public long definiteMisses()
+    {
+        return definiteMisses;
+    }
+
+    public long falsePositives()
+    {
+        return falsePositives;
+    }
+
+    //  Fraction of the filter's bits that are set
+    public double fill()
+    {
+        long set = 0;
+        for (long word : bits)
+            set += Long.bitCount(word);
+        return (double) set / (64.0 * bits.length);
+    }
+
+    //  Hit and false positive rates, for reporting
+    public String stats()
+    {
+        return String.format("bloom filter: %d lookups, %d answered by the "
+                + "filter (%.1f%%), %d false positives (%.2f%% of misses), "
+                + "%d KB, %.1f%% of bits set", lookups, definiteMisses,
+                percent(definiteMisses, lookups), falsePositives,
+                percent(falsePositives, definiteMisses + falsePositives),
+                bits.length / 128, 100 * fill());
+    }
+
+    private static double percent(long part, long whole)
+    {
+        return whole == 0 ? 0 : 100.0 * part / whole;
+    }
+}
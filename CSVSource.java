@@ -0,0 +1,25 @@
+import java.io.IOException;
+
+/*************************************************************************
+ *  Compilation:  javac CSVSource.java
+ *  Dependencies: none
+ *
+ *  A CSV file read one row at a time. field(i) gives the i-th field of
+ *  the current row; it throws ArrayIndexOutOfBoundsException if the row
+ *  is too short, just as indexing the String[] from opencsv would.
+ *
+ *************************************************************************/
+
+public interface CSVSource {
+
+    //  Moves to the next row; false if there are no more rows
+    public boolean next() throws IOException;
+
+    //  Number of fields in the current row
+    public int fields();
+
+    //  The i-th field of the current row
+    public String field(int i);
+
+    public void close() throws IOException;
+}
@@ -0,0 +1,108 @@
+import java.util.Arrays;
+
+/*************************************************************************
+ *  Compilation:  javac Clusters.java
+ *  Dependencies: none
+ *
+ *  Which rows were deleted as duplicates of which. Each row kept stands
+ *  for a cluster: itself and every row deleted as its duplicate, or as a
+ *  duplicate of one of those. The clusters are a union-find forest over
+ *  row ids, held in a single int array, so tracking them costs 4 bytes a
+ *  row; a row's cluster is only looked up when the output is written.
+ *  Listing the members of every cluster takes another 8 bytes a row, and
+ *  only while the output is written.
+ *
+ *************************************************************************/
+
+public class Clusters {
+
+    //  For a row merged into another, the id of that row (not necessarily
+    //  its representative); for any other row, minus the number of rows in
+    //  its cluster
+    private int[] parent;
+
+    //  Once grouped: the members of each cluster, in id order, are
+    //  members[start[id]] to members[start[id + 1] - 1] for its
+    //  representative id
+    private int[] start, members;
+
+    public Clusters(int expectedRows)
+    {
+        parent = new int[Math.max(16, expectedRows)];
+        Arrays.fill(parent, -1);
+    }
+
+    //  The duplicate's cluster becomes part of the representative's
+    public void merge(int duplicate, int representative)
+    {
+        grow(Math.max(duplicate, representative));
+        int from = find(duplicate), to = find(representative);
+        if (from == to)
+            return;
+        parent[to] += parent[from];
+        parent[from] = to;
+        members = null;
+    }
+
+    //  The representative of the row's cluster
+    public int find(int id)
+    {
+        if (id >= parent.length)
+            return id;
+        int root = id;
+        while (parent[root] >= 0)
+            root = parent[root];
+
+        //  Point every row on the way straight at the representative
+        while (parent[id] >= 0)
+        {
+            int next = parent[id];
+            parent[id] = root;
+            id = next;
+        }
+        return root;
+    }
+
+    //  Number of rows in the cluster of the row, which must be a
+    //  representative
+    public int size(int id)
+    {
+        return id >= parent.length ? 1 : -parent[id];
+    }
+
+    //  Works out the members of every cluster, for rows 0 to rows - 1
+    public void group(int rows)
+    {
+        grow(rows - 1);
+        start = new int[rows + 1];
+        for (int id = 0; id < rows; id++)
+            start[find(id) + 1]++;
+        for (int id = 0; id < rows; id++)
+            start[id + 1] += start[id];
+
+        int[] next = Arrays.copyOf(start, rows);
+        members = new int[rows];
+        for (int id = 0; id < rows; id++)
+            members[next[parent[id] < 0 ? id : parent[id]]++] = id;
+    }
+
+    //  The ids of the rows in the cluster of the row, which must be a
+    //  representative, in increasing order; group() must have been called
+    //  since the last merge
+    public int[] members(int id)
+    {
+        if (members == null)
+            throw new IllegalStateException("Clusters not grouped");
+        return Arrays.copyOfRange(members, start[id], start[id + 1]);
+    }
+
+    private void grow(int id)
+    {
+        if (id < parent.length)
+            return;
+        int capacity = Math.max(id + 1, 2 * parent.length);
+        int old = parent.length;
+        parent = Arrays.copyOf(parent, capacity);
+        Arrays.fill(parent, old, capacity, -1);
+    }
+}
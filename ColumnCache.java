@@ -0,0 +1,365 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/*************************************************************************
+ *  Compilation:  javac ColumnCache.java
+ *  Dependencies: CSVSource.java, Deduplicater.java, DedupOptions.java,
+ *                Fingerprint.java
+ *
+ *  An input CSV file, parsed once and kept as a binary file of columns,
+ *  so that later runs on the same input (while tuning the rules, say)
+ *  memory-map the columns instead of parsing the CSV again (-cache).
+ *
+ *  The cache file is FILE.columns next to the input FILE, or in the
+ *  directory given with -cache=DIR. Its header records the input's
+ *  length, modification time and CRC-32C, and which parser read it in
+ *  which charset; if any of those doesn't match, the input is parsed
+ *  again and the cache replaced. Checking the CRC reads the whole input,
+ *  but that is far quicker than parsing it.
+ *
+ *  After the header come the sections, each mapped on its own: the
+ *  number of fields of each row; a column for each of the first three
+ *  fields (network, username and text), holding each row's field as a
+ *  length and its UTF-8 bytes; and then any fields after the third. A
+ *  field is only made into a String when it's asked for, so the usernames
+ *  and networks of duplicates are never decoded. A section can't be over
+ *  2 GB; for an input that would need one, parsing for the cache stops as
+ *  soon as a section grows too big, and the cache file is left with only
+ *  a header marking the input as too big, so later runs read the CSV as
+ *  usual straight away.
+ *
+ *************************************************************************/
+
+public class ColumnCache implements CSVSource {
+
+    private static final long MAGIC = 0x4465647570436f6cL;
+    private static final int VERSION = 2;
+
+    //  Rows in the header of a cache for an input too big to cache
+    private static final int UNCACHEABLE = -1;
+
+    //  Columns kept on their own, and the sections of the file
+    private static final int COLUMNS = 3;
+    private static final int COUNTS = COLUMNS, EXTRA = COLUMNS + 1;
+    private static final int SECTIONS = COLUMNS + 2;
+
+    //  Largest section, in bytes, that can be mapped; lowered by the tests
+    static long maxSection = Integer.MAX_VALUE;
+
+    //  Bytes of the input hashed at a time
+    private static final int HASH_WINDOW = 1 << 28;
+
+    private final ByteBuffer[] sections = new ByteBuffer[SECTIONS];
+    private final int rows;
+    private int row = 0;
+
+    //  The current row: its number of fields, where its fields are in the
+    //  columns, and the fields made into Strings so far
+    private int fields;
+    private final int[] starts = new int[COLUMNS];
+    private final int[] lengths = new int[COLUMNS];
+    private String[] values = new String[COLUMNS];
+    private byte[] bytes = new byte[256];
+
+    private ColumnCache(RandomAccessFile file, long dataStart,
+            long[] offsets, int rows) throws IOException
+    {
+        FileChannel channel = file.getChannel();
+        for (int s = 0; s < SECTIONS; s++)
+            sections[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    dataStart + offsets[s], offsets[s + 1] - offsets[s]);
+        this.rows = rows;
+    }
+
+    //  The input, read from its cache, which is written first if it's
+    //  missing or out of date
+    public static CSVSource open(String inputFile, DedupOptions options)
+        throws IOException
+    {
+        File input = new File(inputFile);
+        File cache = cacheFile(input, options.cache);
+        String parser = parser(options);
+        CSVSource cached = read(cache, input, parser, options);
+        if (cached != null)
+            return cached;
+
+        if (!write(input, cache, parser, options))
+            return Deduplicater.openParser(inputFile, options);
+        cached = read(cache, input, parser, options);
+        if (cached == null)
+            throw new IOException("Can't read the cache " + cache);
+        return cached;
+    }
+
+    //  FILE.columns beside the input, or in dir; in a directory, the name
+    //  also has a hash of the input's path, so inputs with the same name
+    //  in different directories don't take turns replacing each other's
+    static File cacheFile(File input, String dir)
+    {
+        if (dir.isEmpty())
+            return new File(input.getPath() + ".columns");
+        String path = input.getAbsolutePath();
+        return new File(dir, input.getName() + "."
+                + Long.toHexString(Fingerprint.of(path)) + ".columns");
+    }
+
+    //  Which parser reads the input, and in which charset, since that can
+    //  change how the same bytes come out
+    private static String parser(DedupOptions options)
+    {
+        return (Deduplicater.parsesWithOpenCSV(options) ? "opencsv "
+                : "mapped ") + Charset.defaultCharset().name();
+    }
+
+    //  The cache, if it's there and up to date with the input, or the
+    //  input's parser if the cache marks it as too big; null if neither
+    private static CSVSource read(File cache, File input, String parser,
+            DedupOptions options) throws IOException
+    {
+        if (!cache.isFile())
+            return null;
+        RandomAccessFile file = new RandomAccessFile(cache, "r");
+        try
+        {
+            //  A cache that can't be read is as good as out of date
+            if (file.length() < 8 || file.readLong() != MAGIC
+                    || file.readInt() != VERSION
+                    || file.readLong() != input.length()
+                    || file.readLong() != input.lastModified()
+                    || !file.readUTF().equals(parser))
+                return null;
+            long hash = file.readLong();
+            int rows = file.readInt();
+            if (rows == UNCACHEABLE)
+            {
+                if (file.getFilePointer() != file.length()
+                        || hash != hash(input))
+                    return null;
+                return Deduplicater.openParser(input.getPath(), options);
+            }
+            long[] offsets = new long[SECTIONS + 1];
+            for (int s = 1; s <= SECTIONS; s++)
+                offsets[s] = file.readLong();
+            long dataStart = file.getFilePointer();
+            if (dataStart + offsets[SECTIONS] != file.length()
+                    || hash != hash(input))
+                return null;
+            return new ColumnCache(file, dataStart, offsets, rows);
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        finally
+        {
+            //  The sections stay mapped after the file is closed
+            file.close();
+        }
+    }
+
+    //  Parses the input and writes its cache. Returns false, and writes a
+    //  cache marking the input as too big, if a section would be too big to
+    //  map.
+    private static boolean write(File input, File cache, String parser,
+            DedupOptions options) throws IOException
+    {
+        File dir = cache.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        File[] parts = new File[SECTIONS];
+        DataOutputStream[] out = new DataOutputStream[SECTIONS];
+        File temp = null;
+        try
+        {
+            for (int s = 0; s < SECTIONS; s++)
+            {
+                parts[s] = File.createTempFile(cache.getName(), ".part", dir);
+                out[s] = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(parts[s]), 1 << 16));
+            }
+
+            //  The hash is of the input as it was before it was parsed, so
+            //  a change while parsing makes the cache out of date
+            long length = input.length(), modified = input.lastModified();
+            long hash = hash(input);
+            CSVSource reader = Deduplicater.openParser(input.getPath(),
+                    options);
+            int rows = 0;
+            long[] sizes = new long[SECTIONS];
+            boolean fits = true;
+            try
+            {
+                while (fits && reader.next())
+                {
+                    int fields = reader.fields();
+                    out[COUNTS].writeInt(fields);
+                    sizes[COUNTS] += 4;
+                    for (int i = 0; i < fields; i++)
+                    {
+                        int s = i < COLUMNS ? i : EXTRA;
+                        sizes[s] += writeField(out[s], reader.field(i));
+                        if (sizes[s] > maxSection)
+                            fits = false;
+                    }
+                    if (sizes[COUNTS] > maxSection)
+                        fits = false;
+                    rows++;
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+
+            long[] offsets = new long[SECTIONS + 1];
+            for (int s = 0; s < SECTIONS; s++)
+            {
+                out[s].close();
+                out[s] = null;
+                offsets[s + 1] = offsets[s] + parts[s].length();
+            }
+
+            //  Written under another name and then renamed, so a run that
+            //  reads the cache at the same time sees all or none of it
+            temp = File.createTempFile(cache.getName(), ".tmp", dir);
+            DataOutputStream file = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            try
+            {
+                file.writeLong(MAGIC);
+                file.writeInt(VERSION);
+                file.writeLong(length);
+                file.writeLong(modified);
+                file.writeUTF(parser);
+                file.writeLong(hash);
+                file.writeInt(fits ? rows : UNCACHEABLE);
+                if (fits)
+                {
+                    for (int s = 1; s <= SECTIONS; s++)
+                        file.writeLong(offsets[s]);
+                    for (int s = 0; s < SECTIONS; s++)
+                        Files.copy(parts[s].toPath(), file);
+                }
+            }
+            finally
+            {
+                file.close();
+            }
+            Files.move(temp.toPath(), cache.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+            return fits;
+        }
+        finally
+        {
+            for (int s = 0; s < SECTIONS; s++)
+            {
+                if (out[s] != null)
+                    out[s].close();
+                if (parts[s] != null)
+                    parts[s].delete();
+            }
+            if (temp != null)
+                temp.delete();
+        }
+    }
+
+    //  Returns the number of bytes written
+    private static int writeField(DataOutputStream out, String field)
+        throws IOException
+    {
+        byte[] utf8 = field.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+        return 4 + utf8.length;
+    }
+
+    //  CRC-32C of the whole input
+    static long hash(File input) throws IOException
+    {
+        CRC32C crc = new CRC32C();
+        RandomAccessFile file = new RandomAccessFile(input, "r");
+        try
+        {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            for (long start = 0; start < size; start += HASH_WINDOW)
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, start,
+                            Math.min(HASH_WINDOW, size - start)));
+        }
+        finally
+        {
+            file.close();
+        }
+        return crc.getValue();
+    }
+
+    public boolean next()
+    {
+        if (row == rows)
+            return false;
+        row++;
+        fields = sections[COUNTS].getInt();
+        if (values.length < fields)
+            values = new String[fields];
+        for (int i = 0; i < Math.min(fields, COLUMNS); i++)
+        {
+            ByteBuffer column = sections[i];
+            lengths[i] = column.getInt();
+            starts[i] = column.position();
+            column.position(starts[i] + lengths[i]);
+            values[i] = null;
+        }
+        for (int i = COLUMNS; i < fields; i++)
+        {
+            ByteBuffer extra = sections[EXTRA];
+            int length = extra.getInt();
+            values[i] = decode(extra, extra.position(), length);
+            extra.position(extra.position() + length);
+        }
+        return true;
+    }
+
+    public int fields()
+    {
+        return fields;
+    }
+
+    public String field(int i)
+    {
+        if (i >= fields)
+            throw new ArrayIndexOutOfBoundsException(i);
+        if (values[i] == null)
+            values[i] = decode(sections[i], starts[i], lengths[i]);
+        return values[i];
+    }
+
+    private String decode(ByteBuffer section, int start, int length)
+    {
+        if (bytes.length < length)
+            bytes = new byte[Math.max(length, 2 * bytes.length)];
+        int position = section.position();
+        section.position(start);
+        section.get(bytes, 0, length);
+        section.position(position);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    //  Nothing to close: the sections are unmapped once they're collected
+    public void close()
+    {
+        Arrays.fill(sections, null);
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/*************************************************************************
+ *  Compilation:  javac ConcurrentIdeaIndex.java
+ *  Dependencies: IdeaIndex.java
+ *
+ *  Idea index that several threads can add ideas to at once. offer()
+ *  keeps the smallest id offered for each idea, so the result doesn't
+ *  depend on the order the threads get there: the first occurrence of an
+ *  idea in the input always wins, as it does when reading with one thread.
+ *
+ *************************************************************************/
+
+public class ConcurrentIdeaIndex implements IdeaIndex {
+
+    private ConcurrentHashMap<String, Integer> ideaToId;
+
+    public ConcurrentIdeaIndex(int expectedIdeas, int threads)
+    {
+        ideaToId = new ConcurrentHashMap<String, Integer>(expectedIdeas,
+                0.75f, threads);
+    }
+
+    //  Makes id the id of the idea unless a smaller id already has it.
+    //  Safe to call from several threads at once.
+    public void offer(String idea, int id)
+    {
+        Integer previous = ideaToId.putIfAbsent(idea, id);
+        while (previous != null && previous > id
+                && !ideaToId.replace(idea, previous, id))
+            previous = ideaToId.get(idea);
+    }
+
+    //  Makes id the id of the idea if no id has it yet; otherwise returns
+    //  the id that has it, or -1 if this one does now. Of several threads
+    //  putting the same idea at once, exactly one gets -1.
+    public int putIfAbsent(String idea, int id)
+    {
+        Integer previous = ideaToId.putIfAbsent(idea, id);
+        return previous == null ? -1 : previous;
+    }
+
+    public int get(String idea)
+    {
+        Integer id = ideaToId.get(idea);
+        return id == null ? -1 : id;
+    }
+
+    public boolean contains(String idea)
+    {
+        return ideaToId.containsKey(idea);
+    }
+
+    public void put(String idea, int id)
+    {
+        ideaToId.put(idea, id);
+    }
+
+    public void delete(String idea)
+    {
+        ideaToId.remove(idea);
+    }
+
+    public int size()
+    {
+        return ideaToId.size();
+    }
+}
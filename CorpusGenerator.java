@@ -0,0 +1,223 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+/*************************************************************************
+ *  Compilation:  javac CorpusGenerator.java
+ *  Execution:    java CorpusGenerator output.csv rows [-seed=N]
+ *                    [-duplicates=P] [-rt=P] [-mentions=P] [-hashtags=P]
+ *                    [-useless=P] [-commas=P] [-newlines=P]
+ *  Dependencies: none
+ *
+ *  Writes a made-up set of responses, as large as wanted, in the same
+ *  "network,author_username,post_text" form as
+ *  Grand-Challenges-responses.csv, for trying Deduplicater on inputs much
+ *  larger than the real one. Each setting is the share (0 to 1) of rows
+ *  that get something:
+ *
+ *    duplicates  repeat the text of an earlier row, either exactly or with
+ *                its RT, mentions and hash tags made up again, so that only
+ *                the remove methods reveal it as a duplicate
+ *    rt          start with "RT @user", "RT: @user @other" or "RTtext "
+ *    mentions    have an @user or @whitehouse somewhere
+ *    hashtags    have a #tag somewhere
+ *    useless     are "... is looking for Grand Challenges in science and
+ *                technology, via Twitter" tweets
+ *    commas      have commas in their text
+ *    newlines    have a line break in their text
+ *
+ *  The same seed and settings always give the same file.
+ *
+ *  % java CorpusGenerator big.csv 1000000 -duplicates=0.5 -seed=7
+ *
+ *************************************************************************/
+
+public class CorpusGenerator {
+
+    private static final String[] WORDS = { "we", "should", "cure", "cancer",
+        "build", "clean", "energy", "for", "every", "home", "land", "people",
+        "on", "mars", "end", "hunger", "in", "america", "and", "the", "world",
+        "fix", "our", "schools", "broadband", "internet", "faster", "cheaper",
+        "water", "desalination", "solar", "power", "fusion", "reactor",
+        "space", "program", "moon", "base", "high", "speed", "rail",
+        "education", "science", "technology", "math", "teachers", "ocean",
+        "research", "vaccines", "malaria", "aids", "alzheimer's", "roads",
+        "bridges", "grid", "batteries", "electric", "cars", "recycling",
+        "climate", "change", "forests", "farms", "food", "safety", "jobs" };
+
+    private static final String[] NETWORKS = { "twitter", "twitter",
+        "twitter", "facebook", "identica" };
+
+    //  Changed whenever a change here means the same seed and settings no
+    //  longer give the same file
+    public static final int VERSION = 1;
+
+    public long seed = 1;
+    public double duplicates = 0.3;
+    public double rt = 0.2;
+    public double mentions = 0.3;
+    public double hashtags = 0.2;
+    public double useless = 0.02;
+    public double commas = 0.1;
+    public double newlines = 0.02;
+
+    private Random random;
+
+    //  The version, seed and settings, which together decide the file
+    public String settings()
+    {
+        return "v" + VERSION + " seed=" + seed + " duplicates=" + duplicates
+            + " rt=" + rt + " mentions=" + mentions + " hashtags=" + hashtags
+            + " useless=" + useless + " commas=" + commas + " newlines="
+            + newlines;
+    }
+
+    //  Writes the given number of rows to the file
+    public void write(String outputFile, int rows) throws IOException
+    {
+        Writer writer = new BufferedWriter(new FileWriter(outputFile),
+                1 << 16);
+        write(writer, rows);
+        writer.close();
+    }
+
+    public void write(Writer writer, int rows) throws IOException
+    {
+        random = new Random(seed);
+
+        //  Texts of earlier rows and the ideas made from them, for
+        //  duplicates; only the most recent ones are kept
+        String[] texts = new String[1 << 16];
+        String[] ideas = new String[texts.length];
+        int earlier = 0;
+
+        writer.write("network,author_username,post_text\n");
+        for (int i = 0; i < rows; i++)
+        {
+            String idea;
+            if (random.nextDouble() < useless)
+                idea = "@" + username() + " is looking for Grand Challenges "
+                    + "in science and technology, via Twitter http://bit.ly/"
+                    + Integer.toString(random.nextInt(1 << 24), 36);
+            else if (earlier > 0 && random.nextDouble() < duplicates)
+            {
+                int j = random.nextInt(Math.min(earlier, texts.length));
+                idea = random.nextBoolean() ? ideas[j] : decorate(texts[j]);
+            }
+            else
+            {
+                String text = text(i);
+                idea = decorate(text);
+                texts[earlier % texts.length] = text;
+                ideas[earlier % texts.length] = idea;
+                earlier++;
+            }
+
+            writer.write(NETWORKS[random.nextInt(NETWORKS.length)]);
+            writer.write(',');
+            writer.write(username());
+            writer.write(',');
+            writeField(writer, idea);
+            writer.write('\n');
+        }
+    }
+
+    //  A sentence of random words, unique to the row
+    private String text(int row)
+    {
+        int words = 4 + random.nextInt(16);
+        int comma = random.nextDouble() < commas ? random.nextInt(words) : -1;
+        int newline = random.nextDouble() < newlines ? 1 + random.nextInt(
+                words - 1) : -1;
+
+        StringBuilder text = new StringBuilder();
+        for (int w = 0; w < words; w++)
+        {
+            if (w > 0)
+                text.append(w == newline ? '\n' : ' ');
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+            if (w == comma)
+                text.append(',');
+        }
+        text.append(' ').append(Integer.toString(row, 36));
+        return text.toString();
+    }
+
+    //  Adds an RT, mentions and hash tags to the text, at random
+    private String decorate(String text)
+    {
+        StringBuilder idea = new StringBuilder();
+        if (random.nextDouble() < rt)
+        {
+            switch (random.nextInt(3))
+            {
+            case 0:  idea.append("RT @").append(username()).append(' ');
+                     break;
+            case 1:  idea.append("RT: @").append(username()).append(" @")
+                         .append(username()).append(' ');
+                     break;
+            default: idea.append("RTvia").append(username()).append(' ');
+            }
+        }
+        if (random.nextDouble() < mentions)
+            idea.append(random.nextBoolean() ? "@whitehouse " : "@"
+                    + username() + " ");
+        if (random.nextDouble() < hashtags / 2)
+            idea.append("#whgc ");
+        idea.append(text);
+        if (random.nextDouble() < hashtags / 2)
+            idea.append(" #").append(WORDS[random.nextInt(WORDS.length)]);
+        return idea.toString();
+    }
+
+    private String username()
+    {
+        return "user" + Integer.toString(random.nextInt(1 << 20), 36);
+    }
+
+    //  Quoted if it has to be, as a spreadsheet would write it
+    private static void writeField(Writer writer, String field)
+        throws IOException
+    {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0
+                && field.indexOf('\n') < 0)
+        {
+            writer.write(field);
+            return;
+        }
+        writer.write('"');
+        writer.write(field.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        CorpusGenerator generator = new CorpusGenerator();
+        for (int i = 2; i < args.length; i++)
+        {
+            String flag = args[i];
+            String value = flag.substring(flag.indexOf('=') + 1);
+            if (flag.startsWith("-seed="))
+                generator.seed = Long.parseLong(value);
+            else if (flag.startsWith("-duplicates="))
+                generator.duplicates = Double.parseDouble(value);
+            else if (flag.startsWith("-rt="))
+                generator.rt = Double.parseDouble(value);
+            else if (flag.startsWith("-mentions="))
+                generator.mentions = Double.parseDouble(value);
+            else if (flag.startsWith("-hashtags="))
+                generator.hashtags = Double.parseDouble(value);
+            else if (flag.startsWith("-useless="))
+                generator.useless = Double.parseDouble(value);
+            else if (flag.startsWith("-commas="))
+                generator.commas = Double.parseDouble(value);
+            else if (flag.startsWith("-newlines="))
+                generator.newlines = Double.parseDouble(value);
+            else
+                throw new IllegalArgumentException("Unknown option " + flag);
+        }
+        generator.write(args[0], Integer.parseInt(args[1]));
+    }
+}
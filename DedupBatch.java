@@ -0,0 +1,206 @@
+import au.com.bytecode.opencsv.CSVReader;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*************************************************************************
+ *  Compilation:  javac DedupBatch.java
+ *  Execution:    java DedupBatch jobs useless [-jobs=N] [flags]
+ *  Dependencies: Deduplicater.java, ExternalDeduplicater.java,
+ *                DedupOptions.java, opencsv-2.1.jar
+ *
+ *  Deduplicates many files in one JVM, as if by one
+ *  "java Deduplicater input output useless [flags]" per file, several at
+ *  a time. jobs is either
+ *
+ *    a directory   every .csv file in it is deduplicated into a file of
+ *                  the same name in its "deduplicated" subdirectory
+ *    a manifest    a CSV file of "input,output" rows
+ *
+ *  Up to N files (-jobs=N, by default one per processor) are processed at
+ *  once, each by a Deduplicater of its own, so nothing from one file can
+ *  end up in another's output and a file that fails doesn't stop the
+ *  others. A rule file (-rules=FILE) is read once for all of them. Besides
+ *  the start-up and warm-up of a JVM per file, this saves the time a
+ *  process per file spends with its one CPU idle while it reads and
+ *  writes.
+ *
+ *  -history, -report and -jmx can't be used, since every file would
+ *  share them, nor can -partitions, since the batch already runs several
+ *  files at once. With -external, as on its own, -near, -contains,
+ *  -clusters and -normalize can't be used.
+ *
+ *  % java -cp .:classpath/opencsv-2.1.jar DedupBatch campaigns/ 1
+ *
+ *************************************************************************/
+
+public class DedupBatch {
+
+    //  One file to deduplicate and, once it's done, how it went
+    public static class Job
+    {
+        public final String input, output;
+        public int rowsRead = -1, kept = -1;
+        public long millis;
+        public Exception error;
+
+        public Job(String input, String output)
+        {
+            this.input = input;
+            this.output = output;
+        }
+    }
+
+    private final DedupOptions options;
+    private final RulePass[] rulePasses;
+
+    public DedupBatch(DedupOptions options)
+    {
+        if (options.history != null || options.report != null
+                || options.jmx)
+            throw new IllegalArgumentException("-history, -report and -jmx "
+                    + "can't be used with a batch");
+        if (options.partitions > 0)
+            throw new IllegalArgumentException("-partitions can't be used "
+                    + "with a batch");
+        if (options.externalMemory > 0 && (options.nearThreshold > 0
+                    || options.containedLength > 0 || options.clusters
+                    || options.normalize))
+            throw new IllegalArgumentException("-external can't be used "
+                    + "with -near, -contains, -clusters or -normalize");
+        this.options = options;
+        rulePasses = Deduplicater.readRules(options);
+    }
+
+    //  The jobs for a directory or manifest, as described above
+    public static List<Job> jobs(String path) throws IOException
+    {
+        File file = new File(path);
+        if (file.isDirectory())
+            return directoryJobs(file);
+
+        List<Job> jobs = new ArrayList<Job>();
+        CSVReader reader = new CSVReader(new FileReader(file));
+        String[] line;
+        while ((line = reader.readNext()) != null)
+        {
+            if (line.length == 1 && line[0].trim().length() == 0)
+                continue;
+            if (line.length != 2)
+                throw new IOException(path + ": expected input,output but "
+                        + "got " + Arrays.toString(line));
+            jobs.add(new Job(line[0].trim(), line[1].trim()));
+        }
+        reader.close();
+        return jobs;
+    }
+
+    private static List<Job> directoryJobs(File directory) throws IOException
+    {
+        File outputDirectory = new File(directory, "deduplicated");
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdir())
+            throw new IOException("Can't make " + outputDirectory);
+
+        String[] names = directory.list();
+        Arrays.sort(names);
+        List<Job> jobs = new ArrayList<Job>();
+        for (String name : names)
+        {
+            File input = new File(directory, name);
+            if (name.endsWith(".csv") && input.isFile())
+                jobs.add(new Job(input.getPath(),
+                            new File(outputDirectory, name).getPath()));
+        }
+        return jobs;
+    }
+
+    //  Runs the jobs, the given number at a time, and returns once they've
+    //  all finished
+    public void run(List<Job> jobs, int workers) throws InterruptedException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        for (final Job job : jobs)
+            pool.execute(new Runnable() {
+                public void run()
+                {
+                    DedupBatch.this.run(job);
+                }
+            });
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    private void run(Job job)
+    {
+        long start = System.nanoTime();
+        try
+        {
+            if (options.externalMemory > 0)
+                new ExternalDeduplicater(job.input, options, rulePasses)
+                    .dedup(job.output);
+            else
+            {
+                Deduplicater d = new Deduplicater(job.input, options,
+                        rulePasses);
+                d.dedup(job.output);
+                job.rowsRead = d.rowsRead();
+                job.kept = d.size();
+            }
+        }
+        catch (Exception e)
+        {
+            job.error = e;
+        }
+        job.millis = (System.nanoTime() - start) / 1000000;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        //  -jobs=N is ours; the other flags are Deduplicater's
+        int workers = Runtime.getRuntime().availableProcessors();
+        List<String> flags = new ArrayList<String>();
+        for (int i = 2; i < args.length; i++)
+        {
+            if (args[i].startsWith("-jobs="))
+                workers = Integer.parseInt(args[i].substring(6));
+            else
+                flags.add(args[i]);
+        }
+        DedupOptions options = DedupOptions.parse(
+                flags.toArray(new String[flags.size()]), 0);
+        options.uselessOn = Integer.parseInt(args[1]) == 1;
+
+        List<Job> jobs = jobs(args[0]);
+        long start = System.nanoTime();
+        new DedupBatch(options).run(jobs, workers);
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        int failed = 0;
+        for (Job job : jobs)
+        {
+            if (job.error != null)
+            {
+                failed++;
+                System.out.println(job.input + ": " + job.error);
+            }
+            else if (job.rowsRead >= 0)
+                System.out.println(job.input + " -> " + job.output + ": "
+                        + job.rowsRead + " rows, " + job.kept + " ideas, "
+                        + job.millis + " ms");
+            else
+                System.out.println(job.input + " -> " + job.output + ": "
+                        + job.millis + " ms");
+        }
+        System.out.println(jobs.size() + " files, " + failed + " failed, "
+                + millis + " ms");
+        if (failed > 0)
+            System.exit(1);
+    }
+}
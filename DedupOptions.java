@@ -0,0 +1,202 @@
+/*************************************************************************
+ *  Compilation:  javac DedupOptions.java
+ *  Dependencies: RowWriter.java
+ *
+ *  Settings for a Deduplicater run. The defaults reproduce the original
+ *  behavior; the optional flags that follow the three required command
+ *  line arguments turn the other modes on:
+ *
+ *    -fused      run the whole rule chain on each idea once, while the
+ *                input is read, instead of one pass over all ideas per rule
+ *    -rules=FILE read the cleanup rules from FILE (see RuleFile) instead
+ *                of using the built-in ones
+ *    -rows=N     size the tables for about N input rows
+ *    -format=F   write the output as csv (the default), jsonl or binary
+ *                (see RowWriter)
+ *    -clusters[=members]
+ *                keep track of which rows were deleted as duplicates of
+ *                which, and give each row of the output the number of rows
+ *                in its cluster and, with =members, their ids (see
+ *                Clusters)
+ *    -report=FILE
+ *                write what each phase of the run did to FILE as JSON (see
+ *                RunReport)
+ *    -jmx        register the run report as the MBean
+ *                Deduplicater:type=RunReport while the run goes on
+ *    -opencsv    read the input with opencsv instead of memory-mapping it
+ *    -cache[=DIR]
+ *                read the input from a binary cache of its columns, beside
+ *                it or in DIR, written from the CSV the first time and
+ *                whenever the input changes (see ColumnCache)
+ *    -threads=N  read the input in chunks and clean up and deduplicate each
+ *                chunk with N threads
+ *    -fingerprint
+ *                key the idea index by 64-bit fingerprints of the ideas
+ *                instead of the ideas themselves; not used with -threads
+ *    -arena[=direct]
+ *                keep the ideas and usernames as UTF-8 bytes in an arena
+ *                (see TextArena), off the heap with =direct, and key the
+ *                idea index by fingerprints (except with -threads)
+ *    -normalize  find duplicates by the ideas' matching forms (see
+ *                MatchingForm), so that ideas differing only in case, white
+ *                space or Unicode compatibility forms count as the same;
+ *                the output keeps the text of the first
+ *    -bloom      put a Bloom filter in front of the idea index, and report
+ *                how often it answered a lookup by itself
+ *    -near=T     after the other remove methods, also remove ideas whose
+ *                Jaccard similarity to an earlier idea is at least T
+ *    -contains=N then remove ideas that contain another idea of at least
+ *                N characters
+ *    -external=MB
+ *                sort the rows on disk, using about MB megabytes of memory,
+ *                instead of keeping them all in memory (see
+ *                ExternalDeduplicater)
+ *    -partitions=N
+ *                deduplicate with N worker processes, each handling the
+ *                ideas that hash to its partition (see
+ *                PartitionedDeduplicater)
+ *    -history=DIR
+ *                leave out ideas kept by earlier runs with the same DIR, and
+ *                add this run's ideas to the index there (see HistoryIndex)
+ *
+ *************************************************************************/
+
+public class DedupOptions {
+
+    //  Whether removeUselessTweets() is part of applyAllRemoves()
+    public boolean uselessOn = false;
+
+    //  Whether the rule chain is applied once per idea at ingest time
+    public boolean fused = false;
+
+    //  File the cleanup rules are read from; null means the built-in rules
+    public String rules = null;
+
+    //  Whether the idea index is keyed by fingerprints
+    public boolean fingerprint = false;
+
+    //  Whether duplicates are found by the ideas' matching forms rather
+    //  than the ideas themselves
+    public boolean normalize = false;
+
+    //  Whether a Bloom filter is put in front of the idea index
+    public boolean bloom = false;
+
+    //  Whether ideas and usernames are kept in a TextArena rather than as
+    //  Strings, and whether it's off the heap
+    public boolean arena = false;
+    public boolean directArena = false;
+
+    //  Jaccard threshold for removeNearDuplicates(); 0 means don't
+    public double nearThreshold = 0;
+
+    //  Minimum length of a contained idea for removeContainingIdeas(); 0
+    //  means don't
+    public int containedLength = 0;
+
+    //  Memory budget in bytes for sorting on disk; 0 means keep every row
+    //  in memory
+    public long externalMemory = 0;
+
+    //  Worker processes for a partitioned run; 0 means run in this process
+    public int partitions = 0;
+
+    //  Directory of the index of earlier runs' ideas; null means don't
+    //  look at earlier runs
+    public String history = null;
+
+    //  Format of the output file: RowWriter.CSV, JSONL or BINARY
+    public int format = RowWriter.CSV;
+
+    //  Whether each row of the output gets the size of its cluster of
+    //  duplicates, and whether the ids of the rows in it too
+    public boolean clusters = false;
+    public boolean clusterMembers = false;
+
+    //  File the run report is written to as JSON; null means don't
+    public String report = null;
+
+    //  Whether the run report is registered as an MBean, to watch the run
+    //  through JMX
+    public boolean jmx = false;
+
+    //  Whether the input is read with opencsv rather than MappedCSVReader
+    public boolean opencsv = false;
+
+    //  Directory the input's column cache is kept in, "" for the input's
+    //  own; null means parse the input every time
+    public String cache = null;
+
+    //  Threads used to read the input; 0 means read it in this thread
+    public int threads = 0;
+
+    //  Rows read at a time when reading with several threads
+    public int chunkRows = 1 << 16;
+
+    //  Expected number of input rows; 0 means guess from the file size
+    public int expectedRows = 0;
+
+    //  Reads the optional flags in args, starting at index start
+    public static DedupOptions parse(String[] args, int start)
+    {
+        DedupOptions options = new DedupOptions();
+        for (int i = start; i < args.length; i++)
+        {
+            String flag = args[i];
+            if (flag.equals("-fused"))
+                options.fused = true;
+            else if (flag.equals("-fingerprint"))
+                options.fingerprint = true;
+            else if (flag.equals("-arena") || flag.equals("-arena=heap"))
+                options.arena = true;
+            else if (flag.equals("-arena=direct"))
+                options.arena = options.directArena = true;
+            else if (flag.equals("-normalize"))
+                options.normalize = true;
+            else if (flag.equals("-bloom"))
+                options.bloom = true;
+            else if (flag.startsWith("-near="))
+                options.nearThreshold = Double.parseDouble(value(flag));
+            else if (flag.startsWith("-contains="))
+                options.containedLength = Integer.parseInt(value(flag));
+            else if (flag.startsWith("-external="))
+                options.externalMemory =
+                    Long.parseLong(value(flag)) * 1024 * 1024;
+            else if (flag.startsWith("-partitions="))
+                options.partitions = Integer.parseInt(value(flag));
+            else if (flag.startsWith("-history="))
+                options.history = value(flag);
+            else if (flag.startsWith("-format="))
+                options.format = RowWriter.format(value(flag));
+            else if (flag.equals("-clusters"))
+                options.clusters = true;
+            else if (flag.equals("-clusters=members"))
+                options.clusters = options.clusterMembers = true;
+            else if (flag.startsWith("-report="))
+                options.report = value(flag);
+            else if (flag.equals("-jmx"))
+                options.jmx = true;
+            else if (flag.equals("-opencsv"))
+                options.opencsv = true;
+            else if (flag.equals("-cache"))
+                options.cache = "";
+            else if (flag.startsWith("-cache="))
+                options.cache = value(flag);
+            else if (flag.startsWith("-threads="))
+                options.threads = Integer.parseInt(value(flag));
+            else if (flag.startsWith("-rules="))
+                options.rules = value(flag);
+            else if (flag.startsWith("-rows="))
+                options.expectedRows = Integer.parseInt(value(flag));
+            else
+                throw new IllegalArgumentException("Unknown option " + flag);
+        }
+        return options;
+    }
+
+    //  The part of "-flag=value" after the equals sign
+    private static String value(String flag)
+    {
+        return flag.substring(flag.indexOf('=') + 1);
+    }
+}
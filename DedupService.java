@@ -0,0 +1,282 @@
+import au.com.bytecode.opencsv.CSVParser;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*************************************************************************
+ *  Compilation:  javac DedupService.java
+ *  Execution:    java DedupService port useless [input.csv] [flags]
+ *  Dependencies: Deduplicater.java, DedupOptions.java, FusedChain.java,
+ *                ConcurrentIdeaIndex.java, RuleFile.java, MatchingForm.java,
+ *                opencsv-2.1.jar
+ *
+ *  Keeps the index of cleaned-up ideas in memory and answers, over HTTP
+ *  on the loopback interface only, whether new responses are new ideas
+ *  or duplicates, so a stream of small batches doesn't pay for starting a
+ *  JVM, reading every earlier response and building the index each time.
+ *
+ *  The index starts with the ideas Deduplicater keeps from input.csv, if
+ *  one is given, with their row numbers as ids; new responses get the
+ *  ids that follow. Each response goes through the whole rule chain (the
+ *  built-in rules, or -rules=FILE; with removeUselessTweets() if useless
+ *  is 1) and is a duplicate if an earlier response ended up as the same
+ *  idea (or, with -normalize, one with the same matching form; see
+ *  MatchingForm).
+ *
+ *    POST /check   the body is CSV rows "network,author_username,post_text"
+ *                  (or just the text, one per line), in UTF-8; the answer
+ *                  has a line for each row, in order: "new <id>",
+ *                  "duplicate <id of the earlier idea>", or "deleted" if a
+ *                  rule deletes the row. A body that isn't CSV, or has a
+ *                  row of another number of fields, gets a 400 and none of
+ *                  its rows are checked.
+ *    GET /stats    ideas in the index and responses checked
+ *
+ *  Requests are handled by a fixed pool of threads (-threads=N, by
+ *  default two per processor). Checking a response takes no lock: the
+ *  rules run in the request's thread, and the index is a concurrent hash
+ *  table, so one slow request doesn't hold up the others. Of several
+ *  responses with the same idea checked at the same time, exactly one is
+ *  new.
+ *
+ *  % java -cp .:classpath/opencsv-2.1.jar DedupService 8080 1
+ *        Grand-Challenges-responses.csv
+ *  % curl --data-binary @batch.csv http://localhost:8080/check
+ *
+ *************************************************************************/
+
+public class DedupService {
+
+    private final FusedChain chain;
+    private final ConcurrentIdeaIndex index;
+    private final AtomicInteger nextId;
+    private final boolean normalize;
+    private final AtomicLong checked = new AtomicLong();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    //  One buffer for the rules per request thread
+    private final ThreadLocal<StringBuilder> buffers =
+        new ThreadLocal<StringBuilder>() {
+            protected StringBuilder initialValue()
+            {
+                return new StringBuilder();
+            }
+        };
+
+    //  Starts with the ideas Deduplicater keeps from inputFile, or with none
+    //  if it's null
+    public DedupService(String inputFile, DedupOptions options)
+        throws IOException
+    {
+        RulePass[] rulePasses = options.rules == null ? null
+            : RuleFile.read(options.rules);
+        chain = new FusedChain(Deduplicater.ruleChain(rulePasses,
+                    options.uselessOn));
+        normalize = options.normalize;
+
+        int rows = 0;
+        Deduplicater d = null;
+        if (inputFile != null)
+        {
+            d = new Deduplicater(inputFile, options);
+            d.applyAllRemoves(options.uselessOn);
+            rows = d.rowsRead();
+        }
+
+        index = new ConcurrentIdeaIndex(Math.max(rows, 1 << 16),
+                Math.max(1, options.threads));
+        if (d != null)
+            for (Integer id : d.getIds())
+                index.put(key(d.getIdea(id)), id);
+        nextId = new AtomicInteger(rows);
+    }
+
+    //  "new <id>", "duplicate <id>" or "deleted" for a response with the
+    //  given text. Safe to call from several threads at once.
+    public String check(String idea)
+    {
+        int id = nextId.getAndIncrement();
+        checked.incrementAndGet();
+        String cleaned = chain.apply(Deduplicater.whitespaceToSpace(
+                    idea.trim()), buffers.get());
+        if (cleaned == RulePass.DELETED)
+            return "deleted";
+
+        int earlier = index.putIfAbsent(key(cleaned), id);
+        return earlier < 0 ? "new " + id : "duplicate " + earlier;
+    }
+
+    private String key(String idea)
+    {
+        return normalize ? MatchingForm.of(idea) : idea;
+    }
+
+    //  Number of ideas in the index
+    public int size()
+    {
+        return index.size();
+    }
+
+    //  Serves on the given port of the loopback interface (0 picks a free
+    //  one; see port()) with the given number of threads
+    public void start(int port, int threads) throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), port), 1024);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+
+        server.createContext("/check", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                if (!exchange.getRequestMethod().equals("POST"))
+                {
+                    respond(exchange, 405, "POST a CSV batch\n");
+                    return;
+                }
+                //  The whole batch is read before any of it is checked, so
+                //  a body that isn't CSV adds nothing to the index
+                List<String[]> rows;
+                try
+                {
+                    rows = rows(new BufferedReader(new InputStreamReader(
+                                    exchange.getRequestBody(), "UTF-8")));
+                }
+                catch (IOException e)
+                {
+                    respond(exchange, 400, "Bad CSV batch: "
+                            + e.getMessage() + "\n");
+                    return;
+                }
+
+                StringBuilder answers = new StringBuilder();
+                for (String[] row : rows)
+                    answers.append(check(row[row.length - 1]))
+                        .append('\n');
+                respond(exchange, 200, answers.toString());
+            }
+        });
+
+        server.createContext("/stats", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                respond(exchange, 200, "ideas " + size() + "\nchecked "
+                        + checked.get() + "\n");
+            }
+        });
+
+        server.start();
+    }
+
+    //  The rows of a batch, parsed as CSVReader parses them, but without
+    //  blank lines. Throws an IOException if a row doesn't have 1 or 3
+    //  fields, or if the body ends inside a quoted field, where CSVReader
+    //  would quietly drop the last row.
+    private static List<String[]> rows(BufferedReader body)
+        throws IOException
+    {
+        CSVParser parser = new CSVParser();
+        List<String[]> rows = new ArrayList<String[]>();
+        String[] row = null;
+        String line;
+        try
+        {
+            while ((line = body.readLine()) != null)
+            {
+                //  A line ending inside quotes gives its fields once the
+                //  quotes are closed
+                String[] fields = parser.parseLineMulti(line);
+                if (row == null)
+                    row = fields;
+                else if (fields.length > 0)
+                {
+                    String[] joined = Arrays.copyOf(row,
+                            row.length + fields.length);
+                    System.arraycopy(fields, 0, joined, row.length,
+                            fields.length);
+                    row = joined;
+                }
+                if (parser.isPending())
+                    continue;
+
+                //  A blank line is a row with one empty field. A row of
+                //  another shape would leave it unclear which field is the
+                //  idea (an unquoted idea with a comma in it, say).
+                if (row.length != 1 && row.length != 3)
+                    throw new IOException("a row has " + row.length
+                            + " fields instead of 1 or 3");
+                if (row.length > 1 || row[0].length() > 0)
+                    rows.add(row);
+                row = null;
+            }
+        }
+        finally
+        {
+            body.close();
+        }
+        if (parser.isPending())
+            throw new IOException("a quoted field isn't closed");
+        return rows;
+    }
+
+    public int port()
+    {
+        return server.getAddress().getPort();
+    }
+
+    public void stop()
+    {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private static void respond(HttpExchange exchange, int status,
+            String body) throws IOException
+    {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type",
+                "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        int port = Integer.parseInt(args[0]);
+        String inputFile = null;
+        int flags = 2;
+        if (args.length > 2 && !args[2].startsWith("-"))
+        {
+            inputFile = args[2];
+            flags = 3;
+        }
+        DedupOptions options = DedupOptions.parse(args, flags);
+        options.uselessOn = Integer.parseInt(args[1]) == 1;
+
+        DedupService service = new DedupService(inputFile, options);
+        int threads = options.threads > 0 ? options.threads
+            : 2 * Runtime.getRuntime().availableProcessors();
+        service.start(port, threads);
+        System.out.println("Listening on localhost:" + service.port()
+                + " with " + service.size() + " ideas");
+    }
+}
@@ -1,11 +1,12 @@
-import au.com.bytecode.opencsv.CSVReader;
-import au.com.bytecode.opencsv.CSVWriter;
-
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.FileWriter;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /*************************************************************************
  *  Brian Tubergen
@@ -13,7 +14,17 @@ import java.util.regex.Pattern;
  *
  *  Compilation:  javac Deduplicater.java
  *  Execution:    java Deduplicater Grand-Challenges-responses.csv output.csv 1
- *  Dependencies: ST.java, opencsv-2.1.jar
+ *  Dependencies: CSVSource.java, MappedCSVReader.java, OpenCSVSource.java,
+ *                IdeaIndex.java, HashIdeaIndex.java, BloomIdeaIndex.java,
+ *                FingerprintIdeaIndex.java, ConcurrentIdeaIndex.java,
+ *                RecordStore.java, RowWriter.java, Rule.java,
+ *                RuleScanners.java, RulePass.java, RuleFile.java,
+ *                HistoryIndex.java, RunReport.java, TextArena.java,
+ *                Clusters.java, MatchingForm.java, IdeaRecord.java,
+ *                ColumnCache.java, ExternalDeduplicater.java,
+ *                PartitionedDeduplicater.java, MinHashLSH.java,
+ *                AhoCorasick.java, FusedChain.java, DedupOptions.java,
+ *                opencsv-2.1.jar
  *
  *  Reads in data from a CSV file and removes duplicate idea entries. Some
  *  of the data structures could be eliminated based on what we want.
@@ -24,28 +35,88 @@ import java.util.regex.Pattern;
 
 public class Deduplicater {
 
-    //   Given an idea "post_text," gives the id associated with that idea.
-    private ST<String, Integer> ideaToId = new ST<String, Integer>();
+    //  Regular expression to match and eliminate "RT @username" from ideas
+    //  Will not eliminate ideas where "RT" does not occur at the beginning
+    //  of the string
+    //  Will not eliminate "RTarbitarytext"
+    //  Will not eliminate @username if it's not proceeded by RT
+    //  Tries to recognize if RT is followed by ": "
+    private static final Rule RT = new Rule("RT:*([ ]*@[^ ]*)+", false, true,
+            RuleScanners.RT);
+
+    //  "RTarbitrary_text " and "RT " at the beginning of ideas
+    private static final Rule RT_TEXT = new Rule("RT[^ ]+[ ]", false, true,
+            RuleScanners.RT_TEXT);
+    private static final Rule RT_SPACES = new Rule("RT[ ]+", false, true,
+            RuleScanners.RT_SPACES);
+
+    private static final Rule AT_TEXT = new Rule("[ ]*@[^ ]*", true, false,
+            RuleScanners.AT_TEXT);
+    private static final Rule WHITEHOUSE = new Rule("@whitehouse", true,
+            false, RuleScanners.WHITEHOUSE);
+    private static final Rule HASHTAG = new Rule("#[^ ]*", true, false,
+            RuleScanners.HASHTAG);
+
+    //  The 2nd argument is true because we only want to match at the
+    //  beginning
+    private static final Rule INITIAL_NON_ALPHANUMERIC =
+        new Rule("[^0-9a-z]+", true, true,
+                RuleScanners.INITIAL_NON_ALPHANUMERIC);
+
+    private static final Rule USELESS =
+        new Rule(".*is looking for Grand Challenges in sci.* tech.*", true,
+                false, RuleScanners.USELESS);
+
+    //  Given an idea "post_text," gives the id associated with that idea.
+    //  Nothing needs the ideas in sorted order, so this is a hash table,
+    //  keyed either by the ideas themselves or by their fingerprints.
+    private IdeaIndex ideaToId;
 
     /*  Given an id, gives the idea/username/network associated with that id
      *  Right now I only keep the information for the first time the idea
-     *  is encountered. Could keep information for all instances of an idea
-     *  by replacing the "String" with a set.
+     *  is encountered. Ids are row numbers, so these are kept in arrays
+     *  indexed by id rather than in symbol tables.
      */
-    private ST<Integer, String> idToIdea = new ST<Integer, String>();
-    private ST<Integer, String> idToUsername = new ST<Integer, String>();
-    private ST<Integer, String> idToNetwork = new ST<Integer, String>();
+    private RecordStore store;
+
+    private DedupOptions options;
+
+    //  Rough size of an input row, used to guess how many rows a file has
+    private static final int BYTES_PER_ROW = 128;
+
+    //  Number of rows read from the input
+    private int rowsRead = 0;
+
+    //  Rules read from options.rules, or null for the built-in ones
+    private RulePass[] rulePasses;
+
+    //  In fused mode, the changes the rule chain makes to each idea; these
+    //  are replayed by applyAllRemoves()
+    private FusedChain chain;
 
-    //  Biggest id number
-    private int maxId;
-    //  Number of ideas
-    private int N = 0;
+    //  What each phase of the run did
+    private final RunReport report = new RunReport();
+
+    //  Which rows were deleted as duplicates of which; null unless
+    //  options.clusters
+    private Clusters clusters;
+
+    //  With -normalize, the matching form of each row's idea as the index
+    //  has it, so that it's worked out once per change to the idea; null
+    //  otherwise
+    private String[] keys;
 
     public Deduplicater(String inputFile)
     {
+        this(inputFile, new DedupOptions());
+    }
+
+    public Deduplicater(String inputFile, DedupOptions options)
+    {
+        setUp(inputFile, options, readRules(options));
         try
         {
-            processData(inputFile);
+            ingest(inputFile);
         }
         catch (Exception e)
         {
@@ -53,111 +124,359 @@ public class Deduplicater {
         }
     }
 
+    //  With the rules from options.rules already read, so that several runs
+    //  can share them (see DedupBatch). An error reading the input is
+    //  thrown rather than printed, so a file that fails part way through
+    //  isn't taken for a shorter one.
+    Deduplicater(String inputFile, DedupOptions options,
+            RulePass[] rulePasses) throws IOException
+    {
+        setUp(inputFile, options, rulePasses);
+        ingest(inputFile);
+    }
+
+    private void setUp(String inputFile, DedupOptions options,
+            RulePass[] rulePasses)
+    {
+        this.options = options;
+        this.rulePasses = rulePasses;
+
+        //  Size the table for the number of rows up front, guessing from the
+        //  size of the file if we weren't told
+        int expectedRows = options.expectedRows;
+        if (expectedRows <= 0)
+            expectedRows = (int) Math.min(new File(inputFile).length()
+                    / BYTES_PER_ROW, Integer.MAX_VALUE / 4);
+        store = new RecordStore(expectedRows, options.arena
+                ? new TextArena(options.directArena) : null);
+        //  The threads share an index keyed by the ideas themselves, so
+        //  -fingerprint, and -arena's fingerprint keys, aren't used with them
+        if (options.threads > 0)
+            ideaToId = new ConcurrentIdeaIndex(expectedRows, options.threads);
+        else if ((options.fingerprint || options.arena) && !options.normalize)
+            ideaToId = new FingerprintIdeaIndex(expectedRows, store);
+        else
+            ideaToId = new HashIdeaIndex(expectedRows);
+        if (options.bloom && options.threads == 0)
+            ideaToId = new BloomIdeaIndex(ideaToId, expectedRows);
+        if (options.fused)
+            chain = new FusedChain(ruleChain(rulePasses, options.uselessOn));
+        if (options.clusters)
+            clusters = new Clusters(expectedRows);
+        if (options.normalize)
+            keys = new String[Math.max(16, expectedRows)];
+
+        if (options.jmx)
+            report.register();
+    }
+
+    private void ingest(String inputFile) throws IOException
+    {
+        report.begin("ingest");
+        try
+        {
+            if (options.threads > 0)
+                processDataInParallel(inputFile);
+            else
+                processData(inputFile);
+        }
+        finally
+        {
+            report.scanned(rowsRead);
+            report.collapsed(rowsRead - store.size());
+            report.end(store.size());
+        }
+    }
+
+    //  The passes in options.rules, or null for the built-in ones
+    static RulePass[] readRules(DedupOptions options)
+    {
+        if (options.rules == null)
+            return null;
+        try
+        {
+            return RuleFile.read(options.rules);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalArgumentException("Can't read rules from "
+                    + options.rules + ": " + e.getMessage());
+        }
+    }
+
+    //  Memory-maps the input unless told to use opencsv or the file's
+    //  charset can't be parsed a byte at a time
+    static CSVSource openInput(String inputFile, DedupOptions options)
+        throws IOException
+    {
+        if (options.cache != null)
+            return ColumnCache.open(inputFile, options);
+        return openParser(inputFile, options);
+    }
+
+    //  The input, parsed as CSV
+    static CSVSource openParser(String inputFile, DedupOptions options)
+        throws IOException
+    {
+        if (parsesWithOpenCSV(options))
+            return new OpenCSVSource(inputFile);
+        return new MappedCSVReader(inputFile);
+    }
+
+    static boolean parsesWithOpenCSV(DedupOptions options)
+    {
+        return options.opencsv
+            || !MappedCSVReader.supports(Charset.defaultCharset());
+    }
+
     private void processData(String inputFile) throws IOException
     {
-        CSVReader reader = new CSVReader(new FileReader(inputFile));
+        CSVSource reader = openInput(inputFile, options);
 
         //  Keep track of which spreadsheet row data came from; use this as id
         //  Technically id = row - 1
         int id = 0;
 
         //  Read in the fields and assume they come in the format "network,
-        //  author_username, post_text"
-        String[] currentLine;
-        while ((currentLine = reader.readNext()) != null)
+        //  author_username, post_text". The username and network are only
+        //  needed for the first occurrence of an idea.
+        while (reader.next())
         {
-            String network = currentLine[0].trim();
-            String username = currentLine[1].trim();
             //  Change tabs and newlines to single spaces
-            String idea = whitespaceToSpace(currentLine[2].trim());
+            String idea = whitespaceToSpace(reader.field(2).trim());
+            String key = key(idea);
 
-            if (!ideaToId.contains(idea))
+            if (!ideaToId.contains(key))
             {
-                ideaToId.put(idea, id);
-                idToIdea.put(id, idea);
-                idToUsername.put(id, username);
-                idToNetwork.put(id, network);
-                N++;
+                String network = reader.field(0).trim();
+                String username = reader.field(1).trim();
+                store.add(id, network, username, idea);
+                ideaToId.put(key, id);
+                setKey(id, key);
+
+                if (chain != null)
+                    chain.add(id, idea);
             }
+            else if (clusters != null)
+                clusters.merge(id, ideaToId.get(key));
             id++;
         }
+        rowsRead = id;
+        reader.close();
+    }
+
+    //  Same as processData, but the rows are read in chunks and each chunk is
+    //  cleaned up and deduplicated by several threads. Where an idea occurs
+    //  more than once, the smallest id still wins.
+    private void processDataInParallel(String inputFile) throws IOException
+    {
+        CSVSource reader = openInput(inputFile, options);
+        ForkJoinPool pool = new ForkJoinPool(options.threads);
+        ConcurrentIdeaIndex index = (ConcurrentIdeaIndex) ideaToId;
+
+        try
+        {
+            Chunk chunk = new Chunk(options.chunkRows);
+            int id = 0;
+            while (chunk.read(reader, id))
+            {
+                //  Every row has to be offered to the index before it's known
+                //  which rows are first occurrences
+                pool.invoke(new ChunkTask(chunk, index, true, 0, chunk.size));
+                pool.invoke(new ChunkTask(chunk, index, false, 0,
+                            chunk.size));
+
+                //  The chunk's first occurrences go into the store in order
+                for (int i = 0; i < chunk.size; i++)
+                {
+                    if (chunk.firstOccurrence[i])
+                    {
+                        store.add(id + i, chunk.networks[i],
+                                chunk.usernames[i], chunk.ideas[i]);
+                        setKey(id + i, chunk.keys[i]);
+                        if (chain != null)
+                            chain.add(id + i, chunk.changes[i]);
+                    }
+                    else if (clusters != null)
+                        clusters.merge(id + i, index.get(chunk.keys[i]));
+                    chunk.changes[i] = null;
+                    chunk.keys[i] = null;
+                }
+                id += chunk.size;
+            }
+            rowsRead = id;
+        }
+        finally
+        {
+            pool.shutdown();
+            reader.close();
+        }
+    }
+
+    //  A run of rows read together, and what happened to each
+    private class Chunk
+    {
+        int first;
+        int size;
+        String[][] lines;
+        String[] networks, usernames, ideas, keys;
+        boolean[] firstOccurrence;
+        String[][] changes;
+
+        Chunk(int capacity)
+        {
+            lines = new String[capacity][];
+            networks = new String[capacity];
+            usernames = new String[capacity];
+            ideas = new String[capacity];
+            keys = new String[capacity];
+            firstOccurrence = new boolean[capacity];
+            changes = new String[capacity][];
+        }
 
-        maxId = id;
+        //  Reads the next rows, whose ids start at first; false at the end
+        boolean read(CSVSource reader, int first) throws IOException
+        {
+            this.first = first;
+            size = 0;
+            while (size < lines.length && reader.next())
+            {
+                String[] currentLine = new String[reader.fields()];
+                for (int i = 0; i < currentLine.length; i++)
+                    currentLine[i] = reader.field(i);
+                lines[size++] = currentLine;
+            }
+            return size > 0;
+        }
+    }
+
+    //  Handles rows lo to hi - 1 of a chunk. While offering, cleans them up
+    //  and offers them to the index; afterwards, works out which of them are
+    //  first occurrences and, in fused mode, runs the rule chain on those.
+    private class ChunkTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        //  Rows handled by one thread without splitting further
+        private static final int ROWS_PER_TASK = 128;
+
+        private final Chunk chunk;
+        private final ConcurrentIdeaIndex index;
+        private final boolean offering;
+        private final int lo, hi;
+
+        ChunkTask(Chunk chunk, ConcurrentIdeaIndex index, boolean offering,
+                int lo, int hi)
+        {
+            this.chunk = chunk;
+            this.index = index;
+            this.offering = offering;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute()
+        {
+            if (hi - lo > ROWS_PER_TASK)
+            {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new ChunkTask(chunk, index, offering, lo, mid),
+                        new ChunkTask(chunk, index, offering, mid, hi));
+                return;
+            }
+
+            StringBuilder buffer = new StringBuilder();
+            for (int i = lo; i < hi; i++)
+            {
+                int id = chunk.first + i;
+                if (offering)
+                {
+                    String[] currentLine = chunk.lines[i];
+                    chunk.lines[i] = null;
+                    chunk.networks[i] = currentLine[0].trim();
+                    chunk.usernames[i] = currentLine[1].trim();
+                    chunk.ideas[i] = whitespaceToSpace(currentLine[2].trim());
+                    chunk.keys[i] = key(chunk.ideas[i]);
+                    index.offer(chunk.keys[i], id);
+                }
+                else
+                {
+                    chunk.firstOccurrence[i] = index.get(chunk.keys[i]) == id;
+                    if (chunk.firstOccurrence[i] && chain != null)
+                        chunk.changes[i] = chain.changes(chunk.ideas[i],
+                                buffer);
+                }
+            }
+        }
     }
 
     //  Will remove @anytext from all ideas and remove duplicates
     public void removeAtText()
     {
-        remove("[ ]*@[^ ]*", true, false);
+        remove("at-text", AT_TEXT);
     }
 
     //  Will remove nonalphanumeric entries from the BEGINNING of all ideas
     //  and delete duplicates
     public void removeInitialNonAlphanumericEntries()
     {
-        //  False is the 2nd argument here because we only want to match at the
-        //  beginning
-        remove("[^0-9a-z]+", true, true);
-        //remove("[^a]+", true, true);
+        remove("initial-non-alphanumeric", INITIAL_NON_ALPHANUMERIC);
     }
 
     //  Removes "RT @username" from the beginnning of all ideas and deletes
     //  duplicates
     public void removeRTs()
     {
-        //  Regular expression to match and eliminate "RT @username" from ideas
-        //  Will not eliminate ideas where "RT" does not occur at the beginning
-        //  of the string
-        //  Will not eliminate "RTarbitarytext"
-        //  Will not eliminate @username if it's not proceeded by RT
-        String rtElim = "RT( @[^ ]*)* ";
-
-        //  Regular expression to eliminate the above but not @whitehouse
-        String rtElimWH = "RT( @[^((W|w)hitehouse)][^ ]*)* ";
-
-        //  Try to recognize if RT is followed by ": "
-        //  Will not eliminate RT:@username
-        //String rtImproved = "RT:*[ ]*( @[^((W|w)hitehouse)][^ ]*)+";
-
-        String rtImproved = "RT:*([ ]*@[^((W|w)hitehouse[ ]*)]*[^ ]*)+";
-
-        String rtSimplified = "RT:*([ ]*@[^ ]*)+";
-
-        remove(rtSimplified, false, true);
+        remove("rt", RT);
         removeRTtext();
     }
 
     //  Will remove "RTarbitrary_text " from the beginning of all ideas
     public void removeRTtext()
     {
-        remove("RT[^ ]+ ", false, true);
-        remove("RT[ ]+", false, true);
+        remove("rt-text", RT_TEXT);
+        remove("rt-spaces", RT_SPACES);
     }
 
     //  Removes "@whitehouse" from all ideas and deletes duplicates
     public void removeWhitehouses()
     {
-        remove("@whitehouse", true, false);
+        remove("whitehouse", WHITEHOUSE);
     }
 
     //  Removes #tag from all ideas and deletes duplicates
     public void removeHashTags()
     {
-        remove("#[^ ]*", true, false);
+        remove("hashtag", HASHTAG);
     }
 
     //  Removes anything with "is looking for Grand Challenges in science and
     //  technology, via Twitter"
     public void removeUselessTweets()
     {
-        remove(".*is looking for Grand Challenges in sci.* tech.*", true,
-                false);
+        remove("useless", USELESS);
     }
 
     //  Applies all of the remove methods implemented. uselessOn determines
     //  whether removeUselessTweets() will be applied as well.
     public void applyAllRemoves(boolean uselessOn)
     {
+        //  The fused changes were worked out for options.uselessOn; if asked
+        //  for the other chain, make separate passes instead
+        if (chain != null && uselessOn == options.uselessOn)
+        {
+            replay();
+            return;
+        }
+        chain = null;
+
+        if (rulePasses != null)
+        {
+            for (RulePass pass : ruleChain(rulePasses, uselessOn))
+                remove(pass);
+            return;
+        }
+
         //  Remove hash tags first in case they come before an RT
         removeHashTags();
         removeRTs();
@@ -173,139 +492,422 @@ public class Deduplicater {
             removeUselessTweets();
     }
 
-    //  Removes a given regular expression from all ideas and deletes duplicates
-    //  Insensitive = true -> case insensitive
-    //  Insensitive = false -> case sensitive
-    private void remove(String regex, boolean insensitive,
-            boolean matchOnlyStart)
+    //  Removes ideas that are nearly the same as an idea with a smaller id:
+    //  ones whose shingles have at least the given Jaccard similarity (see
+    //  MinHashLSH). Unlike the other remove methods this doesn't change any
+    //  idea, it only deletes the near duplicates.
+    public void removeNearDuplicates(double threshold)
     {
-        Pattern myPattern = null;
-        if (insensitive)
-            myPattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
-        else    //  we're dealing with RT
-            myPattern = Pattern.compile(regex);
-
-        for (int id = 0; id <= maxId; id++)
+        report.begin("near-duplicates");
+        report.scanned(store.size());
+        MinHashLSH lsh = new MinHashLSH(threshold);
+        for (int id = store.next(0); id >= 0; id = store.next(id + 1))
         {
-            String idea = idToIdea.get(id);
-            if (idea != null)
+            String idea = store.idea(id);
+            int match = lsh.add(id, idea);
+            if (match >= 0)
             {
-                String simplifiedIdea = null;
-                int newStartIndex = 0;
+                if (clusters != null)
+                    clusters.merge(id, match);
+                deleteRow(id);
+                report.collapsed();
+            }
+        }
+        report.end(store.size());
+    }
 
-                Matcher myMatcher = myPattern.matcher(idea);
-                while (myMatcher.find())
-                {                  
-                    if (!matchOnlyStart)
-                    {
-                        simplifiedIdea = myMatcher.replaceAll("").trim();
-                    }
-                    else if (myMatcher.start() == newStartIndex
-                            && matchOnlyStart)
-                    {
-                        newStartIndex = myMatcher.end();
-                        simplifiedIdea = myMatcher.replaceFirst("").trim();
-                    }
-                }
+    //  Removes ideas that contain another idea of at least minLength
+    //  characters, such as "great idea: <original tweet> via @x". The
+    //  contained idea is kept, whatever its id.
+    public void removeContainingIdeas(int minLength)
+    {
+        report.begin("containing-ideas");
+        report.scanned(store.size());
+        AhoCorasick automaton = new AhoCorasick();
+        for (int id = store.next(0); id >= 0; id = store.next(id + 1))
+        {
+            String idea = store.idea(id);
+            if (idea.length() >= minLength)
+                automaton.add(idea);
+        }
+
+        //  Decide for every idea before deleting any of them
+        BitSet containing = new BitSet();
+        for (int id = store.next(0); id >= 0; id = store.next(id + 1))
+        {
+            String contained = automaton.containedOther(store.idea(id));
+            if (contained == null)
+                continue;
+            containing.set(id);
+            if (clusters != null)
+                clusters.merge(id, ideaToId.get(key(contained)));
+        }
+
+        for (int id = containing.nextSetBit(0); id >= 0;
+                id = containing.nextSetBit(id + 1))
+            deleteRow(id);
+        report.collapsed(containing.cardinality());
+        report.end(store.size());
+    }
 
-                if (simplifiedIdea != null)
+    //  The built-in rules, in the order applyAllRemoves() applies them,
+    //  each in a pass of its own
+    static RulePass[] builtInPasses()
+    {
+        //  Hash tags come first in case they come before an RT; RTs are
+        //  reapplied at the end in case we've uncovered some more
+        return new RulePass[] {
+            new RulePass("hashtag", HASHTAG),
+            new RulePass("rt", RT),
+            new RulePass("rt-text", RT_TEXT),
+            new RulePass("rt-spaces", RT_SPACES),
+            new RulePass("whitehouse", WHITEHOUSE),
+            new RulePass("at-text", AT_TEXT),
+            new RulePass("initial-non-alphanumeric", INITIAL_NON_ALPHANUMERIC),
+            new RulePass("rt", RT),
+            new RulePass("rt-text", RT_TEXT),
+            new RulePass("rt-spaces", RT_SPACES),
+            new RulePass("useless", USELESS)
+        };
+    }
+
+    //  The passes applied by applyAllRemoves(), in the order they're
+    //  applied: the rule file's if there is one, otherwise the built-in
+    //  ones. Passes named "useless" are left out unless uselessOn.
+    static RulePass[] ruleChain(RulePass[] rulePasses, boolean uselessOn)
+    {
+        RulePass[] passes = rulePasses != null ? rulePasses : builtInPasses();
+        if (uselessOn)
+            return passes;
+
+        int kept = 0;
+        RulePass[] withoutUseless = new RulePass[passes.length];
+        for (RulePass pass : passes)
+            if (!pass.name().equals("useless"))
+                withoutUseless[kept++] = pass;
+        return Arrays.copyOf(withoutUseless, kept);
+    }
+
+    //  Fused mode: applies the changes the rule chain made to each idea while
+    //  the input was read. Going through the changes pass by pass, in id
+    //  order, deletes exactly the duplicates the separate passes would.
+    private void replay()
+    {
+        for (int step = 0; step < chain.steps(); step++)
+        {
+            //  Only the ideas the pass changed are looked at
+            report.begin(chain.pass(step).name());
+            for (int i = 0; i < chain.changes(step); i++)
+            {
+                int id = chain.changedId(step, i);
+                String idea = store.idea(id);
+                String simplifiedIdea = chain.changedIdea(step, i);
+                if (idea == null)
+                    continue;
+                report.scanned(1);
+                if (simplifiedIdea == RulePass.DELETED)
+                {
+                    deleteRow(id);
+                    report.deleted();
+                }
+                else
                     updateForDuplicates(id, idea, simplifiedIdea);
             }
+            report.end(store.size());
         }
+
+        //  The changes can only be applied once; later calls make separate
+        //  passes again
+        chain = null;
+    }
+
+    //  Removes a given rule's regular expression from all ideas and deletes
+    //  duplicates
+    private void remove(String name, Rule rule)
+    {
+        remove(new RulePass(name, rule));
+    }
+
+    //  Applies a pass to all ideas, deleting the rows it says to and the
+    //  duplicates
+    private void remove(RulePass pass)
+    {
+        report.begin(pass.name());
+        StringBuilder buffer = new StringBuilder();
+        int scanned = 0;
+        for (int id = store.next(0); id >= 0; id = store.next(id + 1))
+        {
+            String idea = store.idea(id);
+            String simplifiedIdea = pass.apply(idea, buffer);
+            if (simplifiedIdea == RulePass.DELETED)
+            {
+                deleteRow(id);
+                report.deleted();
+            }
+            else if (simplifiedIdea != null)
+                updateForDuplicates(id, idea, simplifiedIdea);
+            scanned++;
+        }
+        report.scanned(scanned);
+        report.end(store.size());
+    }
+
+    private void deleteRow(int id)
+    {
+        ideaToId.delete(keyOf(id));
+        store.delete(id);
+        setKey(id, null);
     }
 
     //  Helper method to check if the new idea is now a duplicate
-    private void updateForDuplicates(Integer id, String idea,
+    private void updateForDuplicates(int id, String idea,
             String simplifiedIdea)
     {
-        String username = idToUsername.get(id);
-        String network = idToNetwork.get(id);
+        //  Always get rid of the old idea. This is done first since a
+        //  fingerprint index checks the old idea against the store.
+        ideaToId.delete(keys == null ? idea : keys[id]);
 
-        if (!ideaToId.contains(simplifiedIdea))
+        String key = key(simplifiedIdea);
+        int earlier = ideaToId.get(key);
+        if (earlier < 0)
         {
-            ideaToId.put(simplifiedIdea, id);
-            idToIdea.put(id, simplifiedIdea);
-            //  These don't do anything I don't think:
-            idToUsername.put(id, username);
-            idToNetwork.put(id, network);
-
+            store.setIdea(id, simplifiedIdea);
+            ideaToId.put(key, id);
+            setKey(id, key);
+            report.modified();
         }
         else //  this idea is a duplicate of something we already had
         {
-            idToIdea.delete(id);
-            idToUsername.delete(id);
-            idToNetwork.delete(id);
-            N--;
+            store.delete(id);
+            setKey(id, null);
+            report.collapsed();
+            if (clusters != null)
+                clusters.merge(id, earlier);
         }
+    }
 
-        //  Always get rid of the old idea
-        ideaToId.delete(idea);
+    //  Changes newlines and tabs to a single space, in one pass over the
+    //  idea and without copying it if there are none
+    static String whitespaceToSpace(String idea)
+    {
+        int i = 0, n = idea.length();
+        while (i < n && idea.charAt(i) != '\t' && idea.charAt(i) != '\n')
+            i++;
+        if (i == n)
+            return idea;
+
+        char[] chars = idea.toCharArray();
+        for (; i < n; i++)
+            if (chars[i] == '\t' || chars[i] == '\n')
+                chars[i] = ' ';
+        return new String(chars);
+    }
+
+    //  What the idea index is keyed by: the idea itself, or with -normalize
+    //  its matching form
+    private String key(String idea)
+    {
+        return options.normalize ? MatchingForm.of(idea) : idea;
+    }
+
+    //  The key of the idea of the row with the given id
+    private String keyOf(int id)
+    {
+        return keys == null ? store.idea(id) : keys[id];
     }
 
-    //  Changes newlines and tabs to a single space
-    private String whitespaceToSpace(String idea)
+    private void setKey(int id, String key)
     {
-       idea = idea.replaceAll("\t", " ");
-       idea = idea.replaceAll("\n", " ");
-       return idea;
+        if (keys == null)
+            return;
+        if (id >= keys.length)
+            keys = Arrays.copyOf(keys, Math.max(id + 1, 2 * keys.length));
+        keys[id] = key;
+    }
+
+    //  Removes the ideas that an earlier run kept, according to the history
+    //  index, and adds the ones that are left to the index as this run's.
+    //  Their ids in the index follow on from the earlier runs' rows. The
+    //  index still has to be committed.
+    public void removeSeenBefore(HistoryIndex history)
+    {
+        report.begin("seen-before");
+        report.scanned(store.size());
+        for (int id = store.next(0); id >= 0; id = store.next(id + 1))
+        {
+            String key = keyOf(id);
+            if (history.contains(key))
+            {
+                deleteRow(id);
+                report.collapsed();
+            }
+            else
+                history.add(key, history.rows() + id);
+        }
+        report.end(store.size());
+    }
+
+    //  Returns number of rows read from the input, duplicates included
+    public int rowsRead()
+    {
+        return rowsRead;
     }
 
     //  Returns number of ideas
     public int size()
     {
-        return N;
+        return store.size();
     }
 
-    //  Returns an iterable of unique ideas
+    //  Returns an iterable of unique ideas, in id order
     public Iterable<String> getIdeas()
     {
-        return ideaToId.keys();
+        return store.ideas();
     }
 
-    //  Returns an iterable of unique ids
+    //  Returns an iterable of unique ids, in increasing order
     public Iterable<Integer> getIds()
     {
-        return idToIdea.keys();
+        return store.ids();
     }
 
     //  Returns the idea associated with a given id
     public String getIdea(int id)
     {
-        return idToIdea.get(id);
+        return store.idea(id);
+    }
+
+    //  Returns the rows kept so far, in id order, as a stream that can be
+    //  made parallel. Nothing may be removed while the stream is used.
+    public Stream<IdeaRecord> records()
+    {
+        return StreamSupport.stream(store.records(), false);
+    }
+
+    //  The Bloom filter's hit and false positive rates, or null if the
+    //  index doesn't have one
+    public String indexStats()
+    {
+        if (ideaToId instanceof BloomIdeaIndex)
+            return ((BloomIdeaIndex) ideaToId).stats();
+        return null;
     }
 
-    //  Gives unique ideas in format: network, author_username, post_text
+    //  Which rows were deleted as duplicates of which, or null if
+    //  options.clusters is off
+    public Clusters clusters()
+    {
+        return clusters;
+    }
+
+    //  What each phase of the run so far did
+    public RunReport report()
+    {
+        return report;
+    }
+
+    //  Gives unique ideas in format: network, author_username, post_text,
+    //  or in the format the options ask for (see RowWriter)
     public void writeOutput(String outputFile) throws IOException
     {
-        CSVWriter writer = new CSVWriter(new FileWriter(outputFile));
+        report.begin("output");
+        RowWriter writer = new RowWriter(outputFile, options.format,
+                clusters != null);
+        if (clusters != null && options.clusterMembers)
+            clusters.group(rowsRead);
 
-        for (Integer id : getIds())
+        for (int id = store.next(0); id >= 0; id = store.next(id + 1))
         {
-            String idea = idToIdea.get(id);
-            String username = idToUsername.get(id);
-            String network = idToNetwork.get(id);
-
-            String[] entries = {network, username, idea};
-            writer.writeNext(entries);
+            if (clusters == null)
+                writer.write(id, store.network(id), store.username(id),
+                        store.idea(id));
+            else
+                writer.write(id, store.network(id), store.username(id),
+                        store.idea(id), clusters.size(id),
+                        options.clusterMembers ? clusters.members(id) : null);
         }
 
         writer.close();
+        report.scanned(store.size());
+        report.end(store.size());
+    }
+
+    //  Everything main() does once the input has been read: applies the
+    //  remove methods the options ask for, leaves out ideas seen by earlier
+    //  runs, and writes the output and the report
+    public void dedup(String outputFile) throws IOException
+    {
+        applyAllRemoves(options.uselessOn);
+        if (options.nearThreshold > 0)
+            removeNearDuplicates(options.nearThreshold);
+        if (options.containedLength > 0)
+            removeContainingIdeas(options.containedLength);
+
+        //  Only write the ideas no earlier run kept, and remember them once
+        //  they've been written
+        HistoryIndex history = null;
+        if (options.history != null)
+            history = HistoryIndex.open(options.history);
+        try
+        {
+            if (history != null)
+                removeSeenBefore(history);
+            writeOutput(outputFile);
+            if (history != null)
+                history.commit(rowsRead());
+        }
+        finally
+        {
+            if (history != null)
+                history.close();
+        }
+        if (options.report != null)
+            report.write(options.report);
     }
 
     public static void main(String[] args)
     {
-        Deduplicater d = new Deduplicater(args[0]);
+        //  args[3...] are optional flags; see DedupOptions
+        DedupOptions options = DedupOptions.parse(args, 3);
 
         //  args[2] = 1 -> apply the removeUselessTweets() method
         //  args[2] != 1 -> don't apply the removeUselessTweets() method
-        if (Integer.parseInt(args[2]) == 1)
-            d.applyAllRemoves(true);
-        else
-            d.applyAllRemoves(false);
+        options.uselessOn = Integer.parseInt(args[2]) == 1;
+
+        //  Too big for memory: sort on disk instead, or split the work
+        //  between processes
+        if (options.externalMemory > 0 || options.partitions > 0)
+        {
+            if (options.nearThreshold > 0 || options.containedLength > 0
+                    || options.history != null || options.clusters
+                    || options.normalize || options.report != null
+                    || options.jmx)
+                throw new IllegalArgumentException("-external and "
+                        + "-partitions can't be used with -near, -contains, "
+                        + "-history, -clusters, -normalize, -report or "
+                        + "-jmx");
+            try
+            {
+                if (options.partitions > 0)
+                    new PartitionedDeduplicater(args[0], options)
+                        .dedup(args[1]);
+                else
+                    new ExternalDeduplicater(args[0], options)
+                        .dedup(args[1]);
+            }
+            catch (Exception e)
+            {
+                System.out.println(e);
+            }
+            return;
+        }
 
+        Deduplicater d = new Deduplicater(args[0], options);
         try
         {
-            d.writeOutput(args[1]);
+            d.dedup(args[1]);
+            if (d.indexStats() != null)
+                System.err.println(d.indexStats());
         }
         catch (Exception e)
         {
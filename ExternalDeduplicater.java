@@ -0,0 +1,764 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/*************************************************************************
+ *  Compilation:  javac ExternalDeduplicater.java
+ *  Dependencies: Deduplicater.java, DedupOptions.java, RulePass.java,
+ *                RuleFile.java, CSVSource.java, RowWriter.java,
+ *                Fingerprint.java
+ *
+ *  Deduplicates an input that doesn't fit in memory, by sorting it on
+ *  disk. Each row goes through the rule chain as it is read, and a record
+ *  of it (its final idea, id, username, network and every change the
+ *  passes made) is added to an external sort: records are kept in memory
+ *  up to a budget, then sorted and spilled to a temporary file as a run,
+ *  and the runs are merged. Rows that end up with the same idea come out
+ *  of the merge together. Each such group is replayed pass by pass, in id
+ *  order, exactly as Deduplicater's separate passes would treat it, which
+ *  picks the row the group keeps. The kept rows go through a second
+ *  external sort, by id, so that they are written in their original
+ *  order.
+ *
+ *  Replaying each group on its own gives the same result as Deduplicater
+ *  unless a pass changes an idea into something the same pass would
+ *  change again (say "RT @a RT @b x" into "RT @b x"), and a later row
+ *  looked like that before the pass: then the earlier row is deleted as a
+ *  duplicate of a row that ends up in a different group. Rows like that
+ *  are rare, so each one is checked for, and if one is found the input is
+ *  deduplicated in memory instead.
+ *
+ *************************************************************************/
+
+public class ExternalDeduplicater {
+
+    //  Runs merged at once; with more runs, some are merged first
+    private static final int MAX_RUNS = 64;
+
+    //  Estimated bytes of a record besides its strings, and of a string
+    //  besides its characters
+    private static final int RECORD_BYTES = 64;
+    private static final int STRING_BYTES = 40;
+
+    private static final byte ROW = 0, PROBE = 1, KEPT = 2;
+
+    private final String inputFile;
+    private final DedupOptions options;
+    private final RulePass[] rulePasses;
+    private final RulePass[] passes;
+
+    //  Whether the last dedup() had to fall back to Deduplicater
+    private boolean fellBack = false;
+
+    private final StringBuilder buffer = new StringBuilder();
+
+    public ExternalDeduplicater(String inputFile, DedupOptions options)
+        throws IOException
+    {
+        this(inputFile, options, options.rules == null ? null
+                : RuleFile.read(options.rules));
+    }
+
+    //  With the rules from options.rules already read (see DedupBatch)
+    ExternalDeduplicater(String inputFile, DedupOptions options,
+            RulePass[] rulePasses)
+    {
+        this.inputFile = inputFile;
+        this.options = options;
+        this.rulePasses = rulePasses;
+        passes = Deduplicater.ruleChain(rulePasses, options.uselessOn);
+    }
+
+    //  Writes the rows Deduplicater would keep, with the remove methods
+    //  applied, to the output file
+    public void dedup(String outputFile) throws IOException
+    {
+        fellBack = false;
+        Sorter byIdea = new Sorter(BY_IDEA, options.externalMemory);
+        Sorter byId = new Sorter(BY_ID, options.externalMemory);
+        try
+        {
+            read(byIdea);
+            if (!keep(byIdea.sorted(), byId))
+            {
+                fellBack = true;
+                Deduplicater d = new Deduplicater(inputFile, options,
+                        rulePasses);
+                d.applyAllRemoves(options.uselessOn);
+                d.writeOutput(outputFile);
+                return;
+            }
+            byIdea.close();
+            write(byId.sorted(), outputFile);
+        }
+        finally
+        {
+            byIdea.close();
+            byId.close();
+        }
+    }
+
+    public boolean fellBack()
+    {
+        return fellBack;
+    }
+
+    //  The first step of a partitioned run (see PartitionedDeduplicater):
+    //  runs the rule chain on rows part, part + parts, part + 2 * parts and
+    //  so on, and writes each one's record and probes to the bucket file of
+    //  the partition its group hashes to
+    void split(int part, int parts, File[] buckets) throws IOException
+    {
+        final DataOutputStream[] out = new DataOutputStream[parts];
+        final byte[][] scratch = { new byte[256] };
+        try
+        {
+            for (int i = 0; i < parts; i++)
+                out[i] = Sorter.output(buckets[i]);
+            read(new RecordSink() {
+                public void add(Record record) throws IOException
+                {
+                    record.write(out[partition(record, out.length)], scratch);
+                }
+            }, part, parts);
+        }
+        finally
+        {
+            for (DataOutputStream stream : out)
+                if (stream != null)
+                    stream.close();
+        }
+    }
+
+    //  The second step: groups and replays the records in the bucket files
+    //  of one partition, and writes the rows kept, in id order, to
+    //  keptFile. Returns false if the groups can't be replayed separately.
+    boolean keep(List<File> buckets, File keptFile) throws IOException
+    {
+        Sorter byIdea = new Sorter(BY_IDEA, budget());
+        Sorter byId = new Sorter(BY_ID, budget());
+        byte[][] scratch = { new byte[256] };
+        try
+        {
+            for (File bucket : buckets)
+            {
+                DataInputStream in = Sorter.input(bucket);
+                for (Record record = Record.read(in, scratch); record != null;
+                        record = Record.read(in, scratch))
+                    byIdea.add(record);
+                in.close();
+            }
+            if (!keep(byIdea.sorted(), byId))
+                return false;
+            byIdea.close();
+
+            DataOutputStream out = Sorter.output(keptFile);
+            RecordSource sorted = byId.sorted();
+            for (Record kept = sorted.next(); kept != null;
+                    kept = sorted.next())
+                kept.write(out, scratch);
+            out.close();
+            return true;
+        }
+        finally
+        {
+            byIdea.close();
+            byId.close();
+        }
+    }
+
+    //  The last step: merges the partitions' kept files into the output, in
+    //  id order
+    void merge(List<File> keptFiles, String outputFile) throws IOException
+    {
+        Sorter byId = new Sorter(BY_ID, budget());
+        try
+        {
+            write(byId.merge(keptFiles), outputFile);
+        }
+        finally
+        {
+            byId.close();
+        }
+    }
+
+    //  The partition, out of parts, of a record's group
+    private static int partition(Record record, int parts)
+    {
+        long hash = Fingerprint.mix(31L * record.key.hashCode()
+                + record.deletedAt);
+        return (int) ((hash >>> 1) % parts);
+    }
+
+    //  Memory for each sort of a partitioned run
+    private long budget()
+    {
+        return options.externalMemory > 0 ? options.externalMemory
+            : Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    //  Runs the rule chain on every row and adds its record to the sort,
+    //  along with a probe for every change that isn't stable
+    private void read(RecordSink byIdea) throws IOException
+    {
+        read(byIdea, 0, 1);
+    }
+
+    //  Same, for only every parts-th row, starting with row part
+    private void read(RecordSink byIdea, int part, int parts)
+        throws IOException
+    {
+        CSVSource reader = Deduplicater.openInput(inputFile, options);
+        try
+        {
+            int id = 0;
+            while (reader.next())
+            {
+                if (id % parts != part)
+                {
+                    id++;
+                    continue;
+                }
+                Record row = new Record(ROW, id++);
+                row.network = reader.field(0).trim();
+                row.username = reader.field(1).trim();
+                row.idea = Deduplicater.whitespaceToSpace(
+                        reader.field(2).trim());
+                row.changedPasses = new int[passes.length];
+                row.changedIdeas = new String[passes.length];
+
+                String idea = row.idea;
+                for (int pass = 0; pass < passes.length; pass++)
+                {
+                    String simplifiedIdea = passes[pass].apply(idea, buffer);
+                    if (simplifiedIdea == null)
+                        continue;
+                    if (simplifiedIdea == RulePass.DELETED)
+                    {
+                        row.deletedAt = pass;
+                        break;
+                    }
+
+                    row.changedPasses[row.changes] = pass;
+                    row.changedIdeas[row.changes++] = simplifiedIdea;
+                    idea = simplifiedIdea;
+
+                    //  A later row that looked like this before the pass
+                    //  ends up elsewhere; make sure there isn't one
+                    String again = passes[pass].apply(idea, buffer);
+                    if (again != null && (again == RulePass.DELETED
+                                || !again.equals(idea)))
+                        byIdea.add(probe(row.id, pass, idea));
+                }
+                row.key = row.deletedAt < 0 ? idea : row.ideaBefore(
+                        row.deletedAt);
+                byIdea.add(row);
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    //  A probe for rows that looked like idea before the given pass; it's
+    //  sorted into the group such rows would end up in
+    private Record probe(int id, int pass, String idea)
+    {
+        Record probe = new Record(PROBE, id);
+        probe.probePass = pass;
+        probe.idea = idea;
+        for (int p = pass; p < passes.length; p++)
+        {
+            String simplifiedIdea = passes[p].apply(idea, buffer);
+            if (simplifiedIdea == RulePass.DELETED)
+            {
+                probe.deletedAt = p;
+                break;
+            }
+            if (simplifiedIdea != null)
+                idea = simplifiedIdea;
+        }
+        probe.key = idea;
+        return probe;
+    }
+
+    //  Replays each group of rows with the same final idea and adds the row
+    //  it keeps to byId. Returns false if a probe finds a row that makes
+    //  replaying the groups separately wrong.
+    private boolean keep(RecordSource sorted, Sorter byId) throws IOException
+    {
+        List<Record> rows = new ArrayList<Record>();
+        List<Record> probes = new ArrayList<Record>();
+        Set<String> ideas = new HashSet<String>();
+        Set<Integer> ids = new HashSet<Integer>();
+
+        Record record = sorted.next();
+        while (record != null)
+        {
+            Record first = record;
+            rows.clear();
+            probes.clear();
+            ideas.clear();
+            ids.clear();
+            while (record != null && sameGroup(first, record))
+            {
+                //  Only the first row with an idea is read in at all
+                if (record.kind == PROBE)
+                    probes.add(record);
+                else
+                {
+                    ids.add(record.id);
+                    if (ideas.add(record.idea))
+                        rows.add(record);
+                }
+                record = sorted.next();
+            }
+
+            if (!safe(rows, ids, probes))
+                return false;
+            Record kept = replay(rows);
+            if (kept != null)
+                byId.add(kept);
+        }
+        return true;
+    }
+
+    //  Does no probe match a row of the group, other than its own? ids
+    //  are those of all the group's rows, repeated ideas included.
+    private static boolean safe(List<Record> rows, Set<Integer> ids,
+            List<Record> probes)
+    {
+        for (Record probe : probes)
+        {
+            //  The replay takes care of rows in the probe's own group
+            if (ids.contains(probe.id))
+                continue;
+
+            for (Record row : rows)
+                if (row.id > probe.id && (row.deletedAt < 0
+                            || row.deletedAt >= probe.probePass)
+                        && row.ideaBefore(probe.probePass).equals(probe.idea))
+                    return false;
+        }
+        return true;
+    }
+
+    //  Applies the passes to the group's rows, in id order, deleting a row
+    //  whose idea becomes the same as another's, and returns the row kept
+    private Record replay(List<Record> rows)
+    {
+        Map<String, Record> ideaToRow = new HashMap<String, Record>();
+        String[] ideas = new String[rows.size()];
+        boolean[] deleted = new boolean[rows.size()];
+        int[] next = new int[rows.size()];
+        for (int i = 0; i < rows.size(); i++)
+        {
+            ideas[i] = rows.get(i).idea;
+            ideaToRow.put(ideas[i], rows.get(i));
+        }
+
+        for (int pass = 0; pass < passes.length; pass++)
+        {
+            for (int i = 0; i < rows.size(); i++)
+            {
+                Record row = rows.get(i);
+                if (deleted[i])
+                    continue;
+                if (row.deletedAt == pass)
+                {
+                    ideaToRow.remove(ideas[i]);
+                    deleted[i] = true;
+                    continue;
+                }
+                if (next[i] == row.changes
+                        || row.changedPasses[next[i]] != pass)
+                    continue;
+
+                String simplifiedIdea = row.changedIdeas[next[i]++];
+                ideaToRow.remove(ideas[i]);
+                if (ideaToRow.containsKey(simplifiedIdea))
+                    deleted[i] = true;
+                else
+                {
+                    ideaToRow.put(simplifiedIdea, row);
+                    ideas[i] = simplifiedIdea;
+                }
+            }
+        }
+
+        for (int i = 0; i < rows.size(); i++)
+        {
+            if (!deleted[i])
+            {
+                Record row = rows.get(i);
+                Record kept = new Record(KEPT, row.id);
+                kept.network = row.network;
+                kept.username = row.username;
+                kept.idea = ideas[i];
+                return kept;
+            }
+        }
+        return null;
+    }
+
+    private void write(RecordSource sorted, String outputFile)
+        throws IOException
+    {
+        RowWriter writer = new RowWriter(outputFile, options.format);
+        for (Record kept = sorted.next(); kept != null; kept = sorted.next())
+            writer.write(kept.id, kept.network, kept.username, kept.idea);
+        writer.close();
+    }
+
+    private static boolean sameGroup(Record a, Record b)
+    {
+        return a.deletedAt == b.deletedAt && a.key.equals(b.key);
+    }
+
+    //  Groups by final idea (rows deleted by a rule apart, by the pass that
+    //  deleted them), then rows and probes in id order
+    private static final Comparator<Record> BY_IDEA = new Comparator<Record>() {
+        public int compare(Record a, Record b)
+        {
+            if (a.deletedAt != b.deletedAt)
+                return a.deletedAt < b.deletedAt ? -1 : 1;
+            int cmp = a.key.compareTo(b.key);
+            if (cmp != 0)
+                return cmp;
+            if (a.id != b.id)
+                return a.id < b.id ? -1 : 1;
+            return a.kind - b.kind;
+        }
+    };
+
+    private static final Comparator<Record> BY_ID = new Comparator<Record>() {
+        public int compare(Record a, Record b)
+        {
+            return a.id < b.id ? -1 : a.id == b.id ? 0 : 1;
+        }
+    };
+
+    //  A row, a probe, or a row that was kept
+    private static class Record
+    {
+        final byte kind;
+        final int id;
+
+        //  Final idea, and the pass whose rule deleted the row (-1 if none)
+        String key = "";
+        int deletedAt = -1;
+
+        //  For rows and kept rows; for a probe, idea is what a row looked
+        //  like before probePass
+        String network = "", username = "", idea = "";
+        int probePass = -1;
+
+        //  For rows: the passes that changed the idea and what it became
+        int changes = 0;
+        int[] changedPasses = new int[0];
+        String[] changedIdeas = new String[0];
+
+        Record(byte kind, int id)
+        {
+            this.kind = kind;
+            this.id = id;
+        }
+
+        //  What the row's idea was before the given pass
+        String ideaBefore(int pass)
+        {
+            String before = idea;
+            for (int i = 0; i < changes && changedPasses[i] < pass; i++)
+                before = changedIdeas[i];
+            return before;
+        }
+
+        long bytes()
+        {
+            long bytes = RECORD_BYTES + 4 * STRING_BYTES + 2 * (key.length()
+                    + network.length() + username.length() + idea.length());
+            for (int i = 0; i < changes; i++)
+                bytes += 4 + STRING_BYTES + 2 * changedIdeas[i].length();
+            return bytes;
+        }
+
+        void write(DataOutputStream out, byte[][] scratch) throws IOException
+        {
+            out.writeByte(kind);
+            out.writeInt(id);
+            out.writeInt(deletedAt);
+            out.writeInt(probePass);
+            writeString(out, key, scratch);
+            writeString(out, network, scratch);
+            writeString(out, username, scratch);
+            writeString(out, idea, scratch);
+            out.writeInt(changes);
+            for (int i = 0; i < changes; i++)
+            {
+                out.writeInt(changedPasses[i]);
+                writeString(out, changedIdeas[i], scratch);
+            }
+        }
+
+        //  Returns null at the end of the run
+        static Record read(DataInputStream in, byte[][] scratch)
+            throws IOException
+        {
+            byte kind;
+            try
+            {
+                kind = in.readByte();
+            }
+            catch (EOFException e)
+            {
+                return null;
+            }
+            Record record = new Record(kind, in.readInt());
+            record.deletedAt = in.readInt();
+            record.probePass = in.readInt();
+            record.key = readString(in, scratch);
+            record.network = readString(in, scratch);
+            record.username = readString(in, scratch);
+            record.idea = readString(in, scratch);
+            record.changes = in.readInt();
+            record.changedPasses = new int[record.changes];
+            record.changedIdeas = new String[record.changes];
+            for (int i = 0; i < record.changes; i++)
+            {
+                record.changedPasses[i] = in.readInt();
+                record.changedIdeas[i] = readString(in, scratch);
+            }
+            return record;
+        }
+
+        //  Strings are written as UTF-16, which keeps any char sequence
+        //  (unpaired surrogates too) exactly
+        private static void writeString(DataOutputStream out, String s,
+                byte[][] scratch) throws IOException
+        {
+            int n = s.length();
+            if (scratch[0].length < 2 * n)
+                scratch[0] = new byte[Math.max(4 * n, 2 * scratch[0].length)];
+            byte[] bytes = scratch[0];
+            for (int i = 0; i < n; i++)
+            {
+                char c = s.charAt(i);
+                bytes[2 * i] = (byte) (c >>> 8);
+                bytes[2 * i + 1] = (byte) c;
+            }
+            out.writeInt(n);
+            out.write(bytes, 0, 2 * n);
+        }
+
+        private static String readString(DataInputStream in, byte[][] scratch)
+            throws IOException
+        {
+            int n = in.readInt();
+            if (scratch[0].length < 2 * n)
+                scratch[0] = new byte[Math.max(4 * n, 2 * scratch[0].length)];
+            byte[] bytes = scratch[0];
+            in.readFully(bytes, 0, 2 * n);
+            char[] chars = new char[n];
+            for (int i = 0; i < n; i++)
+                chars[i] = (char) (((bytes[2 * i] & 0xff) << 8)
+                        | (bytes[2 * i + 1] & 0xff));
+            return new String(chars);
+        }
+    }
+
+    //  Where read() puts records
+    private interface RecordSink
+    {
+        void add(Record record) throws IOException;
+    }
+
+    //  A sorted stream of records
+    private interface RecordSource
+    {
+        //  Returns the next record, or null at the end
+        Record next() throws IOException;
+    }
+
+    //  External sort: keeps records in memory up to a budget, spilling them
+    //  to sorted runs on disk, and merges the runs
+    private static class Sorter implements RecordSink
+    {
+        private final Comparator<Record> order;
+        private final long budget;
+        private final List<Record> records = new ArrayList<Record>();
+        private long bytes = 0;
+        private final List<File> runs = new ArrayList<File>();
+        private final List<DataInputStream> open =
+            new ArrayList<DataInputStream>();
+        private final byte[][] scratch = { new byte[256] };
+
+        Sorter(Comparator<Record> order, long budget)
+        {
+            this.order = order;
+            this.budget = budget;
+        }
+
+        public void add(Record record) throws IOException
+        {
+            records.add(record);
+            bytes += record.bytes();
+            if (bytes > budget)
+                spill();
+        }
+
+        private void spill() throws IOException
+        {
+            Collections.sort(records, order);
+            File run = newRun();
+            DataOutputStream out = output(run);
+            for (Record record : records)
+                record.write(out, scratch);
+            out.close();
+            records.clear();
+            bytes = 0;
+        }
+
+        //  All the records added, in order
+        RecordSource sorted() throws IOException
+        {
+            if (runs.isEmpty())
+            {
+                Collections.sort(records, order);
+                return new RecordSource() {
+                    private int i = 0;
+
+                    public Record next()
+                    {
+                        return i < records.size() ? records.get(i++) : null;
+                    }
+                };
+            }
+
+            if (!records.isEmpty())
+                spill();
+
+            //  Merge runs into fewer, longer runs until they can all be
+            //  merged at once
+            while (runs.size() > MAX_RUNS)
+            {
+                List<File> some = new ArrayList<File>(runs.subList(0,
+                            MAX_RUNS));
+                runs.subList(0, MAX_RUNS).clear();
+                RecordSource merged = merge(some);
+                File run = newRun();
+                DataOutputStream out = output(run);
+                for (Record r = merged.next(); r != null; r = merged.next())
+                    r.write(out, scratch);
+                out.close();
+                closeOpen();
+                for (File file : some)
+                    file.delete();
+            }
+            return merge(runs);
+        }
+
+        private RecordSource merge(List<File> files) throws IOException
+        {
+            final PriorityQueue<Head> heads = new PriorityQueue<Head>(
+                    Math.max(1, files.size()), new Comparator<Head>() {
+                        public int compare(Head a, Head b)
+                        {
+                            return order.compare(a.record, b.record);
+                        }
+                    });
+            for (File file : files)
+            {
+                DataInputStream in = input(file);
+                open.add(in);
+                Head head = new Head(in);
+                if (head.advance())
+                    heads.add(head);
+            }
+
+            return new RecordSource() {
+                public Record next() throws IOException
+                {
+                    Head head = heads.poll();
+                    if (head == null)
+                        return null;
+                    Record record = head.record;
+                    if (head.advance())
+                        heads.add(head);
+                    return record;
+                }
+            };
+        }
+
+        //  The next record of one run
+        private class Head
+        {
+            final DataInputStream in;
+            final byte[][] scratch = { new byte[256] };
+            Record record;
+
+            Head(DataInputStream in)
+            {
+                this.in = in;
+            }
+
+            boolean advance() throws IOException
+            {
+                record = Record.read(in, scratch);
+                return record != null;
+            }
+        }
+
+        private File newRun() throws IOException
+        {
+            File run = File.createTempFile("dedup-run", ".tmp");
+            run.deleteOnExit();
+            runs.add(run);
+            return run;
+        }
+
+        private static DataOutputStream output(File file) throws IOException
+        {
+            return new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(file), 1 << 16));
+        }
+
+        private static DataInputStream input(File file) throws IOException
+        {
+            return new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file), 1 << 16));
+        }
+
+        private void closeOpen() throws IOException
+        {
+            for (DataInputStream in : open)
+                in.close();
+            open.clear();
+        }
+
+        //  Deletes the runs
+        void close() throws IOException
+        {
+            closeOpen();
+            for (File run : runs)
+                run.delete();
+            runs.clear();
+            records.clear();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*************************************************************************
+ *  Compilation:  javac Fingerprint.java
+ *  Dependencies: none
+ *
+ *  64-bit content fingerprints of ideas. Two different ideas get the same
+ *  fingerprint with probability about 2^-64, so an index keyed by
+ *  fingerprint only has to look at the text itself to confirm a match.
+ *  Together with second(), which is computed differently, of() gives a
+ *  128-bit fingerprint that is used without looking at the text.
+ *
+ *************************************************************************/
+
+public class Fingerprint {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private Fingerprint() { }
+
+    //  FNV-1a over the characters of s, followed by a final mix so that
+    //  every input bit affects every output bit
+    public static long of(CharSequence s)
+    {
+        long h = FNV_OFFSET;
+        int n = s.length();
+        for (int i = 0; i < n; i++)
+        {
+            h ^= s.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return mix(h);
+    }
+
+    //  A second 64-bit fingerprint, independent of of(): a polynomial hash
+    //  with a different multiplier, mixed the same way
+    public static long second(CharSequence s)
+    {
+        long h = 0x84222325cbf29ce4L;
+        int n = s.length();
+        for (int i = 0; i < n; i++)
+            h = (h + s.charAt(i)) * 0x9E3779B97F4A7C15L;
+        return mix(h ^ n);
+    }
+
+    //  The finalizer from MurmurHash3
+    public static long mix(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,81 @@
+/*************************************************************************
+ *  Compilation:  javac FingerprintIdeaIndex.java
+ *  Dependencies: IdeaIndex.java, Fingerprint.java, LongIntHashST.java,
+ *                LinearProbingHashST.java, RecordStore.java
+ *
+ *  Idea index keyed by the 64-bit fingerprint of each idea instead of the
+ *  idea itself. The text of an idea is already kept in the RecordStore,
+ *  so the index only holds a long and an int per idea. When a fingerprint
+ *  matches, the idea stored for that id is compared with the one being
+ *  looked up; an idea whose fingerprint is already taken by a different
+ *  idea goes into a small overflow table keyed by the full text.
+ *
+ *  An idea must be deleted from the index before the store's copy of it
+ *  is changed or deleted.
+ *
+ *************************************************************************/
+
+public class FingerprintIdeaIndex implements IdeaIndex {
+
+    private LongIntHashST fingerprintToId;
+    private LinearProbingHashST<String, Integer> collisions =
+        new LinearProbingHashST<String, Integer>();
+
+    //  Where the text of each indexed id is kept
+    private RecordStore store;
+
+    public FingerprintIdeaIndex(int expectedIdeas, RecordStore store)
+    {
+        fingerprintToId = new LongIntHashST(expectedIdeas);
+        this.store = store;
+    }
+
+    public int get(String idea)
+    {
+        int id = fingerprintToId.get(fingerprint(idea));
+        if (id >= 0 && store.ideaEquals(id, idea))
+            return id;
+
+        //  Almost always empty
+        if (collisions.isEmpty())
+            return -1;
+        Integer collidedId = collisions.get(idea);
+        return collidedId == null ? -1 : collidedId;
+    }
+
+    public boolean contains(String idea)
+    {
+        return get(idea) >= 0;
+    }
+
+    public void put(String idea, int id)
+    {
+        long fingerprint = fingerprint(idea);
+        if (fingerprintToId.contains(fingerprint))
+            collisions.put(idea, id);
+        else
+            fingerprintToId.put(fingerprint, id);
+    }
+
+    public void delete(String idea)
+    {
+        long fingerprint = fingerprint(idea);
+        int id = fingerprintToId.get(fingerprint);
+        if (id >= 0 && store.ideaEquals(id, idea))
+            fingerprintToId.delete(fingerprint);
+        else if (!collisions.isEmpty())
+            collisions.delete(idea);
+    }
+
+    public int size()
+    {
+        return fingerprintToId.size() + collisions.size();
+    }
+
+    //  The fingerprint the idea is indexed by. The tests give two ideas the
+    //  same one, since no two real ideas are known to collide.
+    long fingerprint(String idea)
+    {
+        return Fingerprint.of(idea);
+    }
+}
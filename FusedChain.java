@@ -0,0 +1,154 @@
+/*************************************************************************
+ *  Compilation:  javac FusedChain.java
+ *  Dependencies: RulePass.java
+ *
+ *  Runs a whole chain of cleanup passes on each idea exactly once, at the
+ *  time the idea is read, and remembers only the steps that actually
+ *  changed something. Deduplicater can then replay those changes in pass
+ *  order without going back over every id and re-running every rule once
+ *  per pass.
+ *
+ *  Replaying the changes step by step (rather than only inserting the
+ *  final idea) keeps the output identical to applying the passes one at
+ *  a time: in a pass, a changed idea is a duplicate if it matches what
+ *  any other remaining idea looks like at that moment, so the order in
+ *  which ideas collapse depends on the intermediate forms too.
+ *
+ *************************************************************************/
+
+public class FusedChain {
+
+    private final RulePass[] passes;
+
+    //  For each pass, the ids whose idea it changed (in increasing order)
+    //  and what the idea looked like right after the pass, which is
+    //  RulePass.DELETED if the pass deleted the row
+    private int[][] changedIds;
+    private String[][] changedIdeas;
+    private int[] changes;
+
+    //  Scratch space for the rules when ideas are added one at a time
+    private final StringBuilder buffer = new StringBuilder();
+
+    public FusedChain(RulePass[] passes)
+    {
+        this.passes = passes;
+        changedIds = new int[passes.length][];
+        changedIdeas = new String[passes.length][];
+        changes = new int[passes.length];
+        for (int i = 0; i < passes.length; i++)
+        {
+            changedIds[i] = new int[16];
+            changedIdeas[i] = new String[16];
+        }
+    }
+
+    //  Runs every pass on the idea in order and records each change. Ids
+    //  must be added in increasing order.
+    public void add(int id, String idea)
+    {
+        add(id, changes(idea, buffer));
+    }
+
+    //  Records the changes returned by changes(idea). Ids must be added in
+    //  increasing order.
+    public void add(int id, String[] changes)
+    {
+        for (int step = 0; step < passes.length; step++)
+            if (changes[step] != null)
+                record(step, id, changes[step]);
+    }
+
+    //  Runs every pass on the idea in order. Returns what the idea looks
+    //  like after each pass that changed it, and null for the others. Safe
+    //  to call from several threads at once.
+    public String[] changes(String idea)
+    {
+        return changes(idea, new StringBuilder());
+    }
+
+    //  Same, with a buffer for the rules to work in. Threads calling this at
+    //  the same time must each have their own buffer.
+    public String[] changes(String idea, StringBuilder buffer)
+    {
+        String[] changes = new String[passes.length];
+        for (int step = 0; step < passes.length; step++)
+        {
+            String simplifiedIdea = passes[step].apply(idea, buffer);
+            if (simplifiedIdea != null)
+            {
+                changes[step] = simplifiedIdea;
+                idea = simplifiedIdea;
+            }
+            if (idea == RulePass.DELETED)
+                break;
+        }
+        return changes;
+    }
+
+    //  Runs every pass on the idea in order and returns the result, which
+    //  is RulePass.DELETED if a pass deleted the row
+    public String apply(String idea)
+    {
+        return apply(idea, new StringBuilder());
+    }
+
+    //  Same, with a buffer for the rules to work in; see changes()
+    public String apply(String idea, StringBuilder buffer)
+    {
+        for (int step = 0; step < passes.length && idea != RulePass.DELETED;
+                step++)
+        {
+            String simplifiedIdea = passes[step].apply(idea, buffer);
+            if (simplifiedIdea != null)
+                idea = simplifiedIdea;
+        }
+        return idea;
+    }
+
+    private void record(int step, int id, String idea)
+    {
+        int n = changes[step];
+        if (n == changedIds[step].length)
+        {
+            int[] ids = new int[Math.max(16, 2 * n)];
+            String[] ideas = new String[ids.length];
+            System.arraycopy(changedIds[step], 0, ids, 0, n);
+            System.arraycopy(changedIdeas[step], 0, ideas, 0, n);
+            changedIds[step] = ids;
+            changedIdeas[step] = ideas;
+        }
+        changedIds[step][n] = id;
+        changedIdeas[step][n] = idea;
+        changes[step]++;
+    }
+
+    //  Number of passes in the chain
+    public int steps()
+    {
+        return passes.length;
+    }
+
+    public RulePass pass(int step)
+    {
+        return passes[step];
+    }
+
+    //  Number of ideas the given pass changed
+    public int changes(int step)
+    {
+        return changes[step];
+    }
+
+    //  Id of the i-th idea changed by the given pass
+    public int changedId(int step, int i)
+    {
+        return changedIds[step][i];
+    }
+
+    //  What the i-th idea changed by the given pass looked like afterwards
+    public String changedIdea(int step, int i)
+    {
+        return changedIdeas[step][i];
+    }
+}
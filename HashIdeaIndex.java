@@ -0,0 +1,43 @@
+/*************************************************************************
+ *  Compilation:  javac HashIdeaIndex.java
+ *  Dependencies: IdeaIndex.java, LinearProbingHashST.java
+ *
+ *  Idea index that keeps every idea as a key of a hash symbol table.
+ *
+ *************************************************************************/
+
+public class HashIdeaIndex implements IdeaIndex {
+
+    private LinearProbingHashST<String, Integer> ideaToId;
+
+    public HashIdeaIndex(int expectedIdeas)
+    {
+        ideaToId = new LinearProbingHashST<String, Integer>(expectedIdeas);
+    }
+
+    public int get(String idea)
+    {
+        Integer id = ideaToId.get(idea);
+        return id == null ? -1 : id;
+    }
+
+    public boolean contains(String idea)
+    {
+        return ideaToId.contains(idea);
+    }
+
+    public void put(String idea, int id)
+    {
+        ideaToId.put(idea, id);
+    }
+
+    public void delete(String idea)
+    {
+        ideaToId.delete(idea);
+    }
+
+    public int size()
+    {
+        return ideaToId.size();
+    }
+}
@@ -0,0 +1,473 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*************************************************************************
+ *  Compilation:  javac HistoryIndex.java
+ *  Dependencies: Fingerprint.java
+ *
+ *  On-disk index of the ideas kept by earlier runs, so that a new batch
+ *  of responses can be deduplicated against all of them without reading
+ *  the old CSV files again. Each idea is stored as a 128-bit fingerprint
+ *  (see Fingerprint) and the id of the row it came from; ids continue
+ *  from one run to the next, so they're unique across all the batches.
+ *
+ *  The index is a directory of segment files, each holding records
+ *  sorted by fingerprint. A run adds one new segment, and segments of
+ *  about the same size are then merged, so there are only about log n
+ *  segments for n ideas and each record is rewritten about log n times
+ *  over the life of the index. Looking an idea up is a binary search of
+ *  each memory-mapped segment, which only touches a few pages of it, so
+ *  a run takes time in proportion to its batch rather than to the whole
+ *  history.
+ *
+ *  A segment is written to a temporary file that is renamed once it is
+ *  complete, and a merged segment's name records the range of runs it
+ *  covers, so an interrupted run or merge leaves the index as it was.
+ *  From open() to close(), a run holds a lock on the file "lock" in the
+ *  directory, so two runs can't both add the next segment, and a run
+ *  that finds the lock taken fails at once rather than waiting.
+ *
+ *************************************************************************/
+
+public class HistoryIndex {
+
+    private static final long MAGIC = 0x4445445550494458L;   // "DEDUPIDX"
+    private static final int VERSION = 1;
+
+    //  magic, version, unused, records, rows read up to and including the
+    //  segment's last run
+    private static final int HEADER_BYTES = 32;
+
+    //  fingerprint (two longs) and id
+    private static final int RECORD_BYTES = 24;
+
+    //  Records in each mapped window of a segment
+    private static final int WINDOW_RECORDS = (1 << 30) / RECORD_BYTES;
+
+    private final File directory;
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    //  The directory's lock file, locked until close()
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+
+    //  Rows read by all the earlier runs, and the number of the next run
+    private long rows = 0;
+    private int nextRun = 0;
+
+    //  Ideas added since the last commit
+    private long[] firsts = new long[16];
+    private long[] seconds = new long[16];
+    private long[] ids = new long[16];
+    private int pending = 0;
+
+    private HistoryIndex(File directory, RandomAccessFile lockFile,
+            FileLock lock)
+    {
+        this.directory = directory;
+        this.lockFile = lockFile;
+        this.lock = lock;
+    }
+
+    //  Opens the index in the given directory, creating it if need be.
+    //  Throws an IOException if another run has it open.
+    public static HistoryIndex open(String directory) throws IOException
+    {
+        File dir = new File(directory);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can't create " + directory);
+
+        RandomAccessFile lockFile = new RandomAccessFile(
+                new File(dir, "lock"), "rw");
+        FileLock lock = null;
+        try
+        {
+            lock = lockFile.getChannel().tryLock();
+        }
+        catch (OverlappingFileLockException e)
+        {
+            //  Held by this JVM
+        }
+        if (lock == null)
+        {
+            lockFile.close();
+            throw new IOException("Another run is using the history in "
+                    + directory);
+        }
+
+        HistoryIndex index = new HistoryIndex(dir, lockFile, lock);
+        try
+        {
+            index.load();
+        }
+        catch (IOException e)
+        {
+            index.close();
+            throw e;
+        }
+        return index;
+    }
+
+    //  Reads the segments, cleaning up after runs and merges that were
+    //  interrupted
+    private void load() throws IOException
+    {
+        List<Segment> found = new ArrayList<Segment>();
+        for (File file : directory.listFiles())
+        {
+            String name = file.getName();
+
+            //  Only a run holding the lock writes temporary files, so any
+            //  there now are left from one that died
+            if (name.endsWith(".tmp"))
+                file.delete();
+            else if (name.startsWith("segment-") && name.endsWith(".idx"))
+                found.add(new Segment(file));
+        }
+
+        //  A merge that was interrupted after writing its segment leaves the
+        //  segments it merged behind
+        for (Segment segment : found)
+        {
+            boolean covered = false;
+            for (Segment other : found)
+                if (other != segment && other.covers(segment))
+                    covered = true;
+            if (covered)
+            {
+                segment.close();
+                segment.file.delete();
+            }
+            else
+                segments.add(segment);
+        }
+
+        Collections.sort(segments, new Comparator<Segment>() {
+            public int compare(Segment a, Segment b)
+            {
+                return Integer.compare(a.firstRun, b.firstRun);
+            }
+        });
+        if (!segments.isEmpty())
+        {
+            Segment last = segments.get(segments.size() - 1);
+            rows = last.rows;
+            nextRun = last.lastRun + 1;
+        }
+    }
+
+    //  Rows read by all the earlier runs. Ids in this run should start here.
+    public long rows()
+    {
+        return rows;
+    }
+
+    //  Number of ideas kept by the earlier runs
+    public long size()
+    {
+        long size = 0;
+        for (Segment segment : segments)
+            size += segment.records;
+        return size;
+    }
+
+    //  Number of segment files
+    public int segments()
+    {
+        return segments.size();
+    }
+
+    //  Returns the id of the row an earlier run kept this idea from, or -1
+    //  if no earlier run kept it. Ideas added since the last commit are not
+    //  looked at.
+    public long get(String idea)
+    {
+        long first = Fingerprint.of(idea);
+        long second = Fingerprint.second(idea);
+        for (int i = segments.size() - 1; i >= 0; i--)
+        {
+            long id = segments.get(i).get(first, second);
+            if (id >= 0)
+                return id;
+        }
+        return -1;
+    }
+
+    public boolean contains(String idea)
+    {
+        return get(idea) >= 0;
+    }
+
+    //  Adds an idea that this run kept, to be written by commit()
+    public void add(String idea, long id)
+    {
+        if (pending == ids.length)
+        {
+            firsts = Arrays.copyOf(firsts, 2 * pending);
+            seconds = Arrays.copyOf(seconds, 2 * pending);
+            ids = Arrays.copyOf(ids, 2 * pending);
+        }
+        firsts[pending] = Fingerprint.of(idea);
+        seconds[pending] = Fingerprint.second(idea);
+        ids[pending] = id;
+        pending++;
+    }
+
+    //  Writes the ideas added since the last commit, for a run that read the
+    //  given number of rows, as a new segment, and then merges segments
+    //  that have become about the same size
+    public void commit(long rowsRead) throws IOException
+    {
+        Integer[] order = new Integer[pending];
+        for (int i = 0; i < pending; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b)
+            {
+                return compareFingerprints(firsts[a], seconds[a],
+                        firsts[b], seconds[b]);
+            }
+        });
+
+        rows += rowsRead;
+        int run = nextRun++;
+        SegmentWriter writer = new SegmentWriter(directory, run, run);
+        for (int i = 0; i < pending; i++)
+            writer.write(firsts[order[i]], seconds[order[i]], ids[order[i]]);
+        segments.add(writer.finish(rows));
+        pending = 0;
+
+        //  Merge while the newest segment is at least about half the size of
+        //  the one before it (counting one more record in each, so that the
+        //  segments of runs that kept nothing get merged too)
+        while (segments.size() >= 2)
+        {
+            Segment newer = segments.get(segments.size() - 1);
+            Segment older = segments.get(segments.size() - 2);
+            if (older.records + 1 > 2 * (newer.records + 1))
+                break;
+            segments.remove(segments.size() - 1);
+            segments.set(segments.size() - 1, merge(older, newer));
+        }
+    }
+
+    //  Merges two adjacent segments into one and deletes them
+    private Segment merge(Segment older, Segment newer) throws IOException
+    {
+        SegmentWriter writer = new SegmentWriter(directory, older.firstRun,
+                newer.lastRun);
+        long i = 0, j = 0;
+        while (i < older.records || j < newer.records)
+        {
+            boolean fromOlder;
+            if (i == older.records)
+                fromOlder = false;
+            else if (j == newer.records)
+                fromOlder = true;
+            else
+                fromOlder = compareFingerprints(older.first(i),
+                        older.second(i), newer.first(j), newer.second(j)) <= 0;
+
+            if (fromOlder)
+            {
+                writer.write(older.first(i), older.second(i), older.id(i));
+                i++;
+            }
+            else
+            {
+                writer.write(newer.first(j), newer.second(j), newer.id(j));
+                j++;
+            }
+        }
+        Segment merged = writer.finish(newer.rows);
+
+        older.close();
+        newer.close();
+        older.file.delete();
+        newer.file.delete();
+        return merged;
+    }
+
+    //  Closes the segments and lets other runs open the index
+    public void close() throws IOException
+    {
+        for (Segment segment : segments)
+            segment.close();
+        segments.clear();
+        if (lock.isValid())
+            lock.release();
+        lockFile.close();
+    }
+
+    private static int compareFingerprints(long first1, long second1,
+            long first2, long second2)
+    {
+        if (first1 != first2)
+            return first1 < first2 ? -1 : 1;
+        if (second1 != second2)
+            return second1 < second2 ? -1 : 1;
+        return 0;
+    }
+
+    private static String fileName(int firstRun, int lastRun)
+    {
+        return "segment-" + firstRun + "-" + lastRun + ".idx";
+    }
+
+    //  A sorted segment file, memory-mapped
+    private static class Segment
+    {
+        final File file;
+        final int firstRun, lastRun;
+        final long records;
+        final long rows;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer[] windows;
+
+        Segment(File file) throws IOException
+        {
+            this.file = file;
+            String[] runs = file.getName().replace("segment-", "")
+                .replace(".idx", "").split("-");
+            firstRun = Integer.parseInt(runs[0]);
+            lastRun = Integer.parseInt(runs[1]);
+
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    HEADER_BYTES);
+            if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION)
+                throw new IOException(file + " is not a history segment");
+            records = header.getLong(16);
+            rows = header.getLong(24);
+
+            windows = new MappedByteBuffer[(int) ((records + WINDOW_RECORDS - 1)
+                        / WINDOW_RECORDS)];
+            for (int w = 0; w < windows.length; w++)
+            {
+                long start = (long) w * WINDOW_RECORDS;
+                long count = Math.min(WINDOW_RECORDS, records - start);
+                windows[w] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_BYTES + start * RECORD_BYTES,
+                        count * RECORD_BYTES);
+            }
+        }
+
+        boolean covers(Segment other)
+        {
+            return firstRun <= other.firstRun && other.lastRun <= lastRun;
+        }
+
+        long first(long i)
+        {
+            return windows[(int) (i / WINDOW_RECORDS)].getLong(
+                    (int) (i % WINDOW_RECORDS) * RECORD_BYTES);
+        }
+
+        long second(long i)
+        {
+            return windows[(int) (i / WINDOW_RECORDS)].getLong(
+                    (int) (i % WINDOW_RECORDS) * RECORD_BYTES + 8);
+        }
+
+        long id(long i)
+        {
+            return windows[(int) (i / WINDOW_RECORDS)].getLong(
+                    (int) (i % WINDOW_RECORDS) * RECORD_BYTES + 16);
+        }
+
+        //  Binary search for the fingerprint; returns its id or -1
+        long get(long first, long second)
+        {
+            long lo = 0, hi = records - 1;
+            while (lo <= hi)
+            {
+                long mid = (lo + hi) >>> 1;
+                int cmp = compareFingerprints(first, second, first(mid),
+                        second(mid));
+                if (cmp < 0)
+                    hi = mid - 1;
+                else if (cmp > 0)
+                    lo = mid + 1;
+                else
+                    return id(mid);
+            }
+            return -1;
+        }
+
+        void close() throws IOException
+        {
+            raf.close();
+        }
+    }
+
+    //  Writes a segment's records, in order, to a temporary file, which
+    //  finish() renames to the segment's real name
+    private static class SegmentWriter
+    {
+        private final File temporary, file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        private long records = 0;
+
+        SegmentWriter(File directory, int firstRun, int lastRun)
+            throws IOException
+        {
+            file = new File(directory, fileName(firstRun, lastRun));
+            temporary = new File(directory, file.getName() + ".tmp");
+            raf = new RandomAccessFile(temporary, "rw");
+            raf.setLength(0);
+            channel = raf.getChannel();
+            channel.position(HEADER_BYTES);
+        }
+
+        void write(long first, long second, long id) throws IOException
+        {
+            if (buffer.remaining() < RECORD_BYTES)
+                flush();
+            buffer.putLong(first).putLong(second).putLong(id);
+            records++;
+        }
+
+        private void flush() throws IOException
+        {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        Segment finish(long rows) throws IOException
+        {
+            flush();
+            buffer.putLong(MAGIC).putInt(VERSION).putInt(0).putLong(records)
+                .putLong(rows);
+            buffer.flip();
+            channel.position(0);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+            channel.force(true);
+            raf.close();
+
+            if (file.exists())
+                file.delete();
+            if (!temporary.renameTo(file))
+                throw new IOException("Can't rename " + temporary + " to "
+                        + file);
+            return new Segment(file);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/*************************************************************************
+ *  Compilation:  javac IdeaIndex.java
+ *  Dependencies: none
+ *
+ *  The index Deduplicater uses to find which id, if any, already has a
+ *  given idea. Ids are never negative.
+ *
+ *************************************************************************/
+
+public interface IdeaIndex {
+
+    //  Returns the id of the given idea, or -1 if no id has it
+    public int get(String idea);
+
+    //  Is the idea in the index?
+    public boolean contains(String idea);
+
+    //  Adds an idea that is not already in the index
+    public void put(String idea, int id);
+
+    //  Removes an idea from the index
+    public void delete(String idea);
+
+    //  Number of ideas in the index
+    public int size();
+}
@@ -0,0 +1,50 @@
+/*************************************************************************
+ *  Compilation:  javac IdeaRecord.java
+ *  Dependencies: none
+ *
+ *  A row Deduplicater kept: its id (row number - 1 in the input), network,
+ *  author's username and cleaned-up idea, as handed out by
+ *  Deduplicater.records().
+ *
+ *************************************************************************/
+
+public class IdeaRecord {
+
+    private final int id;
+    private final String network;
+    private final String username;
+    private final String idea;
+
+    public IdeaRecord(int id, String network, String username, String idea)
+    {
+        this.id = id;
+        this.network = network;
+        this.username = username;
+        this.idea = idea;
+    }
+
+    public int id()
+    {
+        return id;
+    }
+
+    public String network()
+    {
+        return network;
+    }
+
+    public String username()
+    {
+        return username;
+    }
+
+    public String idea()
+    {
+        return idea;
+    }
+
+    public String toString()
+    {
+        return id + ": " + network + "," + username + "," + idea;
+    }
+}
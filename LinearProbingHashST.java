@@ -0,0 +1,248 @@
+/*************************************************************************
+ *  Compilation:  javac LinearProbingHashST.java
+ *  Execution:    java LinearProbingHashST
+ *
+ *  Symbol table implementation with linear probing hash table.
+ *  Does not allow duplicates.
+ *
+ *  % java LinearProbingHashST
+ *
+ *************************************************************************/
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ *  This class represents an unordered symbol table.
+ *  It supports the usual <em>put</em>, <em>get</em>, <em>contains</em>,
+ *  and <em>remove</em> methods, with the same conventions as <tt>ST</tt>,
+ *  but none of the ordered methods.
+ *  <p>
+ *  The class uses the convention that values cannot be null. Setting the
+ *  value associated with a key to null is equivalent to removing the key.
+ *  <p>
+ *  This implementation uses open addressing with linear probing. The hash
+ *  code of each key is kept next to it, so a probe only calls
+ *  <em>equals</em> on keys whose hash codes match. The table can be sized
+ *  for an expected number of keys up front to avoid resizing.
+ *  The <em>put</em>, <em>get</em>, <em>contains</em>, and <em>remove</em>
+ *  methods take constant time on average.
+ *  <p>
+ *  For additional documentation, see <a href="/algs4/34hash">Section 3.4</a> of
+ *  <i>Algorithms in Java, 4th Edition</i> by Robert Sedgewick and Kevin Wayne.
+ */
+public class LinearProbingHashST<Key, Value> {
+    private static final int INIT_CAPACITY = 16;
+
+    private int N;            // number of key-value pairs in the table
+    private int M;            // size of the table; always a power of 2
+    private int minM;         // the table never shrinks below this size
+    private Key[] keys;
+    private Value[] vals;
+    private int[] hashes;
+
+    /**
+     * Create an empty symbol table.
+     */
+    public LinearProbingHashST() {
+        this(INIT_CAPACITY / 2);
+    }
+
+    /**
+     * Create an empty symbol table with room for the given number of keys.
+     */
+    public LinearProbingHashST(int expected) {
+        M = INIT_CAPACITY;
+        while (M / 2 < expected && M < (1 << 30)) M *= 2;
+        minM = M;
+        allocate(M);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void allocate(int capacity) {
+        keys = (Key[])   new Object[capacity];
+        vals = (Value[]) new Object[capacity];
+        hashes = new int[capacity];
+    }
+
+    // spread the high bits of the hash code into the low bits used as index
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Put key-value pair into the symbol table. Remove key from table if
+     * value is null.
+     */
+    public void put(Key key, Value val) {
+        if (val == null) { delete(key); return; }
+
+        // keep the table at most half full
+        if (N >= M / 2) resize(2 * M);
+
+        int h = hash(key);
+        int i;
+        for (i = h & (M - 1); keys[i] != null; i = (i + 1) & (M - 1)) {
+            if (hashes[i] == h && keys[i].equals(key)) { vals[i] = val; return; }
+        }
+        keys[i] = key;
+        vals[i] = val;
+        hashes[i] = h;
+        N++;
+    }
+
+    /**
+     * Return the value paired with given key; null if key is not in table.
+     */
+    public Value get(Key key) {
+        int h = hash(key);
+        for (int i = h & (M - 1); keys[i] != null; i = (i + 1) & (M - 1))
+            if (hashes[i] == h && keys[i].equals(key)) return vals[i];
+        return null;
+    }
+
+    /**
+     * Delete the key (and paired value) from table.
+     * Return the value paired with given key; null if key is not in table.
+     */
+    public Value delete(Key key) {
+        int h = hash(key);
+        int i = h & (M - 1);
+        while (keys[i] != null && !(hashes[i] == h && keys[i].equals(key)))
+            i = (i + 1) & (M - 1);
+        if (keys[i] == null) return null;
+
+        Value val = vals[i];
+        keys[i] = null;
+        vals[i] = null;
+        N--;
+
+        // reinsert the rest of the cluster; the cached hash codes mean no
+        // key has to be hashed again
+        i = (i + 1) & (M - 1);
+        while (keys[i] != null) {
+            Key   keyToRehash = keys[i];
+            Value valToRehash = vals[i];
+            int   hashToRehash = hashes[i];
+            keys[i] = null;
+            vals[i] = null;
+            insert(keyToRehash, valToRehash, hashToRehash);
+            i = (i + 1) & (M - 1);
+        }
+
+        if (M > minM && N <= M / 8) resize(M / 2);
+        return val;
+    }
+
+    // put a key known not to be in the table
+    private void insert(Key key, Value val, int h) {
+        int i = h & (M - 1);
+        while (keys[i] != null) i = (i + 1) & (M - 1);
+        keys[i] = key;
+        vals[i] = val;
+        hashes[i] = h;
+    }
+
+    private void resize(int capacity) {
+        Key[]   oldKeys = keys;
+        Value[] oldVals = vals;
+        int[]   oldHashes = hashes;
+        M = capacity;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++)
+            if (oldKeys[i] != null) insert(oldKeys[i], oldVals[i], oldHashes[i]);
+    }
+
+    /**
+     * Is the key in the table?
+     */
+    public boolean contains(Key key) {
+        return get(key) != null;
+    }
+
+    /**
+     * How many keys are in the table?
+     */
+    public int size() {
+        return N;
+    }
+
+    /**
+     * Is the table empty?
+     */
+    public boolean isEmpty() {
+        return N == 0;
+    }
+
+    /**
+     * Return an <tt>Iterable</tt> for the keys in the table, in no
+     * particular order. The table must not be changed while iterating.
+     */
+    public Iterable<Key> keys() {
+        return new Iterable<Key>() {
+            public Iterator<Key> iterator() { return new KeyIterator(); }
+        };
+    }
+
+    private class KeyIterator implements Iterator<Key> {
+        private int i = 0;
+
+        public boolean hasNext() {
+            while (i < M && keys[i] == null) i++;
+            return i < M;
+        }
+
+        public Key next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return keys[i++];
+        }
+
+        public void remove() { throw new UnsupportedOperationException(); }
+    }
+
+
+   /***********************************************************************
+    * Test routine.
+    **********************************************************************/
+    public static void main(String[] args) {
+        LinearProbingHashST<String, String> st = new LinearProbingHashST<String, String>();
+
+       // insert some key-value pairs
+        st.put("www.cs.princeton.edu",   "128.112.136.11");
+        st.put("www.cs.princeton.edu",   "128.112.136.35");    // overwrite old value
+        st.put("www.princeton.edu",      "128.112.130.211");
+        st.put("www.math.princeton.edu", "128.112.18.11");
+        st.put("www.yale.edu",           "130.132.51.8");
+        st.put("www.amazon.com",         "207.171.163.90");
+        st.put("www.simpsons.com",       "209.123.16.34");
+        st.put("www.stanford.edu",       "171.67.16.120");
+        st.put("www.google.com",         "64.233.161.99");
+        st.put("www.ibm.com",            "129.42.16.99");
+        st.put("www.apple.com",          "17.254.0.91");
+        st.put("www.slashdot.com",       "66.35.250.150");
+        st.put("www.whitehouse.gov",     "204.153.49.136");
+        st.put("www.espn.com",           "199.181.132.250");
+        st.put("www.snopes.com",         "66.165.133.65");
+        st.put("www.movies.com",         "199.181.132.250");
+        st.put("www.cnn.com",            "64.236.16.20");
+        st.put("www.iitb.ac.in",         "202.68.145.210");
+
+
+        System.out.println(st.get("www.cs.princeton.edu"));
+        System.out.println(st.get("www.harvardsucks.com"));
+        System.out.println(st.get("www.simpsons.com"));
+        System.out.println();
+
+        st.delete("www.simpsons.com");
+        System.out.println(st.get("www.simpsons.com"));
+        System.out.println("size:    " + st.size());
+        System.out.println();
+
+        // print out all key-value pairs in table order
+        for (String s : st.keys())
+            System.out.println(s + " " + st.get(s));
+    }
+
+}
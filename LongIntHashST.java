@@ -0,0 +1,190 @@
+/*************************************************************************
+ *  Compilation:  javac LongIntHashST.java
+ *  Execution:    java LongIntHashST
+ *
+ *  Symbol table with primitive long keys and int values, implemented
+ *  with a linear probing hash table.
+ *
+ *  % java LongIntHashST
+ *
+ *************************************************************************/
+
+import java.util.Arrays;
+
+
+/**
+ *  This class represents an unordered symbol table whose keys are
+ *  <tt>long</tt>s and whose values are non-negative <tt>int</tt>s.
+ *  It supports the usual <em>put</em>, <em>get</em>, <em>contains</em>,
+ *  and <em>remove</em> methods.
+ *  <p>
+ *  Keys and values are kept in primitive arrays, so nothing is boxed and
+ *  each entry takes 12 bytes of table space. The value -1 is used to mark
+ *  empty slots: <em>get</em> returns -1 for a key that is not in the table,
+ *  and values must not be negative.
+ *  <p>
+ *  This implementation uses open addressing with linear probing.
+ *  The <em>put</em>, <em>get</em>, <em>contains</em>, and <em>remove</em>
+ *  methods take constant time on average.
+ *  <p>
+ *  For additional documentation, see <a href="/algs4/34hash">Section 3.4</a> of
+ *  <i>Algorithms in Java, 4th Edition</i> by Robert Sedgewick and Kevin Wayne.
+ */
+public class LongIntHashST {
+    private static final int INIT_CAPACITY = 16;
+    private static final int EMPTY = -1;
+
+    private int N;            // number of key-value pairs in the table
+    private int M;            // size of the table; always a power of 2
+    private int minM;         // the table never shrinks below this size
+    private long[] keys;
+    private int[] vals;       // EMPTY where a slot is unused
+
+    /**
+     * Create an empty symbol table.
+     */
+    public LongIntHashST() {
+        this(INIT_CAPACITY / 2);
+    }
+
+    /**
+     * Create an empty symbol table with room for the given number of keys.
+     */
+    public LongIntHashST(int expected) {
+        M = INIT_CAPACITY;
+        while (M / 2 < expected && M < (1 << 30)) M *= 2;
+        minM = M;
+        allocate(M);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        vals = new int[capacity];
+        Arrays.fill(vals, EMPTY);
+    }
+
+    // multiplicative hashing; mixes all 64 bits of the key into the index
+    private int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (M - 1);
+    }
+
+    /**
+     * Put key-value pair into the symbol table. Remove key from table if
+     * value is negative.
+     */
+    public void put(long key, int val) {
+        if (val < 0) { delete(key); return; }
+
+        // keep the table at most half full
+        if (N >= M / 2) resize(2 * M);
+
+        int i;
+        for (i = hash(key); vals[i] != EMPTY; i = (i + 1) & (M - 1)) {
+            if (keys[i] == key) { vals[i] = val; return; }
+        }
+        keys[i] = key;
+        vals[i] = val;
+        N++;
+    }
+
+    /**
+     * Return the value paired with given key; -1 if key is not in table.
+     */
+    public int get(long key) {
+        for (int i = hash(key); vals[i] != EMPTY; i = (i + 1) & (M - 1))
+            if (keys[i] == key) return vals[i];
+        return EMPTY;
+    }
+
+    /**
+     * Delete the key (and paired value) from table.
+     * Return the value paired with given key; -1 if key is not in table.
+     */
+    public int delete(long key) {
+        int i = hash(key);
+        while (vals[i] != EMPTY && keys[i] != key)
+            i = (i + 1) & (M - 1);
+        if (vals[i] == EMPTY) return EMPTY;
+
+        int val = vals[i];
+        vals[i] = EMPTY;
+        N--;
+
+        // reinsert the rest of the cluster
+        i = (i + 1) & (M - 1);
+        while (vals[i] != EMPTY) {
+            long keyToRehash = keys[i];
+            int  valToRehash = vals[i];
+            vals[i] = EMPTY;
+            insert(keyToRehash, valToRehash);
+            i = (i + 1) & (M - 1);
+        }
+
+        if (M > minM && N <= M / 8) resize(M / 2);
+        return val;
+    }
+
+    // put a key known not to be in the table
+    private void insert(long key, int val) {
+        int i = hash(key);
+        while (vals[i] != EMPTY) i = (i + 1) & (M - 1);
+        keys[i] = key;
+        vals[i] = val;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[]  oldVals = vals;
+        M = capacity;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++)
+            if (oldVals[i] != EMPTY) insert(oldKeys[i], oldVals[i]);
+    }
+
+    /**
+     * Is the key in the table?
+     */
+    public boolean contains(long key) {
+        return get(key) != EMPTY;
+    }
+
+    /**
+     * How many keys are in the table?
+     */
+    public int size() {
+        return N;
+    }
+
+    /**
+     * Is the table empty?
+     */
+    public boolean isEmpty() {
+        return N == 0;
+    }
+
+
+   /***********************************************************************
+    * Test routine.
+    **********************************************************************/
+    public static void main(String[] args) {
+        LongIntHashST st = new LongIntHashST();
+
+        // insert some key-value pairs
+        for (int i = 0; i < 1000; i++)
+            st.put(1000003L * i, i);
+        st.put(0L, 42);                         // overwrite old value
+
+        System.out.println(st.get(0L));
+        System.out.println(st.get(1000003L * 999));
+        System.out.println(st.get(17L));
+        System.out.println();
+
+        for (int i = 0; i < 1000; i += 2)
+            st.delete(1000003L * i);
+        System.out.println(st.get(1000003L * 998));
+        System.out.println(st.get(1000003L * 999));
+        System.out.println("size:    " + st.size());
+    }
+
+}
@@ -0,0 +1,366 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/*************************************************************************
+ *  Compilation:  javac MappedCSVReader.java
+ *  Dependencies: CSVSource.java
+ *
+ *  Reads a CSV file by memory-mapping it and parsing the bytes in place.
+ *  A field that is a plain run of bytes in the file (the usual case) is
+ *  just remembered as an offset and a length; only fields with quotes or
+ *  escapes removed from the middle are copied, into a buffer that is
+ *  reused for every row. No String is made until field() asks for one,
+ *  so fields that are never looked at are never decoded.
+ *
+ *  The rows and fields are exactly the ones opencsv 2.1's CSVReader gives
+ *  with its default settings, including its quirks: lines end at \n, \r
+ *  or \r\n; a quoted field can span lines and gets a \n for each line
+ *  break; "" inside quotes is a quote; a backslash inside quotes escapes
+ *  a quote or backslash and is dropped everywhere else; a quote in the
+ *  middle of an unquoted field is kept; and a quoted field still open at
+ *  the end of the file is dropped.
+ *
+ *  Only works for charsets in which those characters are single bytes
+ *  that never appear inside another character (see supports()).
+ *
+ *************************************************************************/
+
+public class MappedCSVReader implements CSVSource {
+
+    private static final byte SEPARATOR = ',';
+    private static final byte QUOTE = '"';
+    private static final byte ESCAPE = '\\';
+
+    //  Most of the file mapped at once; a row that runs past the end of the
+    //  mapped window is parsed again from a window starting at the row
+    private static final long WINDOW = 1L << 30;
+
+    private static final int ROW = 0, END = 1, REMAP = 2;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final Charset charset;
+    private final boolean utf8;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private int windowLimit;
+    private boolean lastWindow;
+
+    //  Position in the window where the next row starts
+    private int pos;
+
+    //  Fields of the current row: where each starts, how long it is, and
+    //  whether it's in the window or in the scratch buffer
+    private int fields;
+    private int[] starts = new int[8];
+    private int[] lengths = new int[8];
+    private boolean[] copied = new boolean[8];
+    private byte[] scratch = new byte[256];
+    private int scratchLength;
+
+    //  The field being parsed
+    private int fieldStart;
+    private int fieldLength;
+    private boolean fieldCopied;
+
+    private byte[] decodeBuffer = new byte[256];
+
+    public MappedCSVReader(String inputFile) throws IOException
+    {
+        this(inputFile, Charset.defaultCharset());
+    }
+
+    public MappedCSVReader(String inputFile, Charset charset)
+        throws IOException
+    {
+        if (!supports(charset))
+            throw new IllegalArgumentException("Can't parse " + charset
+                    + " as bytes");
+        this.charset = charset;
+        utf8 = charset.name().equals("UTF-8");
+        file = new RandomAccessFile(inputFile, "r");
+        channel = file.getChannel();
+        fileSize = channel.size();
+        map(0);
+    }
+
+    //  Can files in this charset be parsed a byte at a time? True for
+    //  UTF-8 and for single-byte charsets that agree with ASCII on the
+    //  characters the parser looks for.
+    public static boolean supports(Charset charset)
+    {
+        if (charset.name().equals("UTF-8"))
+            return true;
+        if (charset.newEncoder().maxBytesPerChar() != 1)
+            return false;
+        String special = ",\"\\\r\n";
+        byte[] bytes = special.getBytes(charset);
+        return Arrays.equals(bytes, new byte[] { SEPARATOR, QUOTE, ESCAPE,
+                    '\r', '\n' });
+    }
+
+    private void map(long start) throws IOException
+    {
+        long size = Math.min(WINDOW, fileSize - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        windowStart = start;
+        windowLimit = (int) size;
+        lastWindow = start + size == fileSize;
+        pos = 0;
+    }
+
+    public boolean next() throws IOException
+    {
+        while (true)
+        {
+            int rowStart = pos;
+            int result = parseRow();
+            if (result == REMAP)
+            {
+                if (rowStart == 0)
+                    throw new IOException("Row longer than " + WINDOW
+                            + " bytes");
+                map(windowStart + rowStart);
+                continue;
+            }
+            return result == ROW;
+        }
+    }
+
+    public int fields()
+    {
+        return fields;
+    }
+
+    public String field(int i)
+    {
+        if (i < 0 || i >= fields)
+            throw new ArrayIndexOutOfBoundsException(i);
+
+        int length = lengths[i];
+        if (copied[i])
+            return new String(scratch, starts[i], length, charset);
+
+        if (decodeBuffer.length < length)
+            decodeBuffer = new byte[Math.max(length, 2 * decodeBuffer.length)];
+        window.get(starts[i], decodeBuffer, 0, length);
+        return new String(decodeBuffer, 0, length, charset);
+    }
+
+    //  Length in bytes of field i of the current row
+    public int fieldLength(int i)
+    {
+        return lengths[i];
+    }
+
+    public void close() throws IOException
+    {
+        channel.close();
+        file.close();
+    }
+
+    //  Parses the row starting at pos. Returns ROW if there is one, END if
+    //  the file has no more rows, or REMAP if the row runs past the end of
+    //  the window.
+    private int parseRow()
+    {
+        fields = 0;
+        scratchLength = 0;
+        startField();
+
+        boolean inQuotes = false;
+        int p = pos;
+        int lineStart = p;
+
+        //  Index in the line, in characters, of the byte at p
+        int charIndex = 0;
+
+        if (p >= windowLimit)
+            return lastWindow ? END : REMAP;
+
+        while (true)
+        {
+            if (p >= windowLimit)
+            {
+                if (!lastWindow)
+                    return REMAP;
+
+                //  The file ends inside a quoted field that started on an
+                //  earlier line: opencsv drops that field
+                if (inQuotes || p == lineStart)
+                {
+                    pos = p;
+                    return fields > 0 ? ROW : END;
+                }
+
+                //  Last line, without a line break
+                endField();
+                pos = p;
+                return ROW;
+            }
+
+            byte c = window.get(p);
+
+            if (c == '\n' || c == '\r')
+            {
+                int end = p + 1;
+                if (c == '\r')
+                {
+                    if (end >= windowLimit && !lastWindow)
+                        return REMAP;
+                    if (end < windowLimit && window.get(end) == '\n')
+                        end++;
+                }
+
+                if (!inQuotes)
+                {
+                    endField();
+                    pos = end;
+                    return ROW;
+                }
+
+                //  A quoted field continues on the next line, joined by \n
+                if (end == p + 1 && c == '\n')
+                    append(p);
+                else
+                    appendCopy((byte) '\n');
+
+                //  At the end of the file there is no next line
+                if (end >= windowLimit && lastWindow)
+                {
+                    pos = end;
+                    return fields > 0 ? ROW : END;
+                }
+
+                p = end;
+                lineStart = p;
+                charIndex = 0;
+                continue;
+            }
+
+            //  The next byte, if it's on the same line; -1 if not
+            int next = -1;
+            if (p + 1 < windowLimit)
+            {
+                byte b = window.get(p + 1);
+                if (b != '\n' && b != '\r')
+                    next = b;
+            }
+            else if (!lastWindow)
+                return REMAP;
+
+            if (c == ESCAPE)
+            {
+                if (inQuotes && (next == QUOTE || next == ESCAPE))
+                {
+                    append(p + 1);
+                    p += 2;
+                    charIndex += 2;
+                    continue;
+                }
+                //  Otherwise the backslash is dropped
+            }
+            else if (c == QUOTE)
+            {
+                if (inQuotes && next == QUOTE)
+                {
+                    append(p + 1);
+                    p += 2;
+                    charIndex += 2;
+                    continue;
+                }
+
+                inQuotes = !inQuotes;
+
+                //  A quote in the middle of a field is kept
+                if (charIndex > 2 && window.get(p - 1) != SEPARATOR
+                        && next != -1 && next != SEPARATOR)
+                    append(p);
+            }
+            else if (c == SEPARATOR && !inQuotes)
+            {
+                endField();
+                startField();
+            }
+            else
+                append(p);
+
+            if (!utf8 || (c & 0xC0) != 0x80)
+                charIndex++;
+            p++;
+        }
+    }
+
+    private void startField()
+    {
+        fieldStart = -1;
+        fieldLength = 0;
+        fieldCopied = false;
+    }
+
+    //  Adds the byte at position p of the window to the field, copying only
+    //  if it doesn't directly follow the field's bytes in the window
+    private void append(int p)
+    {
+        if (!fieldCopied)
+        {
+            if (fieldStart < 0)
+            {
+                fieldStart = p;
+                fieldLength = 1;
+                return;
+            }
+            if (fieldStart + fieldLength == p)
+            {
+                fieldLength++;
+                return;
+            }
+            copyField();
+        }
+        appendCopy(window.get(p));
+    }
+
+    //  Adds a byte to the field's copy in the scratch buffer
+    private void appendCopy(byte b)
+    {
+        if (!fieldCopied)
+            copyField();
+        if (scratchLength == scratch.length)
+            scratch = Arrays.copyOf(scratch, 2 * scratch.length);
+        scratch[scratchLength++] = b;
+        fieldLength++;
+    }
+
+    //  Moves the field so far into the scratch buffer
+    private void copyField()
+    {
+        int start = scratchLength;
+        if (scratchLength + fieldLength > scratch.length)
+            scratch = Arrays.copyOf(scratch,
+                    Math.max(2 * scratch.length, scratchLength + fieldLength));
+        for (int j = 0; j < fieldLength; j++)
+            scratch[scratchLength++] = window.get(fieldStart + j);
+        fieldStart = start;
+        fieldCopied = true;
+    }
+
+    private void endField()
+    {
+        if (fields == starts.length)
+        {
+            starts = Arrays.copyOf(starts, 2 * fields);
+            lengths = Arrays.copyOf(lengths, 2 * fields);
+            copied = Arrays.copyOf(copied, 2 * fields);
+        }
+        starts[fields] = Math.max(fieldStart, 0);
+        lengths[fields] = fieldLength;
+        copied[fields] = fieldCopied;
+        fields++;
+    }
+}
@@ -0,0 +1,125 @@
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.Locale;
+
+/*************************************************************************
+ *  Compilation:  javac MatchingForm.java
+ *  Dependencies: none
+ *
+ *  The form of an idea that duplicates are found by when asked to
+ *  (-normalize): NFKC-normalized, so full-width letters, ligatures and
+ *  the like become the plain characters they stand for; case-folded, so
+ *  "Cure Cancer" and "cure cancer" match; and with every run of white
+ *  space made a single space and none at either end. Two ideas that
+ *  differ only in those ways have the same matching form, while each
+ *  keeps its own text for the output.
+ *
+ *  Most ideas are plain ASCII with single spaces between words, for which
+ *  one pass checks that and the matching form is the idea in lower case
+ *  (the idea itself if it has no capitals).
+ *
+ *************************************************************************/
+
+public class MatchingForm {
+
+    private MatchingForm() { }
+
+    public static String of(String idea)
+    {
+        //  White space other than single spaces between words is rare, and
+        //  all of the ASCII kinds are at or below ' '
+        int n = idea.length();
+        boolean ascii = true;
+        boolean spaced = n == 0
+            || (idea.charAt(0) != ' ' && idea.charAt(n - 1) != ' ');
+        for (int i = 0; i < n; i++)
+        {
+            char c = idea.charAt(i);
+            if (c >= 0x80)
+            {
+                ascii = false;
+                break;
+            }
+            if (spaced && c <= ' ' && (c != ' ' || idea.charAt(i - 1) == ' '))
+                spaced = false;
+        }
+        if (ascii && spaced)
+            return idea.toLowerCase(Locale.ROOT);
+        if (ascii)
+            return collapseAscii(idea);
+
+        //  Folding the case of a normalized string can leave it
+        //  unnormalized (and the other way around), so normalize again
+        String form = Normalizer.normalize(idea, Normalizer.Form.NFKC);
+        form = form.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+        if (!Normalizer.isNormalized(form, Normalizer.Form.NFKC))
+            form = Normalizer.normalize(form, Normalizer.Form.NFKC);
+        return collapse(form);
+    }
+
+    //  Lowercases ASCII letters and makes each run of white space a single
+    //  space, trimming both ends
+    private static String collapse(String s)
+    {
+        int n = s.length();
+        char[] form = new char[n];
+        int length = 0;
+        boolean space = true;
+        for (int i = 0; i < n; i++)
+        {
+            char c = s.charAt(i);
+            if ((c <= ' ' || c >= 0x80) && isSpace(c))
+            {
+                if (!space)
+                    form[length++] = ' ';
+                space = true;
+            }
+            else
+            {
+                form[length++] = c >= 'A' && c <= 'Z' ? (char) (c + 32) : c;
+                space = false;
+            }
+        }
+        if (length > 0 && form[length - 1] == ' ')
+            length--;
+        return new String(form, 0, length);
+    }
+
+    //  Same as collapse() for an ASCII string, without widening its chars
+    private static String collapseAscii(String s)
+    {
+        int n = s.length();
+        byte[] form = new byte[n];
+        int length = 0;
+        boolean space = true;
+        for (int i = 0; i < n; i++)
+        {
+            char c = s.charAt(i);
+            if (c <= ' ' && isSpace(c))
+            {
+                if (!space)
+                    form[length++] = ' ';
+                space = true;
+            }
+            else
+            {
+                form[length++] = (byte) (c >= 'A' && c <= 'Z' ? c + 32 : c);
+                space = false;
+            }
+        }
+        if (length > 0 && form[length - 1] == ' ')
+            length--;
+        return new String(form, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isSpace(char c)
+    {
+        if (c < 0x80)
+            return c == ' ' || (c >= '\t' && c <= '\r')
+                || (c >= 0x1c && c <= 0x1f);
+        //  No char from U+00A1 to U+167F, or above U+3000, is white space
+        if ((c > 0xa0 && c < 0x1680) || c > 0x3000)
+            return false;
+        return Character.isWhitespace(c) || Character.isSpaceChar(c);
+    }
+}
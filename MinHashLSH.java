@@ -0,0 +1,236 @@
+import java.util.Arrays;
+
+/*************************************************************************
+ *  Compilation:  javac MinHashLSH.java
+ *  Dependencies: Fingerprint.java, LongIntHashST.java
+ *
+ *  Finds ideas that are nearly the same as an idea seen earlier: ones that
+ *  differ by a word, a shortened URL or some punctuation. Each idea is
+ *  broken into overlapping character shingles after lower-casing it,
+ *  dropping URLs and squeezing punctuation and whitespace to single
+ *  spaces. Two ideas are near duplicates if the Jaccard similarity of
+ *  their shingle sets is at least the threshold.
+ *
+ *  Comparing every pair of ideas would take quadratic time, so each idea
+ *  gets a MinHash signature, the signature is cut into bands, and ideas
+ *  are only compared with the earlier ideas that share a band with them
+ *  (locality-sensitive hashing). The number of bands is chosen so that
+ *  pairs at the threshold very likely share at least one band.
+ *
+ *************************************************************************/
+
+public class MinHashLSH {
+
+    private static final int SHINGLE_LENGTH = 5;
+    private static final int NUM_HASHES = 64;
+
+    private final double threshold;
+    private final int bands;
+    private final int rows;
+    private final long[] seeds = new long[NUM_HASHES];
+
+    //  (band, band hash) -> position of the latest idea in that bucket;
+    //  next[band][position] chains the bucket back to earlier ideas
+    private LongIntHashST buckets = new LongIntHashST();
+    private int[][] next;
+
+    //  By position: the id and sorted shingle hashes of each idea added
+    private int[] ids = new int[16];
+    private long[][] shingles = new long[16][];
+    private int n = 0;
+
+    //  Marks positions already compared while handling the current idea
+    private int[] seen = new int[16];
+    private int stamp = 0;
+
+    public MinHashLSH(double threshold)
+    {
+        if (threshold <= 0 || threshold > 1)
+            throw new IllegalArgumentException("Threshold must be in (0, 1]");
+        this.threshold = threshold;
+
+        //  A pair with similarity s shares a band with probability
+        //  1 - (1 - s^rows)^bands, which rises steeply around
+        //  (1/bands)^(1/rows). Use the most rows that keep that point at or
+        //  below the threshold, so near duplicates are rarely missed.
+        int r = 1;
+        while (r < NUM_HASHES && estimate(NUM_HASHES / (r + 1), r + 1)
+                <= threshold)
+            r++;
+        rows = r;
+        bands = NUM_HASHES / r;
+
+        for (int i = 0; i < NUM_HASHES; i++)
+            seeds[i] = Fingerprint.mix(0x9E3779B97F4A7C15L * (i + 1));
+        next = new int[bands][16];
+    }
+
+    private static double estimate(int bands, int rows)
+    {
+        return Math.pow(1.0 / bands, 1.0 / rows);
+    }
+
+    //  Returns the smallest id of an earlier idea that is a near duplicate
+    //  of this one. If there is none, returns -1 and remembers the idea so
+    //  that later ideas are compared with it.
+    public int add(int id, String idea)
+    {
+        long[] mine = shingles(idea);
+        if (mine.length == 0)
+            return -1;
+
+        long[] bandKeys = bandKeys(signature(mine));
+
+        stamp++;
+        int match = -1;
+        for (int band = 0; band < bands; band++)
+        {
+            for (int p = buckets.get(bandKeys[band]); p >= 0;
+                    p = next[band][p])
+            {
+                if (seen[p] == stamp)
+                    continue;
+                seen[p] = stamp;
+                if ((match < 0 || ids[p] < match)
+                        && jaccard(mine, shingles[p]) >= threshold)
+                    match = ids[p];
+            }
+        }
+        if (match >= 0)
+            return match;
+
+        insert(id, mine, bandKeys);
+        return -1;
+    }
+
+    private void insert(int id, long[] mine, long[] bandKeys)
+    {
+        if (n == ids.length)
+        {
+            ids = Arrays.copyOf(ids, 2 * n);
+            shingles = Arrays.copyOf(shingles, 2 * n);
+            seen = Arrays.copyOf(seen, 2 * n);
+            for (int band = 0; band < bands; band++)
+                next[band] = Arrays.copyOf(next[band], 2 * n);
+        }
+
+        ids[n] = id;
+        shingles[n] = mine;
+        for (int band = 0; band < bands; band++)
+        {
+            next[band][n] = buckets.get(bandKeys[band]);
+            buckets.put(bandKeys[band], n);
+        }
+        n++;
+    }
+
+    //  Sorted, distinct hashes of the shingles of the cleaned-up idea
+    static long[] shingles(String idea)
+    {
+        String text = simplify(idea);
+        if (text.length() == 0)
+            return new long[0];
+        if (text.length() <= SHINGLE_LENGTH)
+            return new long[] { Fingerprint.of(text) };
+
+        long[] hashes = new long[text.length() - SHINGLE_LENGTH + 1];
+        for (int i = 0; i < hashes.length; i++)
+            hashes[i] = Fingerprint.of(text.subSequence(i,
+                        i + SHINGLE_LENGTH));
+        Arrays.sort(hashes);
+
+        int distinct = 0;
+        for (int i = 0; i < hashes.length; i++)
+            if (i == 0 || hashes[i] != hashes[i - 1])
+                hashes[distinct++] = hashes[i];
+        return Arrays.copyOf(hashes, distinct);
+    }
+
+    //  Lower case, without URLs, with every run of characters that aren't
+    //  letters or digits turned into a single space
+    static String simplify(String idea)
+    {
+        StringBuilder text = new StringBuilder(idea.length());
+        boolean space = false;
+        int i = 0;
+        while (i < idea.length())
+        {
+            if (startsUrl(idea, i))
+            {
+                while (i < idea.length() && idea.charAt(i) != ' ')
+                    i++;
+                continue;
+            }
+
+            char c = idea.charAt(i++);
+            if (Character.isLetterOrDigit(c))
+            {
+                if (space && text.length() > 0)
+                    text.append(' ');
+                text.append(Character.toLowerCase(c));
+                space = false;
+            }
+            else
+                space = true;
+        }
+        return text.toString();
+    }
+
+    //  Does a URL start at position i of the idea?
+    private static boolean startsUrl(String idea, int i)
+    {
+        if (i > 0 && Character.isLetterOrDigit(idea.charAt(i - 1)))
+            return false;
+        return idea.startsWith("http://", i) || idea.startsWith("https://", i)
+            || idea.startsWith("www.", i);
+    }
+
+    private long[] signature(long[] mine)
+    {
+        long[] mins = new long[NUM_HASHES];
+        Arrays.fill(mins, Long.MAX_VALUE);
+        for (long shingle : mine)
+        {
+            for (int i = 0; i < NUM_HASHES; i++)
+            {
+                long h = Fingerprint.mix(shingle ^ seeds[i]);
+                if (h < mins[i])
+                    mins[i] = h;
+            }
+        }
+        return mins;
+    }
+
+    private long[] bandKeys(long[] signature)
+    {
+        long[] keys = new long[bands];
+        for (int band = 0; band < bands; band++)
+        {
+            long h = band;
+            for (int row = 0; row < rows; row++)
+                h = Fingerprint.mix(h * 31 + signature[band * rows + row]);
+            keys[band] = h;
+        }
+        return keys;
+    }
+
+    //  Jaccard similarity of two sorted sets of shingle hashes
+    static double jaccard(long[] a, long[] b)
+    {
+        int i = 0, j = 0, common = 0;
+        while (i < a.length && j < b.length)
+        {
+            if (a[i] == b[j])
+            {
+                common++;
+                i++;
+                j++;
+            }
+            else if (a[i] < b[j])
+                i++;
+            else
+                j++;
+        }
+        return (double) common / (a.length + b.length - common);
+    }
+}
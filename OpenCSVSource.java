@@ -0,0 +1,44 @@
+import au.com.bytecode.opencsv.CSVReader;
+
+import java.io.FileReader;
+import java.io.IOException;
+
+/*************************************************************************
+ *  Compilation:  javac OpenCSVSource.java
+ *  Dependencies: CSVSource.java, opencsv-2.1.jar
+ *
+ *  CSVSource that reads the file with opencsv.
+ *
+ *************************************************************************/
+
+public class OpenCSVSource implements CSVSource {
+
+    private CSVReader reader;
+    private String[] currentLine;
+
+    public OpenCSVSource(String inputFile) throws IOException
+    {
+        reader = new CSVReader(new FileReader(inputFile));
+    }
+
+    public boolean next() throws IOException
+    {
+        currentLine = reader.readNext();
+        return currentLine != null;
+    }
+
+    public int fields()
+    {
+        return currentLine.length;
+    }
+
+    public String field(int i)
+    {
+        return currentLine[i];
+    }
+
+    public void close() throws IOException
+    {
+        reader.close();
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/*************************************************************************
+ *  Compilation:  javac PartitionedDeduplicater.java
+ *  Execution:    java PartitionedDeduplicater split|keep part parts input
+ *                    workDir useless [flags]
+ *  Dependencies: ExternalDeduplicater.java, Deduplicater.java,
+ *                DedupOptions.java, ColumnCache.java
+ *
+ *  Deduplicates an input with several worker processes on this machine,
+ *  for inputs that take too long for one JVM. Like ExternalDeduplicater,
+ *  it treats the rows that end up with the same idea as a group that can
+ *  be replayed on its own, and each group belongs to one partition,
+ *  picked by a hash of its idea. There are three steps:
+ *
+ *    split   each of N workers runs the rule chain on every Nth row and
+ *            writes the row's record to a bucket file for the partition of
+ *            its group
+ *    keep    worker p reads partition p's buckets, replays each of its
+ *            groups, and writes the rows it keeps, in id order
+ *    merge   this process merges the N partitions' rows, in id order,
+ *            into the output
+ *
+ *  The output is the same as Deduplicater's. If a worker finds a row that
+ *  would make replaying the groups separately wrong (see
+ *  ExternalDeduplicater), the input is deduplicated in this process
+ *  instead.
+ *
+ *  The coordinator is run by "java Deduplicater ... -partitions=N"; main()
+ *  here is the worker it starts, in a JVM of its own, for each step.
+ *
+ *************************************************************************/
+
+public class PartitionedDeduplicater {
+
+    //  Exit status of a keep worker that can't replay its groups apart
+    private static final int UNSAFE = 3;
+
+    //  Smallest heap a worker is given
+    private static final long MIN_WORKER_HEAP_MB = 64;
+
+    private final String inputFile;
+    private final DedupOptions options;
+
+    //  Whether the last dedup() had to fall back to Deduplicater
+    private boolean fellBack = false;
+
+    public PartitionedDeduplicater(String inputFile, DedupOptions options)
+    {
+        this.inputFile = inputFile;
+        this.options = options;
+    }
+
+    //  Writes the rows Deduplicater would keep, with the remove methods
+    //  applied, to the output file
+    public void dedup(String outputFile)
+        throws IOException, InterruptedException
+    {
+        fellBack = false;
+        int parts = options.partitions;
+        File work = Files.createTempDirectory("dedup-partitions").toFile();
+        try
+        {
+            //  Bring the cache up to date before the workers all read it
+            if (options.cache != null)
+                ColumnCache.open(inputFile, options).close();
+
+            run("split", parts, work);
+            if (!run("keep", parts, work))
+            {
+                fellBack = true;
+                Deduplicater d = new Deduplicater(inputFile, options,
+                        Deduplicater.readRules(options));
+                d.applyAllRemoves(options.uselessOn);
+                d.writeOutput(outputFile);
+                return;
+            }
+
+            List<File> keptFiles = new ArrayList<File>();
+            for (int part = 0; part < parts; part++)
+                keptFiles.add(kept(work, part));
+            new ExternalDeduplicater(inputFile, options).merge(keptFiles,
+                    outputFile);
+        }
+        finally
+        {
+            for (File file : work.listFiles())
+                file.delete();
+            work.delete();
+        }
+    }
+
+    public boolean fellBack()
+    {
+        return fellBack;
+    }
+
+    //  Runs a step with a worker per partition, all at once. Returns false
+    //  if a keep worker found its groups can't be replayed apart.
+    private boolean run(String step, int parts, File work)
+        throws IOException, InterruptedException
+    {
+        List<Process> workers = new ArrayList<Process>();
+        for (int part = 0; part < parts; part++)
+            workers.add(new ProcessBuilder(command(step, part, parts, work))
+                    .inheritIO().start());
+
+        boolean safe = true;
+        IOException failed = null;
+        for (int part = 0; part < parts; part++)
+        {
+            int status = workers.get(part).waitFor();
+            if (status == UNSAFE)
+                safe = false;
+            else if (status != 0 && failed == null)
+                failed = new IOException("Partition " + part + " failed to "
+                        + step + " (exit status " + status + ")");
+        }
+        if (failed != null)
+            throw failed;
+        return safe;
+    }
+
+    //  A worker in a new JVM with the same class path and an even share
+    //  of this one's heap (but at least MIN_WORKER_HEAP_MB), since all the
+    //  workers of a step run at once
+    private List<String> command(String step, int part, int parts,
+            File work)
+    {
+        List<String> command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "java");
+        command.add("-Xmx" + Math.max(MIN_WORKER_HEAP_MB,
+                    Runtime.getRuntime().maxMemory() / (1 << 20) / parts)
+                + "m");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("PartitionedDeduplicater");
+        command.add(step);
+        command.add(Integer.toString(part));
+        command.add(Integer.toString(parts));
+        command.add(inputFile);
+        command.add(work.getPath());
+        command.add(options.uselessOn ? "1" : "0");
+
+        //  The only options the workers use
+        if (options.rules != null)
+            command.add("-rules=" + options.rules);
+        if (options.opencsv)
+            command.add("-opencsv");
+        if (options.cache != null)
+            command.add(options.cache.isEmpty() ? "-cache"
+                    : "-cache=" + options.cache);
+        if (options.externalMemory > 0)
+            command.add("-external=" + Math.max(1,
+                        options.externalMemory / (1024 * 1024)));
+        return command;
+    }
+
+    //  Records that splitter from wrote for partition to
+    private static File bucket(File work, int from, int to)
+    {
+        return new File(work, "bucket-" + from + "-" + to);
+    }
+
+    //  Rows partition part kept
+    private static File kept(File work, int part)
+    {
+        return new File(work, "kept-" + part);
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        String step = args[0];
+        int part = Integer.parseInt(args[1]);
+        int parts = Integer.parseInt(args[2]);
+        String inputFile = args[3];
+        File work = new File(args[4]);
+        DedupOptions options = DedupOptions.parse(args, 6);
+        options.uselessOn = Integer.parseInt(args[5]) == 1;
+
+        ExternalDeduplicater external = new ExternalDeduplicater(inputFile,
+                options);
+        if (step.equals("split"))
+        {
+            File[] buckets = new File[parts];
+            for (int to = 0; to < parts; to++)
+                buckets[to] = bucket(work, part, to);
+            external.split(part, parts, buckets);
+        }
+        else if (step.equals("keep"))
+        {
+            List<File> buckets = new ArrayList<File>();
+            for (int from = 0; from < parts; from++)
+                buckets.add(bucket(work, from, part));
+            if (!external.keep(buckets, kept(work, part)))
+                System.exit(UNSAFE);
+        }
+        else
+            throw new IllegalArgumentException("Unknown step " + step);
+    }
+}
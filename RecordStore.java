@@ -0,0 +1,372 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/*************************************************************************
+ *  Compilation:  javac RecordStore.java
+ *  Dependencies: LinearProbingHashST.java, TextArena.java, IdeaRecord.java
+ *
+ *  Column store for the rows Deduplicater keeps. Ids are row numbers, so
+ *  instead of a symbol table per column each column is an array indexed
+ *  by id, and a bitset marks which ids are still live. Networks only take
+ *  a handful of values, so each row stores a small code into a dictionary
+ *  of network names rather than its own string.
+ *
+ *  Given a TextArena, ideas and usernames are kept in it as UTF-8 bytes,
+ *  and each row only holds two handles into it rather than two Strings;
+ *  idea() and username() then make a new String each time. Once most of
+ *  the arena is text of deleted rows or of ideas since replaced, the live
+ *  rows' text is copied to a new one.
+ *
+ *  records() goes through the live rows as IdeaRecords, reading the
+ *  columns directly, and can be split for a parallel stream; several
+ *  threads can read the rows at once as long as none changes the store.
+ *
+ *************************************************************************/
+
+public class RecordStore {
+
+    private String[] ideas;
+    private String[] usernames;
+    private int[] networks;
+
+    //  With an arena, the handles of the ideas and usernames instead
+    private TextArena arena;
+    private long[] ideaHandles;
+    private long[] usernameHandles;
+
+    //  Garbage in the arena below which it's never worth copying
+    private static final long MIN_GARBAGE = 1 << 22;
+
+    //  Network dictionary: code -> name and name -> code
+    private String[] networkNames = new String[4];
+    private LinearProbingHashST<String, Integer> networkCodes =
+        new LinearProbingHashST<String, Integer>();
+
+    //  Bit id is set if row id has not been deleted
+    private BitSet live;
+
+    //  Number of live rows
+    private int N = 0;
+
+    public RecordStore(int expectedRows)
+    {
+        this(expectedRows, null);
+    }
+
+    //  Keeps the text in the arena, unless it's null
+    public RecordStore(int expectedRows, TextArena arena)
+    {
+        int capacity = Math.max(16, expectedRows);
+        this.arena = arena;
+        if (arena == null)
+        {
+            ideas = new String[capacity];
+            usernames = new String[capacity];
+        }
+        else
+        {
+            ideaHandles = new long[capacity];
+            usernameHandles = new long[capacity];
+        }
+        networks = new int[capacity];
+        live = new BitSet(capacity);
+    }
+
+    //  Adds a live row with the given id
+    public void add(int id, String network, String username, String idea)
+    {
+        if (id >= networks.length)
+            grow(Math.max(id + 1, 2 * networks.length));
+
+        if (arena == null)
+        {
+            ideas[id] = idea;
+            usernames[id] = username;
+        }
+        else
+        {
+            ideaHandles[id] = arena.add(idea);
+            usernameHandles[id] = arena.add(username);
+        }
+        networks[id] = networkCode(network);
+        if (!live.get(id))
+        {
+            live.set(id);
+            N++;
+        }
+    }
+
+    private int networkCode(String network)
+    {
+        Integer code = networkCodes.get(network);
+        if (code == null)
+        {
+            code = networkCodes.size();
+            if (code == networkNames.length)
+            {
+                String[] names = new String[2 * code];
+                System.arraycopy(networkNames, 0, names, 0, code);
+                networkNames = names;
+            }
+            networkNames[code] = network;
+            networkCodes.put(network, code);
+        }
+        return code;
+    }
+
+    private void grow(int capacity)
+    {
+        if (arena == null)
+        {
+            ideas = Arrays.copyOf(ideas, capacity);
+            usernames = Arrays.copyOf(usernames, capacity);
+        }
+        else
+        {
+            ideaHandles = Arrays.copyOf(ideaHandles, capacity);
+            usernameHandles = Arrays.copyOf(usernameHandles, capacity);
+        }
+        networks = Arrays.copyOf(networks, capacity);
+    }
+
+    //  Is row id live?
+    public boolean contains(int id)
+    {
+        return id >= 0 && live.get(id);
+    }
+
+    //  The idea, username and network of a live row; null if the row is
+    //  not live
+    public String idea(int id)
+    {
+        if (!contains(id))
+            return null;
+        return arena == null ? ideas[id] : arena.get(ideaHandles[id]);
+    }
+
+    public String username(int id)
+    {
+        if (!contains(id))
+            return null;
+        return arena == null ? usernames[id]
+            : arena.get(usernameHandles[id]);
+    }
+
+    //  Is row id live with the given idea? With an arena, this compares the
+    //  bytes rather than making a String.
+    public boolean ideaEquals(int id, String idea)
+    {
+        if (!contains(id))
+            return false;
+        return arena == null ? idea.equals(ideas[id])
+            : arena.equals(ideaHandles[id], idea);
+    }
+
+    public String network(int id)
+    {
+        return contains(id) ? networkNames[networks[id]] : null;
+    }
+
+    //  Replaces the idea of a live row
+    public void setIdea(int id, String idea)
+    {
+        if (arena == null)
+            ideas[id] = idea;
+        else
+        {
+            ideaHandles[id] = arena.replace(ideaHandles[id], idea);
+            compactIfWasteful();
+        }
+    }
+
+    //  Deletes row id
+    public void delete(int id)
+    {
+        if (contains(id))
+        {
+            live.clear(id);
+            if (arena == null)
+            {
+                ideas[id] = null;
+                usernames[id] = null;
+            }
+            else
+            {
+                arena.free(ideaHandles[id]);
+                arena.free(usernameHandles[id]);
+            }
+            N--;
+            if (arena != null)
+                compactIfWasteful();
+        }
+    }
+
+    //  Copies the live rows' text to a new arena once more than half of the
+    //  old one is garbage, so the arena stays in proportion to the live rows
+    private void compactIfWasteful()
+    {
+        if (arena.garbage() < Math.max(MIN_GARBAGE, arena.used() / 2))
+            return;
+        TextArena compacted = new TextArena(arena.isDirect());
+        for (int id = next(0); id >= 0; id = next(id + 1))
+        {
+            ideaHandles[id] = arena.copy(ideaHandles[id], compacted);
+            usernameHandles[id] = arena.copy(usernameHandles[id], compacted);
+        }
+        arena = compacted;
+    }
+
+    //  Number of live rows
+    public int size()
+    {
+        return N;
+    }
+
+    //  Smallest live id >= id, or -1 if there is none. To go through the
+    //  live ids in order, use:
+    //  for (int id = store.next(0); id >= 0; id = store.next(id + 1))
+    public int next(int id)
+    {
+        return live.nextSetBit(id);
+    }
+
+    //  The live rows as records, in id order. The ids are taken when this is
+    //  called, so the store mustn't change while the records are read.
+    public Spliterator<IdeaRecord> records()
+    {
+        int[] ids = new int[N];
+        int n = 0;
+        for (int id = next(0); id >= 0; id = next(id + 1))
+            ids[n++] = id;
+        return new Records(ids, 0, n);
+    }
+
+    //  Records for ids[lo] to ids[hi - 1]. Each split has a buffer of its
+    //  own for reading an arena, since a split is only used by one thread
+    //  at a time.
+    private class Records implements Spliterator<IdeaRecord>
+    {
+        //  Smallest number of rows worth splitting off
+        private static final int MIN_SPLIT = 128;
+
+        private final int[] ids;
+        private int lo;
+        private final int hi;
+        private final TextArena.Buffer buffer;
+
+        Records(int[] ids, int lo, int hi)
+        {
+            this.ids = ids;
+            this.lo = lo;
+            this.hi = hi;
+            buffer = arena == null ? null : new TextArena.Buffer();
+        }
+
+        public boolean tryAdvance(Consumer<? super IdeaRecord> action)
+        {
+            if (lo >= hi)
+                return false;
+            action.accept(record(ids[lo++]));
+            return true;
+        }
+
+        public void forEachRemaining(Consumer<? super IdeaRecord> action)
+        {
+            while (lo < hi)
+                action.accept(record(ids[lo++]));
+        }
+
+        public Spliterator<IdeaRecord> trySplit()
+        {
+            if (hi - lo < 2 * MIN_SPLIT)
+                return null;
+            int mid = (lo + hi) >>> 1;
+            Spliterator<IdeaRecord> prefix = new Records(ids, lo, mid);
+            lo = mid;
+            return prefix;
+        }
+
+        public long estimateSize()
+        {
+            return hi - lo;
+        }
+
+        public int characteristics()
+        {
+            return ORDERED | SIZED | SUBSIZED | DISTINCT | NONNULL;
+        }
+
+        private IdeaRecord record(int id)
+        {
+            String network = networkNames[networks[id]];
+            if (arena == null)
+                return new IdeaRecord(id, network, usernames[id], ideas[id]);
+            return new IdeaRecord(id, network,
+                    arena.get(usernameHandles[id], buffer),
+                    arena.get(ideaHandles[id], buffer));
+        }
+    }
+
+    //  Returns an iterable of the ideas of the live rows, in id order
+    public Iterable<String> ideas()
+    {
+        return new Iterable<String>() {
+            public Iterator<String> iterator()
+            {
+                final Iterator<Integer> ids = ids().iterator();
+                return new Iterator<String>() {
+                    public boolean hasNext()
+                    {
+                        return ids.hasNext();
+                    }
+
+                    public String next()
+                    {
+                        return idea(ids.next());
+                    }
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    //  Returns an iterable of the live ids in increasing order
+    public Iterable<Integer> ids()
+    {
+        return new Iterable<Integer>() {
+            public Iterator<Integer> iterator()
+            {
+                return new Iterator<Integer>() {
+                    private int id = RecordStore.this.next(0);
+
+                    public boolean hasNext()
+                    {
+                        return id >= 0;
+                    }
+
+                    public Integer next()
+                    {
+                        if (id < 0)
+                            throw new NoSuchElementException();
+                        int current = id;
+                        id = RecordStore.this.next(id + 1);
+                        return current;
+                    }
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,377 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/*************************************************************************
+ *  Compilation:  javac RowWriter.java
+ *  Dependencies: none
+ *
+ *  Writes the rows Deduplicater keeps, as
+ *
+ *    csv     "network","username","idea" lines, byte for byte what
+ *            opencsv 2.1's CSVWriter writes through a FileWriter: every
+ *            field quoted, quotes doubled, lines ending in \n, in the
+ *            default charset
+ *    jsonl   one {"id":..,"network":..,"username":..,"idea":..} object
+ *            per line, in UTF-8
+ *    binary  the bytes "DEDUPROW", a version int, and then for each row
+ *            its id as an int followed by network, username and idea, each
+ *            as an int byte count and that many bytes of UTF-8. Ints are
+ *            big-endian.
+ *
+ *  With cluster counts (see Clusters), each row also has the number of
+ *  rows in its cluster, and optionally the ids of those rows: two more
+ *  csv fields, the count and the ids separated by spaces; "count" and
+ *  "members" in jsonl; and in binary, version 2, an int count and an int
+ *  number of ids (0 if they weren't asked for) followed by the ids.
+ *
+ *  Each row is put straight into a reused char array, which is encoded
+ *  into a large byte buffer once it fills up, and the buffer is
+ *  written to the file's channel once that fills up; writing a row
+ *  allocates nothing.
+ *
+ *  Characters the charset can't encode (and unpaired surrogates, in
+ *  UTF-8) are written as ?, as FileWriter does; jsonl instead writes an
+ *  unpaired surrogate as a JSON unicode escape, which keeps it exactly.
+ *
+ *************************************************************************/
+
+public class RowWriter {
+
+    public static final int CSV = 0, JSONL = 1, BINARY = 2;
+
+    private static final String[] FORMATS = { "csv", "jsonl", "binary" };
+
+    private static final byte[] MAGIC = { 'D', 'E', 'D', 'U', 'P', 'R', 'O',
+        'W' };
+    private static final int VERSION = 1, CLUSTER_VERSION = 2;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final int format;
+    private final boolean counts;
+    private final FileOutputStream out;
+    private final FileChannel channel;
+    private final ByteBuffer bytes = ByteBuffer.allocate(1 << 20);
+    private final CharsetEncoder encoder;
+
+    //  Characters waiting to be encoded (csv and jsonl), or one field of a
+    //  row (binary)
+    private char[] text = new char[1 << 16];
+    private int length = 0;
+    private CharBuffer textBuffer = CharBuffer.wrap(text);
+
+    //  A field encoded on its own, so its length can be written first
+    private ByteBuffer field = ByteBuffer.allocate(1 << 12);
+
+    public RowWriter(String outputFile, int format) throws IOException
+    {
+        this(outputFile, format, false);
+    }
+
+    //  With cluster counts, if counts; the rows must then be written with
+    //  the write() that takes them
+    public RowWriter(String outputFile, int format, boolean counts)
+        throws IOException
+    {
+        this.format = format;
+        this.counts = counts;
+        Charset charset = format == CSV ? Charset.defaultCharset()
+            : Charset.forName("UTF-8");
+        encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        out = new FileOutputStream(outputFile);
+        channel = out.getChannel();
+
+        if (format == BINARY)
+            bytes.put(MAGIC).putInt(counts ? CLUSTER_VERSION : VERSION);
+    }
+
+    //  The format with the given name ("csv", "jsonl" or "binary")
+    public static int format(String name)
+    {
+        for (int i = 0; i < FORMATS.length; i++)
+            if (FORMATS[i].equals(name))
+                return i;
+        throw new IllegalArgumentException("Unknown output format " + name
+                + "; expected csv, jsonl or binary");
+    }
+
+    public void write(int id, String network, String username, String idea)
+        throws IOException
+    {
+        write(id, network, username, idea, 0, null);
+    }
+
+    //  A row with the number of rows in its cluster and, unless null, their
+    //  ids
+    public void write(int id, String network, String username, String idea,
+            int count, int[] members) throws IOException
+    {
+        int memberChars = members == null ? 0 : 11 * members.length;
+        if (format == CSV)
+        {
+            //  At worst every char is a quote and is doubled, and then
+            //  there are 6 quotes around the fields, 2 commas and a newline;
+            //  counts add 4 quotes, 2 commas, a count of up to 10 digits
+            //  and the members, each up to 10 digits and a space
+            room(2 * (network.length() + username.length() + idea.length())
+                    + 9 + (counts ? 16 + memberChars : 0));
+            csvField(network);
+            text[length++] = ',';
+            csvField(username);
+            text[length++] = ',';
+            csvField(idea);
+            if (counts)
+            {
+                append(",\"");
+                decimal(count);
+                append("\",\"");
+                for (int i = 0; members != null && i < members.length; i++)
+                {
+                    if (i > 0)
+                        text[length++] = ' ';
+                    decimal(members[i]);
+                }
+                text[length++] = '"';
+            }
+            text[length++] = '\n';
+        }
+        else if (format == JSONL)
+        {
+            room(6 * (network.length() + username.length() + idea.length())
+                    + memberChars + 96);
+            append("{\"id\":");
+            decimal(id);
+            append(",\"network\":");
+            jsonString(network);
+            append(",\"username\":");
+            jsonString(username);
+            append(",\"idea\":");
+            jsonString(idea);
+            if (counts)
+            {
+                append(",\"count\":");
+                decimal(count);
+            }
+            if (counts && members != null)
+            {
+                append(",\"members\":[");
+                for (int i = 0; i < members.length; i++)
+                {
+                    if (i > 0)
+                        text[length++] = ',';
+                    decimal(members[i]);
+                }
+                text[length++] = ']';
+            }
+            append("}\n");
+        }
+        else
+        {
+            if (bytes.remaining() < 4)
+                drain();
+            bytes.putInt(id);
+            binaryField(network);
+            binaryField(username);
+            binaryField(idea);
+            if (counts)
+            {
+                binaryInt(count);
+                binaryInt(members == null ? 0 : members.length);
+                for (int i = 0; members != null && i < members.length; i++)
+                    binaryInt(members[i]);
+            }
+        }
+    }
+
+    private void binaryInt(int n) throws IOException
+    {
+        if (bytes.remaining() < 4)
+            drain();
+        bytes.putInt(n);
+    }
+
+    private void append(String s)
+    {
+        s.getChars(0, s.length(), text, length);
+        length += s.length();
+    }
+
+    //  Quoted, with quotes doubled. The text between quotes is copied in
+    //  one go.
+    private void csvField(String s)
+    {
+        text[length++] = '"';
+        int from = 0;
+        for (int quote = s.indexOf('"'); quote >= 0;
+                quote = s.indexOf('"', quote + 1))
+        {
+            s.getChars(from, quote + 1, text, length);
+            length += quote + 1 - from;
+            text[length++] = '"';
+            from = quote + 1;
+        }
+        s.getChars(from, s.length(), text, length);
+        length += s.length() - from;
+        text[length++] = '"';
+    }
+
+    private void jsonString(String s)
+    {
+        char[] text = this.text;
+        int length = this.length;
+        text[length++] = '"';
+        int n = s.length();
+
+        //  Copy the characters that don't need escaping (usually all of
+        //  them) in one go
+        int plain = 0;
+        while (plain < n && plainInJson(s.charAt(plain)))
+            plain++;
+        s.getChars(0, plain, text, length);
+        length += plain;
+
+        for (int i = plain; i < n; i++)
+        {
+            char c = s.charAt(i);
+            if (plainInJson(c))
+            {
+                text[length++] = c;
+                continue;
+            }
+
+            switch (c)
+            {
+            case '"':  text[length++] = '\\'; text[length++] = '"'; break;
+            case '\\': text[length++] = '\\'; text[length++] = '\\'; break;
+            case '\n': text[length++] = '\\'; text[length++] = 'n'; break;
+            case '\r': text[length++] = '\\'; text[length++] = 'r'; break;
+            case '\t': text[length++] = '\\'; text[length++] = 't'; break;
+            default:
+                if (Character.isHighSurrogate(c) && i + 1 < n
+                        && Character.isLowSurrogate(s.charAt(i + 1)))
+                {
+                    text[length++] = c;
+                    text[length++] = s.charAt(++i);
+                }
+                else if (c < 0x20 || c == '\u2028' || c == '\u2029'
+                        || Character.isSurrogate(c))
+                {
+                    text[length++] = '\\';
+                    text[length++] = 'u';
+                    text[length++] = HEX[c >>> 12];
+                    text[length++] = HEX[(c >>> 8) & 15];
+                    text[length++] = HEX[(c >>> 4) & 15];
+                    text[length++] = HEX[c & 15];
+                }
+                else
+                    text[length++] = c;
+            }
+        }
+        text[length++] = '"';
+        this.length = length;
+    }
+
+    private static boolean plainInJson(char c)
+    {
+        return c >= 0x20 && c != '"' && c != '\\' && c < 0x2028;
+    }
+
+    //  Ids are never negative
+    private void decimal(int n)
+    {
+        int digits = 1;
+        for (int rest = n / 10; rest > 0; rest /= 10)
+            digits++;
+        length += digits;
+        for (int i = length - 1; digits-- > 0; i--, n /= 10)
+            text[i] = (char) ('0' + n % 10);
+    }
+
+    //  The field's UTF-8 byte count, then its bytes
+    private void binaryField(String s) throws IOException
+    {
+        int n = s.length();
+        if (text.length < n)
+            setText(new char[2 * n]);
+        s.getChars(0, n, text, 0);
+        textBuffer.clear();
+        textBuffer.limit(n);
+
+        if (field.capacity() < 3 * n)
+            field = ByteBuffer.allocate(3 * n);
+        field.clear();
+        encoder.reset();
+        encoder.encode(textBuffer, field, true);
+        encoder.flush(field);
+        field.flip();
+
+        if (bytes.remaining() < 4)
+            drain();
+        bytes.putInt(field.remaining());
+        while (field.hasRemaining())
+        {
+            if (!bytes.hasRemaining())
+                drain();
+            int count = Math.min(field.remaining(), bytes.remaining());
+            bytes.put(field.array(), field.position(), count);
+            field.position(field.position() + count);
+        }
+    }
+
+    //  Makes room in the char buffer for the given number of chars
+    private void room(int needed) throws IOException
+    {
+        if (text.length - length >= needed)
+            return;
+        encode(false);
+        if (text.length - length < needed)
+            setText(Arrays.copyOf(text, length + needed));
+    }
+
+    private void setText(char[] text)
+    {
+        this.text = text;
+        textBuffer = CharBuffer.wrap(text);
+    }
+
+    //  Encodes the chars waiting in the char buffer; a high surrogate at
+    //  the end is kept for its low surrogate, unless this is the end
+    private void encode(boolean end) throws IOException
+    {
+        textBuffer.clear();
+        textBuffer.limit(length);
+        while (encoder.encode(textBuffer, bytes, end).isOverflow())
+            drain();
+        if (end)
+            while (encoder.flush(bytes).isOverflow())
+                drain();
+        length = textBuffer.remaining();
+        System.arraycopy(text, textBuffer.position(), text, 0, length);
+    }
+
+    //  Writes out the byte buffer
+    private void drain() throws IOException
+    {
+        bytes.flip();
+        while (bytes.hasRemaining())
+            channel.write(bytes);
+        bytes.clear();
+    }
+
+    public void close() throws IOException
+    {
+        if (format != BINARY)
+            encode(true);
+        drain();
+        out.close();
+    }
+}
@@ -0,0 +1,142 @@
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*************************************************************************
+ *  Compilation:  javac Rule.java
+ *  Dependencies: RuleScanner.java
+ *
+ *  A single cleanup rule: a regular expression that is stripped from an
+ *  idea, either everywhere it occurs or only at the beginning. The
+ *  pattern is compiled once when the rule is created so that a rule can
+ *  be applied to every idea without recompiling it.
+ *
+ *  A rule can also be given a RuleScanner that does the same thing in one
+ *  pass without a Matcher; then the pattern is only kept for comparison.
+ *  Instead of stripping its pattern, a rule can delete the whole row when
+ *  its pattern matches (see RulePass).
+ *
+ *************************************************************************/
+
+public class Rule {
+
+    private final String regex;
+    private final boolean insensitive;
+    private final boolean matchOnlyStart;
+    private final boolean deletesRow;
+    private final Pattern pattern;
+    private final RuleScanner scanner;
+
+    //  Insensitive = true -> case insensitive
+    //  Insensitive = false -> case sensitive
+    //  matchOnlyStart = true -> only strip the expression from the beginning
+    public Rule(String regex, boolean insensitive, boolean matchOnlyStart)
+    {
+        this(regex, insensitive, matchOnlyStart, false, null);
+    }
+
+    //  Same, but applied with the given scanner, which must match exactly
+    //  what the regular expression does
+    public Rule(String regex, boolean insensitive, boolean matchOnlyStart,
+            RuleScanner scanner)
+    {
+        this(regex, insensitive, matchOnlyStart, false, scanner);
+    }
+
+    //  deletesRow = true -> the row is deleted if the expression matches,
+    //  instead of the expression being stripped (the scanner is then unused)
+    public Rule(String regex, boolean insensitive, boolean matchOnlyStart,
+            boolean deletesRow, RuleScanner scanner)
+    {
+        this.regex = regex;
+        this.insensitive = insensitive;
+        this.matchOnlyStart = matchOnlyStart;
+        this.deletesRow = deletesRow;
+        this.scanner = deletesRow ? null : scanner;
+
+        if (insensitive)
+            pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+        else
+            pattern = Pattern.compile(regex);
+    }
+
+    //  Returns the idea with this rule applied, or null if the rule does not
+    //  match and the idea is left unchanged
+    public String apply(String idea)
+    {
+        if (scanner == null)
+            return applyPattern(idea);
+        return scanner.scan(idea, new StringBuilder(idea.length()));
+    }
+
+    //  Same, using the caller's buffer for the scanner's work. Callers that
+    //  apply rules to many ideas keep one buffer (per thread) for all of
+    //  them.
+    public String apply(String idea, StringBuilder buffer)
+    {
+        if (scanner == null)
+            return applyPattern(idea);
+        return scanner.scan(idea, buffer);
+    }
+
+    //  Applies the regular expression itself, even if there is a scanner
+    public String applyPattern(String idea)
+    {
+        String simplifiedIdea = null;
+        int newStartIndex = 0;
+
+        Matcher myMatcher = pattern.matcher(idea);
+        while (myMatcher.find())
+        {
+            if (!matchOnlyStart)
+            {
+                simplifiedIdea = myMatcher.replaceAll("").trim();
+            }
+            else if (myMatcher.start() == newStartIndex)
+            {
+                newStartIndex = myMatcher.end();
+                simplifiedIdea = myMatcher.replaceFirst("").trim();
+            }
+        }
+
+        return simplifiedIdea;
+    }
+
+    //  Does the expression match the idea (at the beginning, if the rule
+    //  only matches there)?
+    public boolean matches(String idea)
+    {
+        Matcher myMatcher = pattern.matcher(idea);
+        return matchOnlyStart ? myMatcher.lookingAt() : myMatcher.find();
+    }
+
+    public String regex()
+    {
+        return regex;
+    }
+
+    public boolean isInsensitive()
+    {
+        return insensitive;
+    }
+
+    public boolean matchesOnlyStart()
+    {
+        return matchOnlyStart;
+    }
+
+    public boolean deletesRow()
+    {
+        return deletesRow;
+    }
+
+    //  Is the rule applied with a scanner rather than its pattern?
+    public boolean isScanned()
+    {
+        return scanner != null;
+    }
+
+    public String toString()
+    {
+        return regex;
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*************************************************************************
+ *  Compilation:  javac RuleFile.java
+ *  Dependencies: Rule.java, RulePass.java, RuleScanners.java
+ *
+ *  Reads the cleanup rules from a file, so they can be changed without
+ *  recompiling. Blank lines and lines starting with # are ignored.
+ *
+ *  "pass <name>" starts a pass over all the ideas; after each pass, ideas
+ *  that have become the same are merged. A pass named "useless" is only
+ *  run when Deduplicater's third argument is 1. Each rule in a pass is a
+ *  line
+ *
+ *    <action> <where> <case> <pattern>
+ *
+ *  where action is "strip" (remove what the pattern matches from the
+ *  idea) or "delete" (delete the row if the pattern matches), where is
+ *  "start" (only match at the beginning) or "anywhere", case is "case" or
+ *  "nocase", and the pattern, a java.util.regex pattern, is the rest of
+ *  the line. Spaces around the pattern are ignored, so write a space at
+ *  either end of it as [ ]. The rules of a pass are applied in the order
+ *  they are listed, each to what the ones before it left of the idea.
+ *
+ *  default.rules gives the same rules as Deduplicater's built-in ones.
+ *
+ *************************************************************************/
+
+public class RuleFile {
+
+    private RuleFile() { }
+
+    public static RulePass[] read(String fileName) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        try
+        {
+            return read(reader, fileName);
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    //  Throws IllegalArgumentException, naming the line, if the rules
+    //  aren't written correctly
+    public static RulePass[] read(BufferedReader reader, String fileName)
+        throws IOException
+    {
+        List<RulePass> passes = new ArrayList<RulePass>();
+        String passName = null;
+        List<Rule> rules = new ArrayList<Rule>();
+
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null)
+        {
+            lineNumber++;
+            String trimmed = line.trim();
+            if (trimmed.length() == 0 || trimmed.startsWith("#"))
+                continue;
+
+            String[] words = trimmed.split(" +", 4);
+            if (words[0].equals("pass"))
+            {
+                if (passName != null)
+                    passes.add(new RulePass(passName,
+                                rules.toArray(new Rule[rules.size()])));
+                passName = words.length > 1 ? words[1] : "pass " + lineNumber;
+                rules.clear();
+                continue;
+            }
+
+            String at = fileName + ":" + lineNumber + ": ";
+            if (passName == null)
+                throw new IllegalArgumentException(at
+                        + "rule before the first pass");
+            if (words.length < 4)
+                throw new IllegalArgumentException(at
+                        + "expected <action> <where> <case> <pattern>");
+
+            boolean deletesRow = choose(words[0], "delete", "strip", at);
+            boolean matchOnlyStart = choose(words[1], "start", "anywhere",
+                    at);
+            boolean insensitive = choose(words[2], "nocase", "case", at);
+            String regex = words[3];
+
+            RuleScanner scanner = deletesRow ? null
+                : RuleScanners.forPattern(regex, insensitive, matchOnlyStart);
+            try
+            {
+                rules.add(new Rule(regex, insensitive, matchOnlyStart,
+                            deletesRow, scanner));
+            }
+            catch (RuntimeException e)
+            {
+                throw new IllegalArgumentException(at + e.getMessage());
+            }
+        }
+
+        if (passName != null)
+            passes.add(new RulePass(passName,
+                        rules.toArray(new Rule[rules.size()])));
+        return passes.toArray(new RulePass[passes.size()]);
+    }
+
+    //  true if word is yes, false if it's no
+    private static boolean choose(String word, String yes, String no,
+            String at)
+    {
+        if (word.equals(yes))
+            return true;
+        if (word.equals(no))
+            return false;
+        throw new IllegalArgumentException(at + "expected " + yes + " or "
+                + no + ", not " + word);
+    }
+}
@@ -0,0 +1,151 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*************************************************************************
+ *  Compilation:  javac RulePass.java
+ *  Dependencies: Rule.java
+ *
+ *  One pass of cleanup rules over all the ideas. Deduplicater applies the
+ *  pass to every idea and then merges the ideas that have become the same.
+ *
+ *  Rules in the pass are applied in the order they are listed, each to
+ *  what the ones before it left. Consecutive rules that do the same kind
+ *  of thing (strip or delete, at the beginning or anywhere, with or
+ *  without case) are also compiled into a single pattern r1|r2|..., so
+ *  adding rules to a pass doesn't add a scan of every idea per rule. For
+ *  delete rules that pattern is all that's needed; for strip rules it
+ *  only decides whether any of them matches, and if one does they are
+ *  applied one by one, since stripping one can uncover a match for the
+ *  next ("xaby" with ab and then xy stripped is empty, but one scan for
+ *  ab|xy would leave "xy"). Most ideas match none of the rules and are
+ *  scanned once. A rule that has a scanner is kept on its own so that
+ *  the scanner is still used.
+ *
+ *************************************************************************/
+
+public class RulePass {
+
+    //  What apply() returns for an idea whose row should be deleted.
+    //  Compare with ==.
+    public static final String DELETED = new String("<deleted>");
+
+    private final String name;
+    private final Rule[] rules;
+
+    //  For each of the rules that stands for a run of strip rules, the
+    //  rules of the run, applied in order if the combined rule matches;
+    //  null for the others
+    private final Rule[][] runs;
+
+    public RulePass(String name, Rule... rules)
+    {
+        this.name = name;
+        List<Rule> combined = new ArrayList<Rule>();
+        List<Rule[]> runs = new ArrayList<Rule[]>();
+        combine(rules, combined, runs);
+        this.rules = combined.toArray(new Rule[combined.size()]);
+        this.runs = runs.toArray(new Rule[runs.size()][]);
+    }
+
+    //  Combines each run of consecutive compatible rules, keeping their
+    //  order with the rules around them
+    private static void combine(Rule[] rules, List<Rule> combined,
+            List<Rule[]> runs)
+    {
+        int i = 0;
+        while (i < rules.length)
+        {
+            int end = i + 1;
+            if (!rules[i].isScanned())
+                while (end < rules.length && !rules[end].isScanned()
+                        && compatible(rules[i], rules[end]))
+                    end++;
+
+            if (end - i == 1)
+            {
+                combined.add(rules[i]);
+                runs.add(null);
+            }
+            else
+            {
+                StringBuilder regex = new StringBuilder();
+                for (int j = i; j < end; j++)
+                {
+                    if (j > i)
+                        regex.append('|');
+                    regex.append("(?:").append(rules[j].regex()).append(')');
+                }
+                combined.add(new Rule(regex.toString(),
+                            rules[i].isInsensitive(),
+                            rules[i].matchesOnlyStart(),
+                            rules[i].deletesRow(), null));
+                runs.add(rules[i].deletesRow() ? null
+                        : Arrays.copyOfRange(rules, i, end));
+            }
+            i = end;
+        }
+    }
+
+    private static boolean compatible(Rule a, Rule b)
+    {
+        return a.isInsensitive() == b.isInsensitive()
+            && a.matchesOnlyStart() == b.matchesOnlyStart()
+            && a.deletesRow() == b.deletesRow();
+    }
+
+    //  Returns the idea with the pass applied, null if the pass leaves it
+    //  unchanged, or DELETED if a rule deletes its row
+    public String apply(String idea, StringBuilder buffer)
+    {
+        String simplifiedIdea = null;
+        for (int i = 0; i < rules.length; i++)
+        {
+            Rule rule = rules[i];
+            String current = simplifiedIdea == null ? idea : simplifiedIdea;
+            if (rule.deletesRow())
+            {
+                if (rule.matches(current))
+                    return DELETED;
+            }
+            else if (runs[i] == null)
+            {
+                String result = rule.apply(current, buffer);
+                if (result != null)
+                    simplifiedIdea = result;
+            }
+            else if (rule.matches(current))
+            {
+                for (Rule member : runs[i])
+                {
+                    current = simplifiedIdea == null ? idea : simplifiedIdea;
+                    String result = member.apply(current, buffer);
+                    if (result != null)
+                        simplifiedIdea = result;
+                }
+            }
+        }
+        return simplifiedIdea;
+    }
+
+    public String name()
+    {
+        return name;
+    }
+
+    //  Number of rules after combining
+    public int size()
+    {
+        return rules.length;
+    }
+
+    public Rule rule(int i)
+    {
+        return rules[i];
+    }
+
+    public String toString()
+    {
+        return name;
+    }
+}
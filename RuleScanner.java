@@ -0,0 +1,17 @@
+/*************************************************************************
+ *  Compilation:  javac RuleScanner.java
+ *  Dependencies: none
+ *
+ *  Applies a cleanup rule by scanning the idea once, character by
+ *  character, instead of running a regular expression over it. A scanner
+ *  must give exactly the result Rule's regular expression would.
+ *
+ *************************************************************************/
+
+public interface RuleScanner {
+
+    //  Returns the idea with the rule applied, or null if the rule does not
+    //  match and the idea is left unchanged. The buffer belongs to the
+    //  caller and may be overwritten; a String is only made for a result.
+    public String scan(String idea, StringBuilder buffer);
+}
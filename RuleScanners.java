@@ -0,0 +1,295 @@
+/*************************************************************************
+ *  Compilation:  javac RuleScanners.java
+ *  Dependencies: RuleScanner.java
+ *
+ *  Hand-written scanners for Deduplicater's built-in rules. Each one makes
+ *  a single pass over the idea, copying the text it keeps into the
+ *  caller's buffer, and returns null without making a String when the
+ *  rule doesn't match.
+ *
+ *  They follow the regular expressions exactly, including the parts that
+ *  are easy to get wrong: [^ ] and the other negated classes match any
+ *  character but a space (tabs and line breaks too), "." stops at \n, \r,
+ *  \u0085, \u2028 and \u2029, case-insensitive matching only folds ASCII
+ *  letters (the patterns are compiled without UNICODE_CASE), and the
+ *  result is trimmed the way String.trim() trims.
+ *
+ *************************************************************************/
+
+public class RuleScanners {
+
+    private RuleScanners() { }
+
+    //  #[^ ]* anywhere
+    public static final RuleScanner HASHTAG = new RuleScanner() {
+        public String scan(String idea, StringBuilder buffer)
+        {
+            int hash = idea.indexOf('#');
+            if (hash < 0)
+                return null;
+
+            buffer.setLength(0);
+            int start = 0;
+            while (hash >= 0)
+            {
+                buffer.append(idea, start, hash);
+                start = idea.indexOf(' ', hash);
+                if (start < 0)
+                    return trim(buffer, 0, buffer.length());
+                hash = idea.indexOf('#', start);
+            }
+            buffer.append(idea, start, idea.length());
+            return trim(buffer, 0, buffer.length());
+        }
+    };
+
+    //  [ ]*@[^ ]* anywhere: an @ and the rest of its word, along with the
+    //  spaces in front of it
+    public static final RuleScanner AT_TEXT = new RuleScanner() {
+        public String scan(String idea, StringBuilder buffer)
+        {
+            int at = idea.indexOf('@');
+            if (at < 0)
+                return null;
+
+            buffer.setLength(0);
+            int start = 0;
+            while (at >= 0)
+            {
+                int from = at;
+                while (from > start && idea.charAt(from - 1) == ' ')
+                    from--;
+                buffer.append(idea, start, from);
+                start = idea.indexOf(' ', at);
+                if (start < 0)
+                    return trim(buffer, 0, buffer.length());
+                at = idea.indexOf('@', start);
+            }
+            buffer.append(idea, start, idea.length());
+            return trim(buffer, 0, buffer.length());
+        }
+    };
+
+    //  @whitehouse anywhere, ignoring case
+    public static final RuleScanner WHITEHOUSE = new RuleScanner() {
+        private static final String WORD = "@whitehouse";
+
+        public String scan(String idea, StringBuilder buffer)
+        {
+            int match = indexOfIgnoreCase(idea, WORD, 0, idea.length());
+            if (match < 0)
+                return null;
+
+            buffer.setLength(0);
+            int start = 0;
+            while (match >= 0)
+            {
+                buffer.append(idea, start, match);
+                start = match + WORD.length();
+                match = indexOfIgnoreCase(idea, WORD, start, idea.length());
+            }
+            buffer.append(idea, start, idea.length());
+            return trim(buffer, 0, buffer.length());
+        }
+    };
+
+    //  RT:*([ ]*@[^ ]*)+ at the beginning: RT, any colons, then one or more
+    //  @words, each after any number of spaces
+    public static final RuleScanner RT = new RuleScanner() {
+        public String scan(String idea, StringBuilder buffer)
+        {
+            if (!idea.startsWith("RT"))
+                return null;
+
+            int n = idea.length();
+            int i = 2;
+            while (i < n && idea.charAt(i) == ':')
+                i++;
+
+            int end = -1;
+            while (true)
+            {
+                int j = i;
+                while (j < n && idea.charAt(j) == ' ')
+                    j++;
+                if (j == n || idea.charAt(j) != '@')
+                    break;
+                j = idea.indexOf(' ', j);
+                end = i = j < 0 ? n : j;
+            }
+            return end < 0 ? null : trim(idea, end, n);
+        }
+    };
+
+    //  RT[^ ]+[ ] at the beginning: RT, then the rest of the word and the
+    //  space after it
+    public static final RuleScanner RT_TEXT = new RuleScanner() {
+        public String scan(String idea, StringBuilder buffer)
+        {
+            if (!idea.startsWith("RT") || idea.length() == 2
+                    || idea.charAt(2) == ' ')
+                return null;
+
+            int space = idea.indexOf(' ', 3);
+            return space < 0 ? null : trim(idea, space + 1, idea.length());
+        }
+    };
+
+    //  RT[ ]+ at the beginning
+    public static final RuleScanner RT_SPACES = new RuleScanner() {
+        public String scan(String idea, StringBuilder buffer)
+        {
+            if (!idea.startsWith("RT "))
+                return null;
+
+            int end = 3;
+            while (end < idea.length() && idea.charAt(end) == ' ')
+                end++;
+            return trim(idea, end, idea.length());
+        }
+    };
+
+    //  [^0-9a-z]+ at the beginning, ignoring case: everything before the
+    //  first ASCII letter or digit
+    public static final RuleScanner INITIAL_NON_ALPHANUMERIC =
+        new RuleScanner() {
+        public String scan(String idea, StringBuilder buffer)
+        {
+            int n = idea.length();
+            int end = 0;
+            while (end < n && !isAsciiLetterOrDigit(idea.charAt(end)))
+                end++;
+            return end == 0 ? null : trim(idea, end, n);
+        }
+    };
+
+    //  .*is looking for Grand Challenges in sci.* tech.* anywhere, ignoring
+    //  case: since "." stops at line breaks, this removes every line that
+    //  has the phrase with " tech" somewhere after it
+    public static final RuleScanner USELESS = new RuleScanner() {
+        private static final String PHRASE =
+            "is looking for grand challenges in sci";
+        private static final String TECH = " tech";
+
+        public String scan(String idea, StringBuilder buffer)
+        {
+            int n = idea.length();
+            if (indexOfIgnoreCase(idea, PHRASE, 0, n) < 0)
+                return null;
+
+            buffer.setLength(0);
+            boolean changed = false;
+            int lineStart = 0;
+            while (lineStart <= n)
+            {
+                int lineEnd = lineStart;
+                while (lineEnd < n && !isLineTerminator(idea.charAt(lineEnd)))
+                    lineEnd++;
+
+                int phrase = indexOfIgnoreCase(idea, PHRASE, lineStart,
+                        lineEnd);
+                if (phrase >= 0 && indexOfIgnoreCase(idea, TECH,
+                            phrase + PHRASE.length(), lineEnd) >= 0)
+                    changed = true;
+                else
+                    buffer.append(idea, lineStart, lineEnd);
+
+                if (lineEnd < n)
+                    buffer.append(idea.charAt(lineEnd));
+                lineStart = lineEnd + 1;
+            }
+            return changed ? trim(buffer, 0, buffer.length()) : null;
+        }
+    };
+
+    //  The scanner for a built-in rule's pattern, or null if the pattern and
+    //  flags aren't exactly those of one of the built-in rules. Lets rules
+    //  read from a rule file use the scanners too.
+    public static RuleScanner forPattern(String regex, boolean insensitive,
+            boolean matchOnlyStart)
+    {
+        for (BuiltIn builtIn : BUILT_IN)
+            if (builtIn.regex.equals(regex)
+                    && builtIn.insensitive == insensitive
+                    && builtIn.matchOnlyStart == matchOnlyStart)
+                return builtIn.scanner;
+        return null;
+    }
+
+    private static class BuiltIn
+    {
+        final String regex;
+        final boolean insensitive, matchOnlyStart;
+        final RuleScanner scanner;
+
+        BuiltIn(String regex, boolean insensitive, boolean matchOnlyStart,
+                RuleScanner scanner)
+        {
+            this.regex = regex;
+            this.insensitive = insensitive;
+            this.matchOnlyStart = matchOnlyStart;
+            this.scanner = scanner;
+        }
+    }
+
+    private static final BuiltIn[] BUILT_IN = {
+        new BuiltIn("RT:*([ ]*@[^ ]*)+", false, true, RT),
+        new BuiltIn("RT[^ ]+[ ]", false, true, RT_TEXT),
+        new BuiltIn("RT[ ]+", false, true, RT_SPACES),
+        new BuiltIn("[ ]*@[^ ]*", true, false, AT_TEXT),
+        new BuiltIn("@whitehouse", true, false, WHITEHOUSE),
+        new BuiltIn("#[^ ]*", true, false, HASHTAG),
+        new BuiltIn("[^0-9a-z]+", true, true, INITIAL_NON_ALPHANUMERIC),
+        new BuiltIn(".*is looking for Grand Challenges in sci.* tech.*",
+                true, false, USELESS),
+    };
+
+    //  Characters from to to - 1 of the text, trimmed as String.trim()
+    //  would, as a new String
+    private static String trim(CharSequence text, int from, int to)
+    {
+        while (from < to && text.charAt(from) <= ' ')
+            from++;
+        while (to > from && text.charAt(to - 1) <= ' ')
+            to--;
+        return text.subSequence(from, to).toString();
+    }
+
+    //  Index of the first occurrence of word (all lower case) in text
+    //  between from and to, ignoring the case of ASCII letters, or -1
+    static int indexOfIgnoreCase(String text, String word, int from, int to)
+    {
+        char first = word.charAt(0);
+        int last = to - word.length();
+        for (int i = from; i <= last; i++)
+        {
+            if (toLowerAscii(text.charAt(i)) != first)
+                continue;
+            int j = 1;
+            while (j < word.length()
+                    && toLowerAscii(text.charAt(i + j)) == word.charAt(j))
+                j++;
+            if (j == word.length())
+                return i;
+        }
+        return -1;
+    }
+
+    private static char toLowerAscii(char c)
+    {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static boolean isAsciiLetterOrDigit(char c)
+    {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z')
+            || (c >= 'A' && c <= 'Z');
+    }
+
+    //  The characters "." doesn't match
+    private static boolean isLineTerminator(char c)
+    {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028'
+            || c == '\u2029';
+    }
+}
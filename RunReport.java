@@ -0,0 +1,292 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*************************************************************************
+ *  Compilation:  javac RunReport.java
+ *  Dependencies: RunReportMBean.java
+ *
+ *  What each phase of a Deduplicater run did: reading the input, each
+ *  pass of the rules, the other remove methods, and writing the output.
+ *  For each phase it records the wall time, the ideas looked at, the ones
+ *  changed, the ones deleted as duplicates of another idea, the rows a
+ *  rule deleted outright, the bytes allocated by the running thread, and
+ *  the number of ideas left afterwards.
+ *
+ *  The phases can be watched while the run goes on through JMX (see
+ *  register()), each phase is a "Deduplicater.Phase" JFR event lasting
+ *  as long as the phase when a flight recording is running, and toJson()
+ *  gives the whole report for writing at the end of the run.
+ *
+ *************************************************************************/
+
+public class RunReport implements RunReportMBean {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        threads();
+
+    private final List<Phase> phases = new ArrayList<Phase>();
+    private Phase current;
+    private int size = 0;
+
+    //  One phase of the run
+    public static class Phase
+    {
+        public final String name;
+        public long nanos;
+        public long scanned, modified, collapsed, deleted;
+        public long allocatedBytes = -1;
+        public int sizeAfter;
+
+        private final long start = System.nanoTime();
+        private final long allocatedAtStart = allocated();
+
+        //  Begun with the phase, so that its duration is the phase's
+        private final PhaseEvent event = new PhaseEvent();
+
+        Phase(String name)
+        {
+            this.name = name;
+            event.begin();
+        }
+    }
+
+    @Name("Deduplicater.Phase")
+    @Label("Deduplicater Phase")
+    @Category("Deduplicater")
+    @Description("One phase of a Deduplicater run")
+    static class PhaseEvent extends Event
+    {
+        @Label("Phase")
+        String name;
+
+        @Label("Ideas Scanned")
+        long scanned;
+
+        @Label("Ideas Modified")
+        long modified;
+
+        @Label("Ideas Collapsed As Duplicates")
+        long collapsed;
+
+        @Label("Rows Deleted By A Rule")
+        long deleted;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+
+        @Label("Ideas Left")
+        int size;
+    }
+
+    //  Starts a phase; the counts below go to it until end()
+    public void begin(String name)
+    {
+        current = new Phase(name);
+    }
+
+    public void scanned(long count)
+    {
+        if (current != null)
+            current.scanned += count;
+    }
+
+    public void modified()
+    {
+        if (current != null)
+            current.modified++;
+    }
+
+    public void collapsed()
+    {
+        if (current != null)
+            current.collapsed++;
+    }
+
+    public void collapsed(long count)
+    {
+        if (current != null)
+            current.collapsed += count;
+    }
+
+    public void deleted()
+    {
+        if (current != null)
+            current.deleted++;
+    }
+
+    //  Ends the current phase, with the given number of ideas left
+    public void end(int sizeAfter)
+    {
+        Phase phase = current;
+        current = null;
+        phase.nanos = System.nanoTime() - phase.start;
+        if (phase.allocatedAtStart >= 0)
+            phase.allocatedBytes = allocated() - phase.allocatedAtStart;
+        phase.sizeAfter = sizeAfter;
+        size = sizeAfter;
+        synchronized (phases)
+        {
+            phases.add(phase);
+        }
+
+        PhaseEvent event = phase.event;
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.name = phase.name;
+            event.scanned = phase.scanned;
+            event.modified = phase.modified;
+            event.collapsed = phase.collapsed;
+            event.deleted = phase.deleted;
+            event.allocated = phase.allocatedBytes;
+            event.size = sizeAfter;
+            event.commit();
+        }
+    }
+
+    public List<Phase> phases()
+    {
+        synchronized (phases)
+        {
+            return new ArrayList<Phase>(phases);
+        }
+    }
+
+    //  Registers the report as the MBean Deduplicater:type=RunReport,
+    //  replacing any earlier one
+    public void register()
+    {
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("Deduplicater:type=RunReport");
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        }
+        catch (JMException e)
+        {
+            System.err.println("Can't register the run report: " + e);
+        }
+    }
+
+    //  For JMX
+
+    public String getCurrentPhase()
+    {
+        Phase phase = current;
+        return phase == null ? "" : phase.name;
+    }
+
+    public int getPhaseCount()
+    {
+        synchronized (phases)
+        {
+            return phases.size();
+        }
+    }
+
+    public int getSize()
+    {
+        return size;
+    }
+
+    public long getElapsedMillis()
+    {
+        long nanos = 0;
+        for (Phase phase : phases())
+            nanos += phase.nanos;
+        return nanos / 1000000;
+    }
+
+    public String getReport()
+    {
+        return toJson();
+    }
+
+    //  The whole report as a JSON object
+    public String toJson()
+    {
+        List<Phase> finished = phases();
+        StringBuilder json = new StringBuilder();
+        long nanos = 0;
+        json.append("{\n  \"phases\": [");
+        for (int i = 0; i < finished.size(); i++)
+        {
+            Phase phase = finished.get(i);
+            nanos += phase.nanos;
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\"name\": ").append(quote(phase.name))
+                .append(", \"millis\": ")
+                .append(String.format(Locale.ROOT, "%.3f", phase.nanos / 1e6))
+                .append(", \"scanned\": ").append(phase.scanned)
+                .append(", \"modified\": ").append(phase.modified)
+                .append(", \"collapsed\": ").append(phase.collapsed)
+                .append(", \"deleted\": ").append(phase.deleted)
+                .append(", \"allocatedBytes\": ").append(phase.allocatedBytes)
+                .append(", \"size\": ").append(phase.sizeAfter).append('}');
+        }
+        json.append("\n  ],\n  \"sizes\": [");
+        for (int i = 0; i < finished.size(); i++)
+            json.append(i == 0 ? "" : ", ").append(finished.get(i).sizeAfter);
+        json.append("],\n  \"totalMillis\": ")
+            .append(String.format(Locale.ROOT, "%.3f", nanos / 1e6))
+            .append("\n}\n");
+        return json.toString();
+    }
+
+    public void write(String reportFile) throws IOException
+    {
+        Writer writer = new FileWriter(reportFile);
+        writer.write(toJson());
+        writer.close();
+    }
+
+    private static String quote(String s)
+    {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                quoted.append('\\').append(c);
+            else if (c < 0x20)
+                quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            else
+                quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    //  Bytes allocated by this thread so far, or -1 if the JVM can't say
+    private static long allocated()
+    {
+        if (THREADS == null)
+            return -1;
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean threads()
+    {
+        Object threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return (com.sun.management.ThreadMXBean) threads;
+        return null;
+    }
+}
@@ -0,0 +1,25 @@
+/*************************************************************************
+ *  Compilation:  javac RunReportMBean.java
+ *  Dependencies: none
+ *
+ *  What a RunReport shows through JMX while a run goes on.
+ *
+ *************************************************************************/
+
+public interface RunReportMBean {
+
+    //  Name of the phase running now, or "" between phases
+    public String getCurrentPhase();
+
+    //  Number of phases finished
+    public int getPhaseCount();
+
+    //  Number of ideas left after the last finished phase
+    public int getSize();
+
+    //  Wall time of the finished phases
+    public long getElapsedMillis();
+
+    //  The report so far, as JSON
+    public String getReport();
+}
@@ -1,10 +1,32 @@
 import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
 
 import org.junit.*;
 import static org.junit.Assert.*;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 /*************************************************************************
  *  Brian Tubergen
@@ -213,4 +235,1440 @@ public class TestDeduplicater {
         for (String idea : d.getIdeas())
              assertTrue(correctIdeas.contains(idea));
     }
-}
\ No newline at end of file
+
+    /* Ensure that running the rule chain once per idea while reading the
+     * input (fused mode) keeps exactly the same ids and ideas as applying
+     * each rule in a separate pass.
+     */
+    @Test
+    public void test_fused()
+    {
+        System.out.println("Testing fused rule chain...");
+
+        String[] inputFiles = { "test_csvfiles/test_msalganik.csv",
+            "test_csvfiles/test_rt.csv", "Grand-Challenges-responses.csv" };
+        for (String inputFile : inputFiles)
+        {
+            for (int useless = 0; useless < 2; useless++)
+            {
+                Deduplicater passes = new Deduplicater(inputFile);
+                passes.applyAllRemoves(useless == 1);
+
+                DedupOptions options = new DedupOptions();
+                options.fused = true;
+                options.uselessOn = useless == 1;
+                Deduplicater fused = new Deduplicater(inputFile, options);
+                fused.applyAllRemoves(useless == 1);
+
+                assertEquals(passes.size(), fused.size());
+                for (Integer id : passes.getIds())
+                    assertEquals(passes.getIdea(id), fused.getIdea(id));
+            }
+        }
+    }
+
+    /* Ensure that the hash symbol table behind the idea index agrees with
+     * the ordered symbol table through many puts and deletes, including
+     * ones that make it grow and shrink.
+     */
+    @Test
+    public void test_hash_st()
+    {
+        System.out.println("Testing hash symbol table...");
+
+        ST<String, Integer> st = new ST<String, Integer>();
+        LinearProbingHashST<String, Integer> hashST =
+            new LinearProbingHashST<String, Integer>();
+        Random random = new Random(17);
+        for (int i = 0; i < 20000; i++)
+        {
+            String key = "idea " + random.nextInt(2000);
+            if (random.nextInt(3) == 0)
+                assertEquals(st.delete(key), hashST.delete(key));
+            else
+            {
+                st.put(key, i);
+                hashST.put(key, i);
+            }
+            assertEquals(st.size(), hashST.size());
+        }
+
+        for (String key : st.keys())
+            assertEquals(st.get(key), hashST.get(key));
+        for (String key : hashST.keys())
+            assertTrue(st.contains(key));
+    }
+
+    /* Ensure that keying the idea index by fingerprints keeps exactly the
+     * same ids and ideas as keying it by the ideas themselves, and that
+     * ideas whose fingerprints collide are kept apart.
+     */
+    @Test
+    public void test_fingerprint()
+    {
+        System.out.println("Testing fingerprint index...");
+
+        String[] inputFiles = { "test_csvfiles/test_msalganik.csv",
+            "test_csvfiles/test_newlines.csv",
+            "Grand-Challenges-responses.csv" };
+        for (String inputFile : inputFiles)
+        {
+            Deduplicater plain = new Deduplicater(inputFile);
+            plain.applyAllRemoves(true);
+
+            DedupOptions options = new DedupOptions();
+            options.fingerprint = true;
+            Deduplicater fingerprinted = new Deduplicater(inputFile, options);
+            fingerprinted.applyAllRemoves(true);
+
+            assertEquals(plain.size(), fingerprinted.size());
+            for (Integer id : plain.getIds())
+                assertEquals(plain.getIdea(id), fingerprinted.getIdea(id));
+        }
+
+        //  Ideas whose fingerprints collide are still told apart
+        RecordStore store = new RecordStore(8);
+        FingerprintIdeaIndex index = new FingerprintIdeaIndex(8, store) {
+            long fingerprint(String idea)
+            {
+                return idea.startsWith("cure") ? 42 : Fingerprint.of(idea);
+            }
+        };
+        String[] ideas = { "cure cancer", "cure hunger", "go to mars",
+            "cure malaria" };
+        for (int id = 0; id < ideas.length; id++)
+        {
+            assertFalse(index.contains(ideas[id]));
+            store.add(id, "twitter", "user" + id, ideas[id]);
+            index.put(ideas[id], id);
+        }
+        assertEquals(4, index.size());
+        for (int id = 0; id < ideas.length; id++)
+            assertEquals(id, index.get(ideas[id]));
+        assertEquals(-1, index.get("cure everything"));
+
+        //  Deleting the idea that holds the fingerprint, or one in the
+        //  overflow table, leaves the others where they are
+        index.delete("cure cancer");
+        index.delete("cure malaria");
+        assertEquals(2, index.size());
+        assertEquals(-1, index.get("cure cancer"));
+        assertEquals(-1, index.get("cure malaria"));
+        assertEquals(1, index.get("cure hunger"));
+        assertEquals(2, index.get("go to mars"));
+    }
+
+    /* Ensure that ideas differing only by punctuation, a word or a URL are
+     * removed as near duplicates of the first such idea, and that distinct
+     * ideas are kept.
+     */
+    @Test
+    public void test_near_duplicates()
+    {
+        System.out.println("Testing near duplicates...");
+
+        Deduplicater d = new Deduplicater("test_csvfiles/test_neardup.csv");
+        d.applyAllRemoves(false);
+        assertEquals(8, d.size());
+
+        d.removeNearDuplicates(0.8);
+        assertEquals(4, d.size());
+        assertNotNull(d.getIdea(0));
+        assertNotNull(d.getIdea(4));
+        assertNotNull(d.getIdea(6));
+        assertNotNull(d.getIdea(7));
+    }
+
+    /* Ensure that ideas wrapping another whole idea are removed, that the
+     * wrapped idea is kept even when it comes later, and that short ideas
+     * or partial words don't count.
+     */
+    @Test
+    public void test_containing_ideas()
+    {
+        System.out.println("Testing containing ideas...");
+
+        Deduplicater d = new Deduplicater("test_csvfiles/test_contains.csv");
+        d.applyAllRemoves(false);
+        assertEquals(7, d.size());
+
+        d.removeContainingIdeas(20);
+        assertEquals(5, d.size());
+        assertNull(d.getIdea(0));
+        assertNull(d.getIdea(3));
+        assertEquals("Cure cancer within the next twenty years", d.getIdea(1));
+        assertNotNull(d.getIdea(4));
+        assertNotNull(d.getIdea(6));
+    }
+
+    /* Ensure that reading with several threads, in chunks smaller than the
+     * file, keeps exactly the same ids and ideas as reading with one.
+     */
+    @Test
+    public void test_parallel()
+    {
+        System.out.println("Testing parallel reading...");
+
+        String[] inputFiles = { "test_csvfiles/test_msalganik.csv",
+            "test_csvfiles/test_uniq.csv", "Grand-Challenges-responses.csv" };
+        for (String inputFile : inputFiles)
+        {
+            for (int fused = 0; fused < 2; fused++)
+            {
+                Deduplicater sequential = new Deduplicater(inputFile);
+                sequential.applyAllRemoves(true);
+
+                DedupOptions options = new DedupOptions();
+                options.threads = 4;
+                options.chunkRows = 100;
+                options.fused = fused == 1;
+                options.uselessOn = true;
+                Deduplicater parallel = new Deduplicater(inputFile, options);
+                parallel.applyAllRemoves(true);
+
+                assertEquals(sequential.size(), parallel.size());
+                for (Integer id : sequential.getIds())
+                    assertEquals(sequential.getIdea(id), parallel.getIdea(id));
+            }
+        }
+    }
+
+    /* Test that the memory-mapped reader gives the same rows and fields as
+     * opencsv, for the test files and for random files made of the
+     * characters a CSV parser treats specially.
+     */
+    @Test
+    public void test_mapped_reader() throws IOException
+    {
+        System.out.println("Testing memory-mapped reader...");
+
+        String[] inputFiles = { "test_csvfiles/test_commas.csv",
+            "test_csvfiles/test_newlines.csv",
+            "test_csvfiles/test_msalganik.csv",
+            "Grand-Challenges-responses.csv" };
+        for (String inputFile : inputFiles)
+            assertSameRows(inputFile);
+
+        //  Random files made of the characters the parser treats specially
+        Random random = new Random(8);
+        String alphabet = "ab,\"\\\r\n ";
+        File file = File.createTempFile("mapped", ".csv");
+        file.deleteOnExit();
+        for (int trial = 0; trial < 500; trial++)
+        {
+            StringBuilder text = new StringBuilder();
+            int length = random.nextInt(40);
+            for (int i = 0; i < length; i++)
+                text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            FileWriter writer = new FileWriter(file);
+            writer.write(text.toString());
+            writer.close();
+            assertSameRows(file.getPath());
+        }
+    }
+
+    //  Asserts that MappedCSVReader and opencsv read the same rows
+    private static void assertSameRows(String inputFile) throws IOException
+    {
+        CSVReader expected = new CSVReader(new FileReader(inputFile));
+        MappedCSVReader actual = new MappedCSVReader(inputFile);
+        String[] line;
+        while ((line = expected.readNext()) != null)
+        {
+            assertTrue(actual.next());
+            assertEquals(line.length, actual.fields());
+            for (int i = 0; i < line.length; i++)
+                assertEquals(line[i], actual.field(i));
+        }
+        assertFalse(actual.next());
+        expected.close();
+        actual.close();
+    }
+
+    /* Ensure that each built-in rule's scanner gives exactly what its
+     * regular expression gives, on ideas put together at random from the
+     * pieces the patterns treat specially (RT's, mentions, hash tags, case
+     * and white space outside ASCII).
+     */
+    @Test
+    public void test_scanners()
+    {
+        System.out.println("Testing rule scanners...");
+
+        //  Pieces that the patterns treat specially, put together at random
+        String[] pieces = { " ", "  ", "@", "#", "R", "T", "RT", ":", "a",
+            "Z", "0", "!", "\t", "\n", "\r", "\u0085", "\u2028", "\u2029",
+            "\u212a", "\u0130", "\u00e9", "\ud83d\ude00", "x@y", "whitehouse",
+            "@WhiteHouse", "is looking for Grand Challenges in sci",
+            "IS LOOKING FOR GRAND CHALLENGES IN SCI", " tech", " TECH",
+            "RT @", "RT: @" };
+        Random random = new Random(9);
+        StringBuilder buffer = new StringBuilder();
+        for (int trial = 0; trial < 100000; trial++)
+        {
+            StringBuilder idea = new StringBuilder();
+            int length = random.nextInt(12);
+            for (int i = 0; i < length; i++)
+                idea.append(pieces[random.nextInt(pieces.length)]);
+
+            for (RulePass pass : Deduplicater.builtInPasses())
+            {
+                Rule rule = pass.rule(0);
+                assertTrue(rule.isScanned());
+                assertEquals(rule.applyPattern(idea.toString()),
+                        rule.apply(idea.toString(), buffer));
+            }
+        }
+    }
+
+    /* Ensure that rules read from a file clean the ideas just as the same
+     * rules built in do, that consecutive rules of the same kind are matched
+     * as one pattern, and that a pass with its rules combined gives what
+     * applying the rules one at a time, in order, gives.
+     */
+    @Test
+    public void test_rule_file() throws IOException
+    {
+        System.out.println("Testing rule files...");
+
+        //  default.rules is the same as the built-in rules
+        String[] inputFiles = { "test_csvfiles/test_rt.csv",
+            "Grand-Challenges-responses.csv" };
+        for (String inputFile : inputFiles)
+        {
+            for (int useless = 0; useless < 2; useless++)
+            {
+                Deduplicater builtIn = new Deduplicater(inputFile);
+                builtIn.applyAllRemoves(useless == 1);
+
+                for (int fused = 0; fused < 2; fused++)
+                {
+                    DedupOptions options = new DedupOptions();
+                    options.rules = "default.rules";
+                    options.fused = fused == 1;
+                    options.uselessOn = useless == 1;
+                    Deduplicater fromFile = new Deduplicater(inputFile,
+                            options);
+                    fromFile.applyAllRemoves(useless == 1);
+
+                    assertEquals(builtIn.size(), fromFile.size());
+                    for (Integer id : builtIn.getIds())
+                        assertEquals(builtIn.getIdea(id),
+                                fromFile.getIdea(id));
+                }
+            }
+        }
+        for (RulePass pass : RuleFile.read("default.rules"))
+            assertTrue(pass.rule(0).isScanned());
+
+        RulePass[] passes = RuleFile.read("test_csvfiles/test_rules.rules");
+        assertEquals(2, passes.length);
+        assertEquals(3, passes[0].size());
+        assertEquals("(?:http://[^ ]*)|(?:www\\.[^ ]*)",
+                passes[0].rule(1).regex());
+
+        for (int fused = 0; fused < 2; fused++)
+        {
+            DedupOptions options = new DedupOptions();
+            options.rules = "test_csvfiles/test_rules.rules";
+            options.fused = fused == 1;
+            Deduplicater d = new Deduplicater("test_csvfiles/test_rules.csv",
+                    options);
+            d.applyAllRemoves(false);
+
+            //  The URLs are stripped so the second idea is a duplicate, the
+            //  third is deleted, and the last two end up the same
+            assertEquals(2, d.size());
+            assertEquals("see  now", d.getIdea(0));
+            assertEquals("other idea", d.getIdea(3));
+        }
+
+        //  Stripping ab uncovers xy for the next rule, and the case rule
+        //  between the two nocase ones must still come between them
+        Rule[] rules = {
+            new Rule("ab", false, false),
+            new Rule("xy", false, false),
+            new Rule("c", true, false),
+            new Rule("D", false, false),
+            new Rule("e", true, false),
+            new Rule("^q", false, true),
+            new Rule("^r", false, true),
+            new Rule("z", false, false, true, null),
+            new Rule("w", false, false, true, null)
+        };
+        RulePass pass = new RulePass("order", rules);
+        assertEquals(6, pass.size());
+        String[] ideas = { "xaby", "xaby q", "cDe", "CdE", "qrx", "rqx",
+            "ab z", "abw", "nothing here", "" };
+        StringBuilder buffer = new StringBuilder();
+        for (String idea : ideas)
+        {
+            String expected = idea;
+            boolean deleted = false;
+            for (Rule rule : rules)
+            {
+                if (rule.deletesRow())
+                {
+                    if (rule.matches(expected))
+                    {
+                        deleted = true;
+                        break;
+                    }
+                }
+                else if (rule.apply(expected) != null)
+                    expected = rule.apply(expected);
+            }
+
+            String result = pass.apply(idea, buffer);
+            if (deleted)
+                assertTrue(result == RulePass.DELETED);
+            else
+                assertEquals(expected, result == null ? idea : result);
+        }
+        assertEquals("", pass.apply("xaby", buffer));
+    }
+
+    /* Test that the history index remembers the ideas of earlier batches
+     * across reopening, so a batch seen before keeps none of its ideas and a
+     * new one keeps all of them with ids following on, that only one run at
+     * a time can use it, and that many small batches are merged into a few
+     * segments.
+     */
+    @Test
+    public void test_history() throws IOException
+    {
+        System.out.println("Testing history index...");
+
+        File directory = File.createTempFile("history", "");
+        directory.delete();
+
+        //  First batch: everything is new
+        HistoryIndex history = HistoryIndex.open(directory.getPath());
+
+        //  A second run can't open the index while the first has it
+        try
+        {
+            HistoryIndex.open(directory.getPath());
+            fail("history opened twice");
+        }
+        catch (IOException e)
+        {
+            //  Expected
+        }
+        Deduplicater first =
+            new Deduplicater("test_csvfiles/test_contains.csv");
+        first.applyAllRemoves(false);
+        first.removeSeenBefore(history);
+        assertEquals(7, first.size());
+        history.commit(first.rowsRead());
+        history.close();
+
+        //  The same batch again: nothing is new. A temporary file left by
+        //  a run that died is cleaned up.
+        File stale = new File(directory, "segment-9-9.idx.tmp");
+        assertTrue(stale.createNewFile());
+        history = HistoryIndex.open(directory.getPath());
+        assertFalse(stale.exists());
+        assertEquals(7, history.rows());
+        assertEquals(7, history.size());
+        assertEquals(1, history.get(first.getIdea(1)));
+        Deduplicater again =
+            new Deduplicater("test_csvfiles/test_contains.csv");
+        again.applyAllRemoves(false);
+        again.removeSeenBefore(history);
+        assertEquals(0, again.size());
+        history.commit(again.rowsRead());
+        history.close();
+
+        //  A different batch: all new, with ids following on
+        history = HistoryIndex.open(directory.getPath());
+        Deduplicater other =
+            new Deduplicater("test_csvfiles/test_msalganik.csv");
+        other.applyAllRemoves(false);
+        int expected = other.size();
+        other.removeSeenBefore(history);
+        assertEquals(expected, other.size());
+        history.commit(other.rowsRead());
+        long rows = history.rows();
+        history.close();
+
+        history = HistoryIndex.open(directory.getPath());
+        assertEquals(rows, history.rows());
+        assertEquals(7 + expected, history.size());
+        for (Integer id : other.getIds())
+            assertEquals(14 + id, history.get(other.getIdea(id)));
+
+        //  Many small batches are merged into a few segments
+        Random random = new Random(11);
+        List<String> ideas = new ArrayList<String>();
+        for (int batch = 0; batch < 100; batch++)
+        {
+            for (int i = 0; i < random.nextInt(20); i++)
+            {
+                String idea = "idea " + random.nextLong();
+                ideas.add(idea);
+                history.add(idea, history.rows() + i);
+            }
+            history.commit(20);
+        }
+        assertTrue(history.segments() < 12);
+        for (String idea : ideas)
+            assertTrue(history.contains(idea));
+        assertFalse(history.contains("idea that was never added"));
+        history.close();
+
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    /* Test that the Bloom filter never hides an idea that is in the index,
+     * answers most lookups for ideas that aren't by itself, forgets deleted
+     * ideas, and leaves the output the same.
+     */
+    @Test
+    public void test_bloom()
+    {
+        System.out.println("Testing Bloom filter index...");
+
+        //  Never misses an idea that is in the index, and answers most
+        //  lookups for ideas that aren't by itself
+        BloomIdeaIndex index = new BloomIdeaIndex(new HashIdeaIndex(1000),
+                1000);
+        for (int i = 0; i < 1000; i++)
+            index.put("idea " + i, i);
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i, index.get("idea " + i));
+        for (int i = 1000; i < 11000; i++)
+            assertEquals(-1, index.get("idea " + i));
+        assertEquals(11000, index.lookups());
+        assertEquals(10000, index.definiteMisses() + index.falsePositives());
+        assertTrue(index.falsePositives() < 500);
+
+        //  Deleted ideas are gone even though their bits are still set
+        index.delete("idea 5");
+        assertFalse(index.contains("idea 5"));
+        assertEquals(999, index.size());
+
+        //  The same output with the filter as without it
+        String[] inputFiles = { "test_csvfiles/test_msalganik.csv",
+            "Grand-Challenges-responses.csv" };
+        for (String inputFile : inputFiles)
+        {
+            Deduplicater plain = new Deduplicater(inputFile);
+            plain.applyAllRemoves(true);
+            DedupOptions options = new DedupOptions();
+            options.bloom = true;
+            Deduplicater filtered = new Deduplicater(inputFile, options);
+            filtered.applyAllRemoves(true);
+            assertNotNull(filtered.indexStats());
+
+            assertEquals(plain.size(), filtered.size());
+            for (Integer id : plain.getIds())
+                assertEquals(plain.getIdea(id), filtered.getIdea(id));
+        }
+    }
+
+    /* Test that deduplicating with an external sort gives the same output
+     * as deduplicating in memory, even when the sort spills and merges many
+     * runs, and that it falls back to memory where rows with the same idea
+     * can't be replayed apart.
+     */
+    @Test
+    public void test_external() throws IOException
+    {
+        System.out.println("Testing external sort...");
+
+        File expected = File.createTempFile("expected", ".csv");
+        File actual = File.createTempFile("external", ".csv");
+        expected.deleteOnExit();
+        actual.deleteOnExit();
+
+        //  A budget of a few records, so the sort spills many runs and
+        //  merges them in more than one round
+        String[] inputFiles = { "test_csvfiles/test_rt.csv",
+            "test_csvfiles/test_msalganik.csv",
+            "test_csvfiles/test_uniq.csv", "Grand-Challenges-responses.csv" };
+        for (String inputFile : inputFiles)
+        {
+            for (int useless = 0; useless < 2; useless++)
+            {
+                Deduplicater d = new Deduplicater(inputFile);
+                d.applyAllRemoves(useless == 1);
+                d.writeOutput(expected.getPath());
+
+                DedupOptions options = new DedupOptions();
+                options.uselessOn = useless == 1;
+                options.externalMemory = 2000;
+                ExternalDeduplicater external =
+                    new ExternalDeduplicater(inputFile, options);
+                external.dedup(actual.getPath());
+                assertFalse(external.fellBack());
+                assertEquals(readAll(expected), readAll(actual));
+            }
+        }
+
+        //  "xxa" becomes "xa", a duplicate of the second row before that
+        //  becomes "a", so the two rows can't be replayed apart
+        File rules = File.createTempFile("external", ".rules");
+        File input = File.createTempFile("external", ".csv");
+        rules.deleteOnExit();
+        input.deleteOnExit();
+        FileWriter writer = new FileWriter(rules);
+        writer.write("pass x\nstrip start case x\n");
+        writer.close();
+        writer = new FileWriter(input);
+        writer.write("n,u,xxa\nn,u,xa\n");
+        writer.close();
+
+        DedupOptions options = new DedupOptions();
+        options.rules = rules.getPath();
+        options.externalMemory = 2000;
+        Deduplicater d = new Deduplicater(input.getPath(), options);
+        d.applyAllRemoves(false);
+        d.writeOutput(expected.getPath());
+        ExternalDeduplicater external =
+            new ExternalDeduplicater(input.getPath(), options);
+        external.dedup(actual.getPath());
+        assertTrue(external.fellBack());
+        assertEquals(readAll(expected), readAll(actual));
+        assertEquals("\"n\",\"u\",\"a\"\n", readAll(actual));
+    }
+
+    /* Test that csv output is what CSVWriter writes for the same fields,
+     * including very long ones made mostly of quotes, that jsonl escapes
+     * what JSON needs escaped, and that binary reads back field by field.
+     */
+    @Test
+    public void test_row_writer() throws IOException
+    {
+        System.out.println("Testing row writer...");
+
+        File expected = File.createTempFile("expected", ".csv");
+        File actual = File.createTempFile("rows", ".out");
+        expected.deleteOnExit();
+        actual.deleteOnExit();
+
+        //  csv is the same as CSVWriter, whatever the fields hold
+        String[] pieces = { "a", " ", ",", "\"", "\"\"", "\\", "\n", "\r",
+            "\t", "\u00e9", "\u2028", "\ud83d\ude00", "\ud83d", "\ude00", "" };
+        Random random = new Random(14);
+        CSVWriter csvWriter = new CSVWriter(new FileWriter(expected));
+        RowWriter rowWriter = new RowWriter(actual.getPath(), RowWriter.CSV);
+        for (int row = 0; row < 20000; row++)
+        {
+            String[] fields = new String[3];
+            for (int f = 0; f < 3; f++)
+            {
+                StringBuilder field = new StringBuilder();
+                int length = random.nextInt(row % 1000 == 0 ? 50000 : 10);
+                for (int i = 0; i < length; i++)
+                    field.append(pieces[random.nextInt(pieces.length)]);
+                fields[f] = field.toString();
+            }
+            csvWriter.writeNext(fields);
+            rowWriter.write(row, fields[0], fields[1], fields[2]);
+        }
+
+        //  Fields of nothing but quotes take the most room once quoted
+        for (int n = 1; n <= 100000; n *= 10)
+        {
+            char[] quotes = new char[4 * n];
+            Arrays.fill(quotes, '"');
+            String[] fields = { "\"", new String(quotes, 0, n),
+                new String(quotes) };
+            csvWriter.writeNext(fields);
+            rowWriter.write(0, fields[0], fields[1], fields[2]);
+            fields = new String[] { "", "", new String(quotes) + "x" };
+            csvWriter.writeNext(fields);
+            rowWriter.write(0, fields[0], fields[1], fields[2]);
+        }
+        csvWriter.close();
+        rowWriter.close();
+        assertEquals(readAll(expected), readAll(actual));
+
+        //  jsonl escapes what JSON needs escaped, and unpaired surrogates
+        rowWriter = new RowWriter(actual.getPath(), RowWriter.JSONL);
+        rowWriter.write(7, "twitter", "a\"b", "x\\y\n\u0001\ud83d z");
+        rowWriter.write(12345, "", "", "");
+        rowWriter.close();
+        assertEquals("{\"id\":7,\"network\":\"twitter\","
+                + "\"username\":\"a\\\"b\","
+                + "\"idea\":\"x\\\\y\\n\\u0001\\ud83d z\"}\n"
+                + "{\"id\":12345,\"network\":\"\",\"username\":\"\","
+                + "\"idea\":\"\"}\n",
+                readAll(actual));
+
+        //  binary reads back field by field
+        rowWriter = new RowWriter(actual.getPath(), RowWriter.BINARY);
+        rowWriter.write(3, "twitter", "user", "caf\u00e9 \ud83d\ude00");
+        rowWriter.write(9, "", "u", "idea");
+        rowWriter.close();
+        DataInputStream in = new DataInputStream(new FileInputStream(actual));
+        byte[] magic = new byte[8];
+        in.readFully(magic);
+        assertEquals("DEDUPROW", new String(magic, "US-ASCII"));
+        assertEquals(1, in.readInt());
+        String[][] rows = {
+            { "3", "twitter", "user", "caf\u00e9 \ud83d\ude00" },
+            { "9", "", "u", "idea" } };
+        for (String[] row : rows)
+        {
+            assertEquals(Integer.parseInt(row[0]), in.readInt());
+            for (int f = 1; f < 4; f++)
+            {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                assertEquals(row[f], new String(bytes, "UTF-8"));
+            }
+        }
+        assertEquals(-1, in.read());
+        in.close();
+    }
+
+    /* Make sure each kind of benchmark still runs, on a small input, and
+     * reports a time for each measured iteration.
+     */
+    @Test
+    public void test_benchmarks() throws IOException
+    {
+        System.out.println("Testing benchmarks...");
+
+        //  Every benchmark runs on a small input
+        String[] names = { "ingest", "remove-rts", "apply-all-removes-useless",
+            "update-duplicates-high", "write-output", "st-tree" };
+        for (String name : names)
+            assertEquals(2, Benchmarks.measure(name, 200, 1, 2).size());
+    }
+
+    /* Fail if the memory allocated per row grows much faster than the
+     * input: a structure that costs more per row the more rows there are
+     * shows up as a large ratio between a small and an 8 times larger
+     * input. Time per row is checked by Benchmarks -scaling instead, since
+     * a busy machine would make a timing check here fail at random.
+     */
+    @Test
+    public void test_scaling() throws IOException
+    {
+        System.out.println("Testing scaling with input size...");
+
+        int small = 10000, large = 80000;
+        File smallFile = File.createTempFile("corpus", ".csv");
+        File largeFile = File.createTempFile("corpus", ".csv");
+        File output = File.createTempFile("corpus", ".out");
+        smallFile.deleteOnExit();
+        largeFile.deleteOnExit();
+        output.deleteOnExit();
+        new CorpusGenerator().write(smallFile.getPath(), small);
+        new CorpusGenerator().write(largeFile.getPath(), large);
+
+        //  Warm up, then take the least of a few runs of each
+        for (int i = 0; i < 3; i++)
+            runAll(smallFile, output);
+        long smallCost = Long.MAX_VALUE, largeCost = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++)
+        {
+            smallCost = Math.min(smallCost, runAll(smallFile, output));
+            largeCost = Math.min(largeCost, runAll(largeFile, output));
+        }
+
+        double allocationRatio = (double) largeCost / large
+            / ((double) smallCost / small);
+        System.out.printf("  per row, %d rows against %d: allocation %.2fx%n",
+                large, small, allocationRatio);
+        assertTrue(allocationRatio < 1.5);
+    }
+
+    //  Bytes allocated by this thread for a whole run
+    private static long runAll(File input, File output) throws IOException
+    {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean)
+            ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+
+        Deduplicater d = new Deduplicater(input.getPath());
+        d.applyAllRemoves(true);
+        d.writeOutput(output.getPath());
+
+        return threads.getThreadAllocatedBytes(thread) - allocated;
+    }
+
+    /* Test that the run report accounts for every idea removed, phase by
+     * phase, that its JSON doesn't depend on the default locale, and that
+     * each phase is a JFR event lasting as long as the phase.
+     */
+    @Test
+    public void test_run_report() throws IOException
+    {
+        System.out.println("Testing run report...");
+
+        Recording recording = new Recording();
+        recording.enable("Deduplicater.Phase");
+        recording.start();
+
+        Deduplicater d = new Deduplicater("Grand-Challenges-responses.csv");
+        d.applyAllRemoves(true);
+        File output = File.createTempFile("report", ".csv");
+        output.deleteOnExit();
+        d.writeOutput(output.getPath());
+
+        recording.stop();
+        File events = File.createTempFile("report", ".jfr");
+        events.deleteOnExit();
+        recording.dump(events.toPath());
+        recording.close();
+
+        //  Reading, each pass of the rules, and writing
+        List<RunReport.Phase> phases = d.report().phases();
+        RulePass[] passes = Deduplicater.ruleChain(null, true);
+        assertEquals(passes.length + 2, phases.size());
+        assertEquals("ingest", phases.get(0).name);
+        for (int i = 0; i < passes.length; i++)
+            assertEquals(passes[i].name(), phases.get(i + 1).name);
+        assertEquals("output", phases.get(phases.size() - 1).name);
+
+        //  Every idea that went is accounted for by some phase
+        int size = d.rowsRead();
+        for (RunReport.Phase phase : phases)
+        {
+            assertEquals(size - phase.collapsed - phase.deleted,
+                    phase.sizeAfter);
+            assertTrue(phase.modified + phase.collapsed + phase.deleted
+                    <= phase.scanned);
+            assertTrue(phase.nanos > 0);
+            size = phase.sizeAfter;
+        }
+        assertEquals(d.size(), size);
+
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(Locale.GERMANY);
+        String json = d.report().toJson();
+        Locale.setDefault(locale);
+        assertTrue(json.startsWith("{"));
+        assertTrue(json.contains("\"name\": \"whitehouse\""));
+        assertTrue(json.matches(
+                    "(?s).*\"totalMillis\": [0-9]+\\.[0-9]{3}\n.*"));
+        assertFalse(json.matches("(?s).*\"millis\": [0-9]+,[0-9].*"));
+
+        int recorded = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(
+                    events.toPath()))
+            if (event.getEventType().getName().equals("Deduplicater.Phase"))
+            {
+                RunReport.Phase phase = phases.get(recorded++);
+                assertEquals(phase.name, event.getString("name"));
+                assertTrue(event.getDuration().toNanos() > 0);
+            }
+        assertEquals(phases.size(), recorded);
+    }
+
+    /* Test that splitting the work between processes by partition gives
+     * the same output as one process, and falls back to one when the
+     * groups of a partition can't be replayed apart */
+    @Test
+    public void test_partitions() throws Exception
+    {
+        System.out.println("Testing partitioned runs...");
+
+        File expected = File.createTempFile("expected", ".csv");
+        File actual = File.createTempFile("partitioned", ".csv");
+        expected.deleteOnExit();
+        actual.deleteOnExit();
+
+        for (int useless = 0; useless < 2; useless++)
+        {
+            Deduplicater d = new Deduplicater("Grand-Challenges-responses.csv");
+            d.applyAllRemoves(useless == 1);
+            d.writeOutput(expected.getPath());
+
+            DedupOptions options = new DedupOptions();
+            options.uselessOn = useless == 1;
+            options.partitions = 3;
+            PartitionedDeduplicater partitioned = new PartitionedDeduplicater(
+                    "Grand-Challenges-responses.csv", options);
+            partitioned.dedup(actual.getPath());
+            assertFalse(partitioned.fellBack());
+            assertEquals(readAll(expected), readAll(actual));
+        }
+
+        //  As in test_external, "xxa" and "xa" end up in different groups
+        //  but can't be replayed apart
+        File rules = File.createTempFile("partitioned", ".rules");
+        File input = File.createTempFile("partitioned", ".csv");
+        rules.deleteOnExit();
+        input.deleteOnExit();
+        FileWriter writer = new FileWriter(rules);
+        writer.write("pass x\nstrip start case x\n");
+        writer.close();
+        writer = new FileWriter(input);
+        writer.write("n,u,xxa\nn,u,xa\nn,u,b\n");
+        writer.close();
+
+        DedupOptions options = new DedupOptions();
+        options.rules = rules.getPath();
+        options.partitions = 2;
+        PartitionedDeduplicater partitioned = new PartitionedDeduplicater(
+                input.getPath(), options);
+        partitioned.dedup(actual.getPath());
+        assertTrue(partitioned.fellBack());
+        assertEquals("\"n\",\"u\",\"a\"\n\"n\",\"u\",\"b\"\n",
+                readAll(actual));
+    }
+
+    /* Test that the service knows the ideas it started with, answers a batch
+     * row by row, and that of the same idea checked by several clients at
+     * once exactly one is new */
+    @Test
+    public void test_service() throws Exception
+    {
+        System.out.println("Testing the dedup service...");
+
+        DedupOptions options = new DedupOptions();
+        options.uselessOn = true;
+        DedupService service = new DedupService(
+                "Grand-Challenges-responses.csv", options);
+        Deduplicater d = new Deduplicater("Grand-Challenges-responses.csv");
+        d.applyAllRemoves(true);
+        assertEquals(d.size(), service.size());
+
+        int first = d.getIds().iterator().next();
+        assertEquals("duplicate " + first,
+                service.check("RT @someone " + d.getIdea(first) + " #whgc"));
+
+        service.start(0, 4);
+        try
+        {
+            String answer = post(service.port(), "twitter,a,\"cure, cancer\"\n"
+                    + "facebook,b,\"RT @a: #whgc cure, cancer\"\n"
+                    + "\"RTtext is looking for Grand Challenges in science and "
+                    + "technology, via Twitter\"\n");
+            String[] lines = answer.split("\n");
+            assertEquals(3, lines.length);
+            assertTrue(lines[0].startsWith("new "));
+            assertEquals("duplicate " + lines[0].substring(4), lines[1]);
+            //  A useless tweet is cleaned up to nothing, as some in the
+            //  file were
+            assertTrue(lines[2].startsWith("duplicate "));
+
+            //  An unterminated quote is refused without checking any row
+            int size = service.size();
+            assertEquals(400, status(service.port(),
+                        "twitter,a,brand new idea\ntwitter,b,\"unterminated"));
+            assertEquals(size, service.size());
+
+            //  So is a row whose idea has an unquoted comma
+            assertEquals(400, status(service.port(),
+                        "twitter,a,brand new idea\ncure, cancer\n"));
+            assertEquals(size, service.size());
+
+            //  Every client posts every idea, a batch at a time
+            final int clients = 8, ideas = 200, batch = 10;
+            final int port = service.port();
+            final int[] news = new int[ideas];
+            final List<Throwable> errors = new ArrayList<Throwable>();
+            Thread[] threads = new Thread[clients];
+            for (int t = 0; t < clients; t++)
+            {
+                final int offset = t;
+                threads[t] = new Thread() {
+                    public void run()
+                    {
+                        try
+                        {
+                            for (int i = 0; i < ideas; i += batch)
+                            {
+                                StringBuilder body = new StringBuilder();
+                                for (int j = i; j < i + batch; j++)
+                                    body.append("@whitehouse idea number ")
+                                        .append((j + offset * 7) % ideas)
+                                        .append('\n');
+                                String[] answers = post(port,
+                                        body.toString()).split("\n");
+                                for (int j = i; j < i + batch; j++)
+                                    if (answers[j - i].startsWith("new "))
+                                        synchronized (news)
+                                        {
+                                            news[(j + offset * 7) % ideas]++;
+                                        }
+                            }
+                        }
+                        catch (Throwable e)
+                        {
+                            synchronized (errors)
+                            {
+                                errors.add(e);
+                            }
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+            assertEquals("[]", errors.toString());
+            for (int i = 0; i < ideas; i++)
+                assertEquals(1, news[i]);
+        }
+        finally
+        {
+            service.stop();
+        }
+    }
+
+    /* Test that every row read ends up in the cluster of exactly one row
+     * kept, whichever way it was found to be a duplicate */
+    @Test
+    public void test_clusters() throws IOException
+    {
+        System.out.println("Testing duplicate clusters...");
+
+        Clusters clusters = new Clusters(4);
+        clusters.merge(3, 1);
+        clusters.merge(1, 0);
+        clusters.merge(7, 5);
+        clusters.merge(9, 3);
+        assertEquals(0, clusters.find(9));
+        assertEquals(4, clusters.size(0));
+        assertEquals(2, clusters.size(5));
+        assertEquals(1, clusters.size(2));
+        clusters.group(12);
+        assertArrayEquals(new int[] { 0, 1, 3, 9 }, clusters.members(0));
+        assertArrayEquals(new int[] { 11 }, clusters.members(11));
+
+        //  Exact duplicates, duplicates once the rules are applied, and
+        //  ideas containing another
+        File input = File.createTempFile("clusters", ".csv");
+        File output = File.createTempFile("clusters", ".csv");
+        input.deleteOnExit();
+        output.deleteOnExit();
+        FileWriter writer = new FileWriter(input);
+        writer.write("n,a,cure cancer\nn,b,RT @a cure cancer\n"
+                + "n,c,cure cancer\nn,d,go to mars\n"
+                + "n,e,we should cure cancer now\n");
+        writer.close();
+        DedupOptions options = new DedupOptions();
+        options.clusters = options.clusterMembers = true;
+        options.containedLength = 5;
+        Deduplicater d = new Deduplicater(input.getPath(), options);
+        d.applyAllRemoves(false);
+        d.removeContainingIdeas(options.containedLength);
+        d.writeOutput(output.getPath());
+        assertEquals("\"n\",\"a\",\"cure cancer\",\"4\",\"0 1 2 4\"\n"
+                + "\"n\",\"d\",\"go to mars\",\"1\",\"3\"\n",
+                readAll(output));
+
+        //  The same clusters in fused and parallel runs
+        int[][] sizes = new int[3][];
+        for (int mode = 0; mode < 3; mode++)
+        {
+            options = new DedupOptions();
+            options.clusters = true;
+            options.uselessOn = true;
+            options.fused = mode == 1;
+            options.threads = mode == 2 ? 4 : 0;
+            options.chunkRows = 100;
+            d = new Deduplicater("Grand-Challenges-responses.csv", options);
+            d.applyAllRemoves(true);
+
+            sizes[mode] = new int[d.size()];
+            int total = 0, i = 0;
+            for (Integer id : d.getIds())
+            {
+                sizes[mode][i++] = d.clusters().size(id);
+                total += d.clusters().size(id);
+            }
+            assertEquals(d.rowsRead(), total);
+        }
+        assertArrayEquals(sizes[0], sizes[1]);
+        assertArrayEquals(sizes[0], sizes[2]);
+
+        //  The most room a row with its count and members can take
+        char[] quotes = new char[50000];
+        Arrays.fill(quotes, '"');
+        int[] members = new int[20000];
+        Arrays.fill(members, Integer.MAX_VALUE);
+        RowWriter rows = new RowWriter(output.getPath(), RowWriter.CSV, true);
+        rows.write(0, "\"", "\"", new String(quotes), Integer.MAX_VALUE,
+                members);
+        rows.close();
+        assertEquals(2 * 50002 + 9 + 16 + 11 * 20000 - 1,
+                readAll(output).length());
+    }
+
+    /* Test matching forms, and that with -normalize ideas differing only in
+     * case, white space or compatibility forms are duplicates */
+    @Test
+    public void test_normalize() throws IOException
+    {
+        System.out.println("Testing matching forms...");
+
+        String plain = "cure cancer";
+        assertSame(plain, MatchingForm.of(plain));
+        assertEquals(plain, MatchingForm.of("  Cure \t CANCER "));
+        assertEquals(plain, MatchingForm.of("\uff23ure\u00a0cancer"));
+        assertEquals("strasse", MatchingForm.of("STRA\u00dfE"));
+        assertEquals("fish", MatchingForm.of("\ufb01sh"));
+        assertEquals("", MatchingForm.of(" \u3000 "));
+
+        assertEquals("a b", Deduplicater.whitespaceToSpace("a\tb"));
+        assertEquals("a  b ", Deduplicater.whitespaceToSpace("a\n\tb\n"));
+        assertSame(plain, Deduplicater.whitespaceToSpace(plain));
+
+        File input = File.createTempFile("normalize", ".csv");
+        File output = File.createTempFile("normalize", ".csv");
+        input.deleteOnExit();
+        output.deleteOnExit();
+        FileWriter writer = new FileWriter(input);
+        writer.write("n,a,Cure Cancer\nn,b,cure  cancer\n"
+                + "n,c,RT @x CURE\tCANCER \nn,d,go to mars\n");
+        writer.close();
+        for (int mode = 0; mode < 3; mode++)
+        {
+            DedupOptions options = new DedupOptions();
+            options.normalize = true;
+            options.clusters = true;
+            options.fused = mode == 1;
+            options.arena = mode == 1;
+            options.threads = mode == 2 ? 2 : 0;
+            Deduplicater d = new Deduplicater(input.getPath(), options);
+            d.applyAllRemoves(false);
+            d.writeOutput(output.getPath());
+            assertEquals("\"n\",\"a\",\"Cure Cancer\",\"3\",\"\"\n"
+                    + "\"n\",\"d\",\"go to mars\",\"1\",\"\"\n",
+                    readAll(output));
+        }
+
+        //  Without it they stay apart
+        Deduplicater d = new Deduplicater(input.getPath());
+        d.applyAllRemoves(false);
+        assertEquals(4, d.size());
+    }
+
+    /* Test that a column cache gives back the rows the parser does, is
+     * reused while the input stays the same, is rewritten once it changes,
+     * and marks an input too big to cache so that later runs parse it
+     * without trying again */
+    @Test
+    public void test_cache() throws IOException
+    {
+        System.out.println("Testing column cache...");
+
+        File input = File.createTempFile("cache", ".csv");
+        File output = File.createTempFile("cache", ".csv");
+        input.deleteOnExit();
+        output.deleteOnExit();
+        FileWriter writer = new FileWriter(input);
+        writer.write("n,a,cure cancer\nn,b,\"commas, quotes \"\"and\"\"\"\n"
+                + "n,c,one,two,three\nn,d\n,,\n");
+        writer.close();
+        DedupOptions options = new DedupOptions();
+        options.cache = input.getParent();
+        File cache = ColumnCache.cacheFile(input, options.cache);
+        cache.deleteOnExit();
+
+        for (int run = 0; run < 3; run++)
+        {
+            if (run == 2)
+            {
+                writer = new FileWriter(input, true);
+                writer.write("n,e,go to mars\n");
+                writer.close();
+                input.setLastModified(input.lastModified() + 1000);
+            }
+            long written = cache.lastModified();
+            CSVSource cached = Deduplicater.openInput(input.getPath(),
+                    options);
+            CSVSource parsed = Deduplicater.openParser(input.getPath(),
+                    options);
+            assertTrue(cached instanceof ColumnCache);
+            if (run == 1)
+                assertEquals(written, cache.lastModified());
+            int rows = 0;
+            while (parsed.next())
+            {
+                assertTrue(cached.next());
+                assertEquals(parsed.fields(), cached.fields());
+                for (int i = parsed.fields() - 1; i >= 0; i--)
+                    assertEquals(parsed.field(i), cached.field(i));
+                rows++;
+            }
+            assertFalse(cached.next());
+            assertEquals(run == 2 ? 6 : 5, rows);
+            cached.close();
+            parsed.close();
+        }
+
+        //  The same output as parsing the CSV
+        options = new DedupOptions();
+        options.cache = input.getParent();
+        String expected = null;
+        for (int run = 0; run < 2; run++)
+        {
+            Deduplicater d = new Deduplicater("Grand-Challenges-responses.csv",
+                    run == 0 ? new DedupOptions() : options);
+            d.applyAllRemoves(true);
+            d.writeOutput(output.getPath());
+            if (run == 0)
+                expected = readAll(output);
+            else
+                assertEquals(expected, readAll(output));
+        }
+        ColumnCache.cacheFile(new File("Grand-Challenges-responses.csv"),
+                options.cache).delete();
+
+        //  With sections of at most 16 bytes, the input is too big: the
+        //  cache is only a marker, which the next run reads without
+        //  parsing for the cache again
+        long maxSection = ColumnCache.maxSection;
+        ColumnCache.maxSection = 16;
+        try
+        {
+            cache.delete();
+            for (int run = 0; run < 2; run++)
+            {
+                long written = cache.lastModified();
+                CSVSource source = Deduplicater.openInput(input.getPath(),
+                        options);
+                assertFalse(source instanceof ColumnCache);
+                assertTrue(cache.length() < 100);
+                if (run == 1)
+                    assertEquals(written, cache.lastModified());
+                int rows = 0;
+                while (source.next())
+                    rows++;
+                assertEquals(6, rows);
+                source.close();
+            }
+        }
+        finally
+        {
+            ColumnCache.maxSection = maxSection;
+        }
+    }
+
+    /* Test that records() has every kept row exactly once, in order, and
+     * splits into sized parts for a parallel stream */
+    @Test
+    public void test_records()
+    {
+        System.out.println("Testing record streams...");
+
+        for (int arena = 0; arena < 2; arena++)
+        {
+            DedupOptions options = new DedupOptions();
+            options.arena = arena == 1;
+            Deduplicater d = new Deduplicater("Grand-Challenges-responses.csv",
+                    options);
+            d.applyAllRemoves(true);
+
+            List<IdeaRecord> records = d.records().parallel()
+                .collect(Collectors.toList());
+            assertEquals(d.size(), records.size());
+            int i = 0;
+            for (Integer id : d.getIds())
+            {
+                IdeaRecord record = records.get(i++);
+                assertEquals((int) id, record.id());
+                assertEquals(d.getIdea(id), record.idea());
+                assertNotNull(record.network());
+                assertNotNull(record.username());
+            }
+
+            Spliterator<IdeaRecord> rest = d.records().spliterator();
+            assertTrue(rest.hasCharacteristics(Spliterator.SIZED
+                        | Spliterator.SUBSIZED | Spliterator.ORDERED));
+            Spliterator<IdeaRecord> first = rest.trySplit();
+            assertNotNull(first);
+            assertEquals(d.size(), first.getExactSizeIfKnown()
+                    + rest.getExactSizeIfKnown());
+        }
+    }
+
+    /* Test that text comes out of an arena exactly as it went in, and that
+     * a store keeping its text in one gives the same results */
+    @Test
+    public void test_arena()
+    {
+        System.out.println("Testing text arena...");
+
+        String[] texts = { "", "plain ascii", "caf\u00e9 \u20ac100",
+            "emoji \ud83d\ude00 pair", "lone \ud83d high", "lone \ude00 low",
+            "\ude00\ud83d backwards" };
+        for (int direct = 0; direct < 2; direct++)
+        {
+            TextArena arena = new TextArena(direct == 1);
+            long[] handles = new long[texts.length];
+            for (int i = 0; i < texts.length; i++)
+                handles[i] = arena.add(texts[i]);
+            for (int i = 0; i < texts.length; i++)
+            {
+                assertEquals(texts[i], arena.get(handles[i]));
+                for (int j = 0; j < texts.length; j++)
+                    assertEquals(i == j, arena.equals(handles[i], texts[j]));
+            }
+
+            //  Shorter text goes in place, longer text goes elsewhere
+            long shorter = arena.replace(handles[1], "plain");
+            assertEquals(handles[1], shorter);
+            assertEquals("plain", arena.get(shorter));
+            long longer = arena.replace(shorter, "plain and longer");
+            assertEquals("plain and longer", arena.get(longer));
+            assertEquals(texts[2], arena.get(handles[2]));
+        }
+
+        //  Deleting most rows copies the rest to a smaller arena
+        RecordStore store = new RecordStore(16, new TextArena(false));
+        String padding = new String(new char[1000]).replace('\0', 'x');
+        for (int id = 0; id < 20000; id++)
+            store.add(id, "twitter", "user" + id, padding + id);
+        for (int id = 0; id < 20000; id++)
+            if (id % 100 != 0)
+                store.delete(id);
+        assertEquals(200, store.size());
+        for (int id = 0; id < 20000; id += 100)
+        {
+            assertEquals(padding + id, store.idea(id));
+            assertEquals("user" + id, store.username(id));
+            assertTrue(store.ideaEquals(id, padding + id));
+        }
+
+        String[] inputFiles = { "test_csvfiles/test_msalganik.csv",
+            "Grand-Challenges-responses.csv" };
+        for (String inputFile : inputFiles)
+        {
+            Deduplicater plain = new Deduplicater(inputFile);
+            plain.applyAllRemoves(true);
+            DedupOptions options = new DedupOptions();
+            options.arena = true;
+            Deduplicater packed = new Deduplicater(inputFile, options);
+            packed.applyAllRemoves(true);
+
+            assertEquals(plain.size(), packed.size());
+            for (Integer id : plain.getIds())
+                assertEquals(plain.getIdea(id), packed.getIdea(id));
+        }
+    }
+
+    /* Test that a batch gives each file the output a run of its own would,
+     * that a file that can't be read, or fails part way through, is
+     * reported and doesn't stop the others, and that flags every file would
+     * share, or that a run of its own would refuse, are refused */
+    @Test
+    public void test_batch() throws Exception
+    {
+        System.out.println("Testing batches of files...");
+
+        String[] inputFiles = { "test_csvfiles/test_rt.csv",
+            "test_csvfiles/test_msalganik.csv", "test_csvfiles/test_uniq.csv",
+            "test_csvfiles/test_commas.csv", "Grand-Challenges-responses.csv",
+            "test_csvfiles/no_such_file.csv", null };
+
+        //  The last file has a row without an idea after a good one
+        File broken = File.createTempFile("broken", ".csv");
+        broken.deleteOnExit();
+        FileWriter brokenWriter = new FileWriter(broken);
+        brokenWriter.write("twitter,user1,an idea\ntwitter,user2\n");
+        brokenWriter.close();
+        inputFiles[inputFiles.length - 1] = broken.getPath();
+
+        File manifest = File.createTempFile("batch", ".csv");
+        manifest.deleteOnExit();
+        File[] outputs = new File[inputFiles.length];
+        CSVWriter writer = new CSVWriter(new FileWriter(manifest));
+        for (int i = 0; i < inputFiles.length; i++)
+        {
+            outputs[i] = File.createTempFile("batch", ".csv");
+            outputs[i].deleteOnExit();
+            writer.writeNext(new String[] { inputFiles[i],
+                outputs[i].getPath() });
+        }
+        writer.close();
+
+        DedupOptions options = new DedupOptions();
+        options.uselessOn = true;
+        List<DedupBatch.Job> jobs = DedupBatch.jobs(manifest.getPath());
+        assertEquals(inputFiles.length, jobs.size());
+        new DedupBatch(options).run(jobs, 3);
+
+        File expected = File.createTempFile("expected", ".csv");
+        expected.deleteOnExit();
+        for (int i = 0; i < inputFiles.length - 2; i++)
+        {
+            assertNull(jobs.get(i).error);
+            Deduplicater d = new Deduplicater(inputFiles[i]);
+            d.applyAllRemoves(true);
+            d.writeOutput(expected.getPath());
+            assertEquals(readAll(expected), readAll(outputs[i]));
+            assertEquals(d.size(), jobs.get(i).kept);
+        }
+        assertTrue(jobs.get(inputFiles.length - 2).error
+                instanceof FileNotFoundException);
+        assertNotNull(jobs.get(inputFiles.length - 1).error);
+
+        String[][] refused = { { "-history=x" }, { "-report=x" },
+            { "-jmx" }, { "-partitions=2" }, { "-external=10", "-clusters" } };
+        for (String[] flags : refused)
+        {
+            try
+            {
+                new DedupBatch(DedupOptions.parse(flags, 0));
+                fail(Arrays.toString(flags));
+            }
+            catch (IllegalArgumentException e)
+            {
+                //  Expected
+            }
+        }
+    }
+
+    private static String post(int port, String body) throws IOException
+    {
+        HttpURLConnection connection = send(port, body);
+        assertEquals(200, connection.getResponseCode());
+
+        StringBuilder answer = new StringBuilder();
+        InputStream in = connection.getInputStream();
+        byte[] bytes = new byte[1 << 12];
+        int n;
+        while ((n = in.read(bytes)) > 0)
+            answer.append(new String(bytes, 0, n, "UTF-8"));
+        in.close();
+        return answer.toString();
+    }
+
+    //  The status the service answers a batch with
+    private static int status(int port, String body) throws IOException
+    {
+        HttpURLConnection connection = send(port, body);
+        int status = connection.getResponseCode();
+        connection.disconnect();
+        return status;
+    }
+
+    private static HttpURLConnection send(int port, String body)
+        throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                "http://127.0.0.1:" + port + "/check").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        OutputStream out = connection.getOutputStream();
+        out.write(body.getBytes("UTF-8"));
+        out.close();
+        return connection;
+    }
+
+    private static String readAll(File file) throws IOException
+    {
+        StringBuilder text = new StringBuilder();
+        FileReader reader = new FileReader(file);
+        char[] chars = new char[1 << 12];
+        int n;
+        while ((n = reader.read(chars)) > 0)
+            text.append(chars, 0, n);
+        reader.close();
+        return text.toString();
+    }
+}
@@ -0,0 +1,290 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*************************************************************************
+ *  Compilation:  javac TextArena.java
+ *  Dependencies: none
+ *
+ *  Keeps strings as UTF-8 bytes in large chunks of memory, on the heap or
+ *  off it, instead of as a String object each. add() returns a handle, a
+ *  long that is all RecordStore needs to keep per string; the string can
+ *  then be read back, compared with another without reading it back, or
+ *  replaced.
+ *
+ *  Each string is a 4-byte length followed by its bytes. A string replaced
+ *  by one no longer than it (the usual case, since the rules only take
+ *  text away) is written over in place; otherwise, and for strings that
+ *  are freed, the old bytes stay where they are, counted as garbage(),
+ *  until the strings still wanted are copied to a new arena.
+ *
+ *  A char that is half of a surrogate pair with no other half is written
+ *  as 3 bytes, as if it were any other char, so every string comes back
+ *  exactly as it was added and two strings are equal exactly when their
+ *  bytes are.
+ *
+ *  Not safe for use by several threads at once, except that several can
+ *  get() strings at once, each with a Buffer of its own, while no thread
+ *  changes the arena.
+ *
+ *************************************************************************/
+
+public class TextArena {
+
+    //  Chunks are 4 MB; a handle is a chunk number times the chunk size
+    //  plus the position in the chunk. A string longer than a chunk gets a
+    //  chunk of its own.
+    private static final int CHUNK_BITS = 22;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private final boolean direct;
+    private ByteBuffer[] chunks = new ByteBuffer[16];
+    private int chunkCount = 0;
+
+    //  Bytes allocated in all the chunks, bytes written to them, and bytes
+    //  written that are no longer wanted
+    private long capacity = 0;
+    private long used = 0;
+    private long garbage = 0;
+
+    //  A string's bytes, on their way in or out
+    private byte[] bytes = new byte[256];
+    private final Buffer buffer = new Buffer();
+
+    //  Room for a string's bytes and chars while it's read
+    public static class Buffer
+    {
+        private byte[] bytes = new byte[256];
+        private char[] chars = new char[256];
+    }
+
+    //  An arena on the heap, or off it if direct
+    public TextArena(boolean direct)
+    {
+        this.direct = direct;
+    }
+
+    //  Adds s and returns its handle
+    public long add(String s)
+    {
+        int length = encode(s);
+        return append(bytes, length);
+    }
+
+    //  Adds the string with the given handle to another arena, and returns
+    //  its handle there
+    public long copy(long handle, TextArena to)
+    {
+        int length = read(handle, buffer);
+        return to.append(buffer.bytes, length);
+    }
+
+    private long append(byte[] bytes, int length)
+    {
+        ByteBuffer chunk = chunkCount == 0 ? null : chunks[chunkCount - 1];
+        if (chunk == null || chunk.remaining() < 4 + length)
+            chunk = newChunk(4 + length);
+
+        long handle = ((long) (chunkCount - 1) << CHUNK_BITS)
+            + chunk.position();
+        chunk.putInt(length);
+        chunk.put(bytes, 0, length);
+        used += 4 + length;
+        return handle;
+    }
+
+    //  The string with the given handle is no longer wanted
+    public void free(long handle)
+    {
+        garbage += 4 + chunk(handle).getInt(position(handle));
+    }
+
+    //  Replaces the string with the given handle by s, in place if it fits,
+    //  and returns the handle of the new string
+    public long replace(long handle, String s)
+    {
+        ByteBuffer chunk = chunk(handle);
+        int at = position(handle);
+        int length = encode(s);
+        int oldLength = chunk.getInt(at);
+        if (length > oldLength)
+        {
+            garbage += 4 + oldLength;
+            return append(bytes, length);
+        }
+
+        garbage += oldLength - length;
+        chunk.putInt(at, length);
+        ByteBuffer view = chunk.duplicate();
+        view.position(at + 4);
+        view.put(bytes, 0, length);
+        return handle;
+    }
+
+    //  The string with the given handle
+    public String get(long handle)
+    {
+        return get(handle, buffer);
+    }
+
+    //  The same, reading it into the given buffer
+    public String get(long handle, Buffer buffer)
+    {
+        int length = read(handle, buffer);
+        byte[] bytes = buffer.bytes;
+
+        //  Most ideas are ASCII, which Strings keep a byte per char
+        boolean ascii = true;
+        for (int i = 0; i < length && ascii; i++)
+            ascii = bytes[i] >= 0;
+        if (ascii)
+            return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+
+        if (buffer.chars.length < length)
+            buffer.chars = new char[Math.max(length, 2 * buffer.chars.length)];
+        char[] chars = buffer.chars;
+        int n = 0;
+        for (int i = 0; i < length; )
+        {
+            int b = bytes[i] & 0xff;
+            if (b < 0x80)
+            {
+                chars[n++] = (char) b;
+                i++;
+            }
+            else if (b < 0xe0)
+            {
+                chars[n++] = (char) (((b & 0x1f) << 6) | (bytes[i + 1] & 0x3f));
+                i += 2;
+            }
+            else if (b < 0xf0)
+            {
+                chars[n++] = (char) (((b & 0x0f) << 12)
+                        | ((bytes[i + 1] & 0x3f) << 6) | (bytes[i + 2] & 0x3f));
+                i += 3;
+            }
+            else
+            {
+                int codePoint = ((b & 0x07) << 18)
+                    | ((bytes[i + 1] & 0x3f) << 12)
+                    | ((bytes[i + 2] & 0x3f) << 6) | (bytes[i + 3] & 0x3f);
+                chars[n++] = Character.highSurrogate(codePoint);
+                chars[n++] = Character.lowSurrogate(codePoint);
+                i += 4;
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    //  Is the string with the given handle equal to s? Compares the bytes
+    //  without making a String.
+    public boolean equals(long handle, String s)
+    {
+        ByteBuffer chunk = chunk(handle);
+        int at = position(handle);
+        int length = encode(s);
+        if (chunk.getInt(at) != length)
+            return false;
+        at += 4;
+        for (int i = 0; i < length; i++)
+            if (chunk.get(at + i) != bytes[i])
+                return false;
+        return true;
+    }
+
+    //  Bytes allocated for the arena so far
+    public long capacity()
+    {
+        return capacity;
+    }
+
+    //  Bytes written so far, and how many of them are no longer wanted
+    public long used()
+    {
+        return used;
+    }
+
+    public long garbage()
+    {
+        return garbage;
+    }
+
+    public boolean isDirect()
+    {
+        return direct;
+    }
+
+    private ByteBuffer newChunk(int needed)
+    {
+        int size = Math.max(CHUNK_SIZE, needed);
+        ByteBuffer chunk = direct ? ByteBuffer.allocateDirect(size)
+            : ByteBuffer.allocate(size);
+        if (chunkCount == chunks.length)
+            chunks = Arrays.copyOf(chunks, 2 * chunkCount);
+        chunks[chunkCount++] = chunk;
+        capacity += size;
+        return chunk;
+    }
+
+    private ByteBuffer chunk(long handle)
+    {
+        return chunks[(int) (handle >>> CHUNK_BITS)];
+    }
+
+    private static int position(long handle)
+    {
+        return (int) (handle & (CHUNK_SIZE - 1));
+    }
+
+    //  Copies the bytes of the string with the given handle into the
+    //  buffer and returns how many there are
+    private int read(long handle, Buffer buffer)
+    {
+        ByteBuffer chunk = chunk(handle);
+        int at = position(handle);
+        int length = chunk.getInt(at);
+        if (buffer.bytes.length < length)
+            buffer.bytes = new byte[Math.max(length, 2 * buffer.bytes.length)];
+        ByteBuffer view = chunk.duplicate();
+        view.position(at + 4);
+        view.get(buffer.bytes, 0, length);
+        return length;
+    }
+
+    //  Puts the UTF-8 bytes of s in bytes and returns how many there are
+    private int encode(String s)
+    {
+        int n = s.length();
+        if (bytes.length < 3 * n)
+            bytes = new byte[Math.max(3 * n, 2 * bytes.length)];
+        byte[] bytes = this.bytes;
+        int length = 0;
+        for (int i = 0; i < n; i++)
+        {
+            char c = s.charAt(i);
+            if (c < 0x80)
+                bytes[length++] = (byte) c;
+            else if (c < 0x800)
+            {
+                bytes[length++] = (byte) (0xc0 | (c >>> 6));
+                bytes[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(s.charAt(i + 1)))
+            {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                bytes[length++] = (byte) (0xf0 | (codePoint >>> 18));
+                bytes[length++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3f));
+                bytes[length++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3f));
+                bytes[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            }
+            else
+            {
+                bytes[length++] = (byte) (0xe0 | (c >>> 12));
+                bytes[length++] = (byte) (0x80 | ((c >>> 6) & 0x3f));
+                bytes[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return length;
+    }
+}